@@ -323,6 +323,7 @@ public final class Config {
             if (mTooltipLineWrapping != null) {
                 TooltipRenderer.sLineWrapping_FabricOnly = mTooltipLineWrapping.get();
             }
+            TooltipRenderer.sLayoutGeneration++;
 
             UIManager.sDingEnabled = mDing.get();
             UIManager.sDingSound = mDingSound.get();
@@ -541,19 +542,25 @@ public final class Config {
         public final ConfigItem<Double> mOutlineOffset;
         public final ConfigItem<Double> mBitmapOffset;
         public final ConfigItem<Integer> mCacheLifespan;
+        public final ConfigItem<Integer> mCacheMemoryBudget;
         public final ConfigItem<TextDirection> mTextDirection;
         public final ConfigItem<Boolean> mUseTextShadersInWorld;
         public final ConfigItem<DefaultFontBehavior> mDefaultFontBehavior;
         public final ConfigItem<List<? extends String>> mDefaultFontRuleSet;
         public final ConfigItem<Boolean> mUseComponentCache;
         public final ConfigItem<Boolean> mAllowAsyncLayout;
+        public final ConfigItem<Boolean> mPersistentLayoutCache;
+        public final ConfigItem<Boolean> mOffHeapLayoutCache;
         public final ConfigItem<LineBreakStyle> mLineBreakStyle;
         public final ConfigItem<LineBreakWordStyle> mLineBreakWordStyle;
         //public final ConfigItem<Boolean> mSmartSDFShaders;
         public final ConfigItem<Boolean> mComputeDeviceFontSize;
         public final ConfigItem<Boolean> mAllowSDFTextIn2D;
         public final ConfigItem<Boolean> mTweakExperienceText;
+        public final ConfigItem<Boolean> mCacheTextMesh;
+        public final ConfigItem<Boolean> mAsciiFastPath;
         public final ConfigItem<Boolean> mAntiAliasing;
+        public final ConfigItem<Boolean> mAsyncRasterization;
         public final ConfigItem<Boolean> mLinearMetrics;
         public final ConfigItem<Integer> mMinPixelDensityForSDF;
         public final ConfigItem<Boolean> mLinearSamplingA8Atlas;
@@ -570,19 +577,25 @@ public final class Config {
             mOutlineOffset = get(map, "mOutlineOffset");
             mBitmapOffset = get(map, "mBitmapOffset");
             mCacheLifespan = get(map, "mCacheLifespan");
+            mCacheMemoryBudget = get(map, "mCacheMemoryBudget");
             mTextDirection = get(map, "mTextDirection");
             mUseTextShadersInWorld = get(map, "mUseTextShadersInWorld");
             mDefaultFontBehavior = get(map, "mDefaultFontBehavior");
             mDefaultFontRuleSet = get(map, "mDefaultFontRuleSet");
             mUseComponentCache = get(map, "mUseComponentCache");
             mAllowAsyncLayout = get(map, "mAllowAsyncLayout");
+            mPersistentLayoutCache = get(map, "mPersistentLayoutCache");
+            mOffHeapLayoutCache = get(map, "mOffHeapLayoutCache");
             mLineBreakStyle = get(map, "mLineBreakStyle");
             mLineBreakWordStyle = get(map, "mLineBreakWordStyle");
             //mSmartSDFShaders = get(map, "mSmartSDFShaders");
             mComputeDeviceFontSize = get(map, "mComputeDeviceFontSize");
             mAllowSDFTextIn2D = get(map, "mAllowSDFTextIn2D");
             mTweakExperienceText = get(map, "mTweakExperienceText");
+            mCacheTextMesh = get(map, "mCacheTextMesh");
+            mAsciiFastPath = get(map, "mAsciiFastPath");
             mAntiAliasing = get(map, "mAntiAliasing");
+            mAsyncRasterization = get(map, "mAsyncRasterization");
             mLinearMetrics = get(map, "mLinearMetrics");
             mMinPixelDensityForSDF = get(map, "mMinPixelDensityForSDF");
             mLinearSamplingA8Atlas = get(map, "mLinearSamplingA8Atlas");
@@ -623,6 +636,7 @@ public final class Config {
                 reload = true;
             }*/
             TextLayoutEngine.sCacheLifespan = mCacheLifespan.get();
+            TextLayoutEngine.sCacheMemoryBudget = (long) mCacheMemoryBudget.get() << 20;
             /*TextLayoutEngine.sRehashThreshold = mRehashThreshold.get();*/
             if (TextLayoutEngine.sTextDirection != mTextDirection.get().key) {
                 TextLayoutEngine.sTextDirection = mTextDirection.get().key;
@@ -640,6 +654,8 @@ public final class Config {
             TextLayoutEngine.sRawUseTextShadersInWorld = mUseTextShadersInWorld.get();
             TextLayoutEngine.sUseComponentCache = mUseComponentCache.get();
             TextLayoutEngine.sAllowAsyncLayout = mAllowAsyncLayout.get();
+            TextLayoutEngine.sPersistentLayoutCache = mPersistentLayoutCache.get();
+            TextLayoutEngine.sOffHeapLayoutCache = mOffHeapLayoutCache.get();
             if (TextLayoutProcessor.sLbStyle != mLineBreakStyle.get().key) {
                 TextLayoutProcessor.sLbStyle = mLineBreakStyle.get().key;
                 reload = true;
@@ -655,11 +671,14 @@ public final class Config {
             ModernTextRenderer.sComputeDeviceFontSize = mComputeDeviceFontSize.get();
             ModernTextRenderer.sAllowSDFTextIn2D = mAllowSDFTextIn2D.get();
             ModernTextRenderer.sTweakExperienceText = mTweakExperienceText.get();
+            TextLayout.sCacheTextMesh = mCacheTextMesh.get();
+            TextLayoutProcessor.sAsciiFastPath = mAsciiFastPath.get();
 
             if (GlyphManager.sAntiAliasing != mAntiAliasing.get()) {
                 GlyphManager.sAntiAliasing = mAntiAliasing.get();
                 reloadStrike = true;
             }
+            GlyphManager.sAsyncRasterization = mAsyncRasterization.get();
             if (GlyphManager.sFractionalMetrics != mLinearMetrics.get()) {
                 GlyphManager.sFractionalMetrics = mLinearMetrics.get();
                 reloadStrike = true;
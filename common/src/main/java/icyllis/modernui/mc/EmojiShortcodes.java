@@ -0,0 +1,268 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2026 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.mc;
+
+import org.jetbrains.annotations.Unmodifiable;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * Immutable prefix trie of emoji shortcodes (with colons, e.g. :cheese:), built on the
+ * reload thread. Nodes are stored in breadth-first order, the children of a node are
+ * contiguous and sorted by their lowercase char, so a child is found by binary search.
+ * Shortcodes are sorted the same way, then each node covers a contiguous range of
+ * shortcodes that start with its prefix, and completion is a sub-list lookup.
+ *
+ * @see FontResourceManager#loadShortcodes
+ * @see MuiModApi#EMOJI_SHORTCODE_PATTERN
+ */
+public final class EmojiShortcodes {
+
+    public static final EmojiShortcodes EMPTY = new EmojiShortcodes(new TreeMap<>());
+
+    // shortcodes in trie order, and their emoji sequences
+    private final String[] mShortcodes;
+    private final String[] mSequences;
+
+    // per node: lowercase char, children range, and shortcode range
+    private final char[] mLabels;
+    private final int[] mChildStart;
+    private final int[] mChildEnd;
+    private final int[] mRangeStart;
+    private final int[] mRangeEnd;
+
+    private final int mMaxLength;
+
+    /**
+     * @param map shortcodes to emoji sequences, sorted by lowercase shortcodes
+     */
+    private EmojiShortcodes(@Nonnull SortedMap<String, String> map) {
+        final int count = map.size();
+        mShortcodes = map.keySet().toArray(new String[0]);
+        mSequences = map.values().toArray(new String[0]);
+        int maxLength = 0;
+        for (String sc : mShortcodes) {
+            maxLength = Math.max(maxLength, sc.length());
+        }
+        mMaxLength = maxLength;
+
+        // build level by level, each pending node is a range of shortcodes sharing a prefix
+        var labels = new StringBuilder();
+        var childStart = new ArrayList<Integer>();
+        var childEnd = new ArrayList<Integer>();
+        var rangeStart = new ArrayList<Integer>();
+        var rangeEnd = new ArrayList<Integer>();
+        var depths = new ArrayList<Integer>();
+        // root
+        labels.append('\0');
+        rangeStart.add(0);
+        rangeEnd.add(count);
+        depths.add(0);
+        for (int node = 0; node < labels.length(); node++) {
+            final int depth = depths.get(node);
+            int i = rangeStart.get(node);
+            final int end = rangeEnd.get(node);
+            // the ones ending here sort first
+            while (i < end && mShortcodes[i].length() == depth) {
+                i++;
+            }
+            childStart.add(labels.length());
+            while (i < end) {
+                char c = toLower(mShortcodes[i].charAt(depth));
+                int j = i + 1;
+                while (j < end && toLower(mShortcodes[j].charAt(depth)) == c) {
+                    j++;
+                }
+                labels.append(c);
+                rangeStart.add(i);
+                rangeEnd.add(j);
+                depths.add(depth + 1);
+                i = j;
+            }
+            childEnd.add(labels.length());
+        }
+        final int nodes = labels.length();
+        mLabels = new char[nodes];
+        labels.getChars(0, nodes, mLabels, 0);
+        mChildStart = toArray(childStart);
+        mChildEnd = toArray(childEnd);
+        mRangeStart = toArray(rangeStart);
+        mRangeEnd = toArray(rangeEnd);
+    }
+
+    /**
+     * Create a trie from shortcodes to emoji sequences.
+     */
+    @Nonnull
+    public static EmojiShortcodes create(@Nonnull Map<String, String> shortcodes) {
+        if (shortcodes.isEmpty()) {
+            return EMPTY;
+        }
+        // case-insensitive order, then the original order for equal ones
+        var sorted = new TreeMap<String, String>(
+                Comparator.comparing((String s) -> s, EmojiShortcodes::compareIgnoreCase)
+                        .thenComparing(Comparator.naturalOrder()));
+        sorted.putAll(shortcodes);
+        return new EmojiShortcodes(sorted);
+    }
+
+    private static int compareIgnoreCase(@Nonnull String a, @Nonnull String b) {
+        int n = Math.min(a.length(), b.length());
+        for (int i = 0; i < n; i++) {
+            int d = toLower(a.charAt(i)) - toLower(b.charAt(i));
+            if (d != 0) {
+                return d;
+            }
+        }
+        return a.length() - b.length();
+    }
+
+    private static char toLower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    @Nonnull
+    private static int[] toArray(@Nonnull List<Integer> list) {
+        int[] a = new int[list.size()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = list.get(i);
+        }
+        return a;
+    }
+
+    /**
+     * Find the node of the given prefix, case-insensitive.
+     *
+     * @return the node index, or -1
+     */
+    private int findNode(@Nonnull CharSequence s, int start, int end) {
+        int node = 0;
+        for (int i = start; i < end; i++) {
+            char c = toLower(s.charAt(i));
+            int lo = mChildStart[node];
+            int hi = mChildEnd[node] - 1;
+            node = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                char label = mLabels[mid];
+                if (label < c) {
+                    lo = mid + 1;
+                } else if (label > c) {
+                    hi = mid - 1;
+                } else {
+                    node = mid;
+                    break;
+                }
+            }
+            if (node < 0) {
+                return -1;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Lookup emoji sequence from the shortcode with colons, case-sensitive.
+     *
+     * @return the emoji sequence, or null
+     */
+    @Nullable
+    public String lookup(@Nonnull CharSequence s, int start, int end) {
+        int node = findNode(s, start, end);
+        if (node < 0) {
+            return null;
+        }
+        // case-insensitive equal ones are adjacent
+        for (int i = mRangeStart[node], e = mRangeEnd[node]; i < e; i++) {
+            String sc = mShortcodes[i];
+            if (sc.length() != end - start) {
+                break;
+            }
+            if (sc.contentEquals(s.subSequence(start, end))) {
+                return mSequences[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns shortcodes that start with the prefix (case-insensitive), in alphabetical
+     * order, shorter ones first.
+     *
+     * @param prefix e.g. ":che"
+     */
+    @Nonnull
+    @Unmodifiable
+    public List<String> complete(@Nonnull CharSequence prefix) {
+        int node = findNode(prefix, 0, prefix.length());
+        if (node < 0) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(
+                Arrays.asList(mShortcodes).subList(mRangeStart[node], mRangeEnd[node]));
+    }
+
+    /**
+     * @return the length of the longest shortcode
+     */
+    public int getMaxLength() {
+        return mMaxLength;
+    }
+
+    public int size() {
+        return mShortcodes.length;
+    }
+
+    private static boolean isShortcodeChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                c == '_' || c == '+' || c == '-';
+    }
+
+    /**
+     * Find the first known shortcode in the range, matches the same candidates as
+     * {@link MuiModApi#EMOJI_SHORTCODE_PATTERN} scanning from <code>start</code>.
+     *
+     * @return (start << 32) | end of the shortcode with colons, or -1
+     */
+    public long find(@Nonnull CharSequence s, int start, int end) {
+        int i = start;
+        while (i < end) {
+            if (s.charAt(i) != ':') {
+                i++;
+                continue;
+            }
+            int j = i + 1;
+            while (j < end && isShortcodeChar(s.charAt(j))) {
+                j++;
+            }
+            if (j < end && j > i + 1 && s.charAt(j) == ':') {
+                if (lookup(s, i, j + 1) != null) {
+                    return ((long) i << 32) | (j + 1);
+                }
+                // the regex continues after the candidate
+                i = j + 1;
+            } else {
+                i = j;
+            }
+        }
+        return -1;
+    }
+}
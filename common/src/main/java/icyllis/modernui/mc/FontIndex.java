@@ -0,0 +1,246 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2026 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.mc;
+
+import com.google.gson.*;
+import icyllis.modernui.graphics.text.FontFamily;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static icyllis.modernui.mc.ModernUIMod.*;
+
+/**
+ * Persistent index of font files to register, maps (path, size, last modified time) to
+ * family names. On a warm start, font files whose families are not referenced by config
+ * are not parsed at all, a file is only registered when one of its families is looked up
+ * by name through {@link #resolve(String)}, e.g. when it's selected in preferences.
+ * <p>
+ * Only local files are indexed, fonts in resource packs are always registered.
+ *
+ * @see ModernUIClient#loadFonts
+ */
+public final class FontIndex {
+
+    private static final String FILE_NAME = "font_index.json";
+    private static final int VERSION = 1;
+
+    private static volatile FontIndex sInstance;
+
+    private final Path mFile;
+
+    // absolute path -> entry, loaded from disk
+    private final Map<String, Entry> mEntries = new ConcurrentHashMap<>();
+    // lowercase family name -> deferred entry
+    private final Map<String, Entry> mDeferred = new ConcurrentHashMap<>();
+    private final Set<String> mVisited = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean mDirty;
+
+    private record Entry(String path, long size, long lastModified, List<String> families) {
+
+        boolean matches(@Nonnull File file) {
+            return size == file.length() && lastModified == file.lastModified();
+        }
+    }
+
+    private FontIndex(@Nonnull Path file) {
+        mFile = file;
+    }
+
+    @Nonnull
+    public static FontIndex getInstance() {
+        if (sInstance == null) {
+            synchronized (FontIndex.class) {
+                if (sInstance == null) {
+                    var index = new FontIndex(
+                            MuiPlatform.get().getBootstrapPath().resolveSibling(FILE_NAME));
+                    index.read();
+                    sInstance = index;
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private void read() {
+        if (!Files.exists(mFile)) {
+            return;
+        }
+        try (var reader = Files.newBufferedReader(mFile, StandardCharsets.UTF_8)) {
+            var root = new Gson().fromJson(reader, JsonObject.class);
+            if (root == null || root.get("version").getAsInt() != VERSION) {
+                return;
+            }
+            for (var element : root.getAsJsonArray("entries")) {
+                var o = element.getAsJsonObject();
+                var families = new ArrayList<String>();
+                for (var name : o.getAsJsonArray("families")) {
+                    families.add(name.getAsString());
+                }
+                var entry = new Entry(o.get("path").getAsString(),
+                        o.get("size").getAsLong(),
+                        o.get("lastModified").getAsLong(),
+                        List.copyOf(families));
+                mEntries.put(entry.path(), entry);
+            }
+            LOGGER.debug(MARKER, "Read font index {}, {} entries", mFile, mEntries.size());
+        } catch (Exception e) {
+            LOGGER.warn(MARKER, "Failed to read font index {}", mFile, e);
+            mEntries.clear();
+        }
+    }
+
+    /**
+     * Returns whether the font file can be registered later. If so, its families are
+     * remembered and the file will be parsed by {@link #resolve(String)}.
+     *
+     * @param file      the font file
+     * @param requested family names referenced by config, in lower case
+     */
+    public boolean defer(@Nonnull File file, @Nonnull Set<String> requested) {
+        String path = file.getAbsolutePath();
+        mVisited.add(path);
+        Entry entry = mEntries.get(path);
+        if (entry == null || !entry.matches(file) || entry.families().isEmpty()) {
+            return false;
+        }
+        for (String family : entry.families()) {
+            if (requested.contains(family.toLowerCase(Locale.ROOT))) {
+                return false;
+            }
+        }
+        for (String family : entry.families()) {
+            mDeferred.putIfAbsent(family.toLowerCase(Locale.ROOT), entry);
+        }
+        return true;
+    }
+
+    /**
+     * Record families of a font file that was just registered.
+     */
+    public void put(@Nonnull File file, @Nonnull FontFamily[] families) {
+        var names = new ArrayList<String>(families.length);
+        for (var f : families) {
+            names.add(f.getFamilyName());
+        }
+        var entry = new Entry(file.getAbsolutePath(), file.length(), file.lastModified(),
+                List.copyOf(names));
+        if (!entry.equals(mEntries.put(entry.path(), entry))) {
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Register the deferred font file containing the given family, if any.
+     *
+     * @param familyName the family name, case-insensitive
+     * @return the registered family, or null
+     */
+    @Nullable
+    public FontFamily resolve(@Nonnull String familyName) {
+        Entry entry = mDeferred.get(familyName.toLowerCase(Locale.ROOT));
+        if (entry == null) {
+            return null;
+        }
+        register(entry);
+        // registered to the system font map, same as other files
+        return FontFamily.getSystemFontWithAlias(familyName);
+    }
+
+    private void register(@Nonnull Entry entry) {
+        synchronized (entry) {
+            // remove all families of this file, another thread may have registered it
+            if (!mDeferred.values().removeIf(e -> e == entry)) {
+                return;
+            }
+            var file = new File(entry.path());
+            try {
+                // font files are read on demand by the font scaler, not loaded into heap
+                FontFamily[] families = FontFamily.createFamilies(file, /*register*/true);
+                long identity = FontResourceManager.getFileIdentity(file);
+                BitSet glyphs = FontResourceManager.scanContextualGlyphs(file);
+                for (var f : families) {
+                    FontResourceManager.putFontIdentity(f, identity);
+                    FontResourceManager.putContextualGlyphs(f, glyphs);
+                    FontResourceManager.getInstance().onFontRegistered(f);
+                    LOGGER.info(MARKER, "Registered font '{}', path '{}' (deferred)",
+                            f.getFamilyName(), file);
+                }
+                put(file, families);
+            } catch (Exception e) {
+                LOGGER.error(MARKER, "Failed to register font '{}'", file, e);
+            }
+        }
+    }
+
+    /**
+     * @return family names that are indexed but not registered yet
+     */
+    @Nonnull
+    public List<String> getDeferredFamilies() {
+        var result = new ArrayList<String>();
+        for (var entry : new HashSet<>(mDeferred.values())) {
+            result.addAll(entry.families());
+        }
+        return result;
+    }
+
+    /**
+     * Drop entries of files that are no longer registered, and write the index if changed.
+     */
+    public void save() {
+        if (mEntries.keySet().retainAll(mVisited)) {
+            mDirty = true;
+        }
+        if (!mDirty) {
+            return;
+        }
+        var entries = new JsonArray();
+        for (var entry : mEntries.values()) {
+            var o = new JsonObject();
+            o.addProperty("path", entry.path());
+            o.addProperty("size", entry.size());
+            o.addProperty("lastModified", entry.lastModified());
+            var families = new JsonArray();
+            entry.families().forEach(families::add);
+            o.add("families", families);
+            entries.add(o);
+        }
+        var root = new JsonObject();
+        root.addProperty("version", VERSION);
+        root.add("entries", entries);
+        final Path temp = mFile.resolveSibling(mFile.getFileName() + ".tmp");
+        try {
+            Files.writeString(temp, new Gson().toJson(root), StandardCharsets.UTF_8);
+            Files.move(temp, mFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            mDirty = false;
+        } catch (IOException e) {
+            LOGGER.warn(MARKER, "Failed to write font index {}", mFile, e);
+        }
+    }
+}
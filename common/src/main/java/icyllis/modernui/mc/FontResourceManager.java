@@ -22,8 +22,10 @@ import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import icyllis.modernui.ModernUI;
 import icyllis.modernui.graphics.text.*;
+import icyllis.modernui.mc.text.EmojiPack;
 import icyllis.modernui.mc.text.GlyphManager;
 import icyllis.modernui.mc.text.TextLayoutEngine;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.ints.IntSet;
 import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
@@ -35,9 +37,15 @@ import org.jetbrains.annotations.Unmodifiable;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
 import static icyllis.modernui.mc.ModernUIMod.LOGGER;
 
@@ -66,13 +74,27 @@ public class FontResourceManager implements PreparableReloadListener {
      */
     public static final int BITMAP_SCALE = 8;
 
+    /**
+     * Identities of font files, so that persistent caches are invalidated when a file is
+     * replaced under the same family name. Families of system fonts have no identity.
+     */
+    private static final Map<FontFamily, Long> sFontIdentities =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Glyphs of font files whose layout may depend on neighboring glyphs. Families of
+     * system fonts and files that cannot be scanned are unknown.
+     */
+    private static final Map<FontFamily, BitSet> sContextualGlyphs =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
     protected EmojiFont mEmojiFont;
+    protected EmojiPack mEmojiPack;
 
     /**
      * Shortcodes to Emoji char sequences.
      */
-    protected final HashMap<String, String> mEmojiShortcodes = new HashMap<>();
-    protected final HashMap<Character, List<String>> mPrefixedEmojiShortcodes = new HashMap<>();
+    protected EmojiShortcodes mEmojiShortcodes = EmojiShortcodes.EMPTY;
 
     protected FontResourceManager() {
     }
@@ -111,6 +133,7 @@ public class FontResourceManager implements PreparableReloadListener {
                                           @Nonnull Executor preparationExecutor,
                                           @Nonnull PreparationBarrier preparationBarrier,
                                           @Nonnull Executor reloadExecutor) {
+        cancelEmojiLoading();
         CompletableFuture<LoadResults> preparation;
         {
             final var results = new LoadResults();
@@ -146,18 +169,19 @@ public class FontResourceManager implements PreparableReloadListener {
 
     public static class LoadResults {
         public volatile EmojiFont mEmojiFont;
-        public volatile Map<String, String> mEmojiShortcodes = Collections.emptyMap();
-        public volatile Map<Character, List<String>> mPrefixedEmojiShortcodes = Collections.emptyMap();
+        public volatile EmojiPack mEmojiPack;
+        public volatile EmojiShortcodes mEmojiShortcodes = EmojiShortcodes.EMPTY;
     }
 
     // SYNC
     protected void applyResources(@Nonnull LoadResults results) {
         // reload emojis
         mEmojiFont = results.mEmojiFont;
-        mEmojiShortcodes.clear();
-        mEmojiShortcodes.putAll(results.mEmojiShortcodes);
-        mPrefixedEmojiShortcodes.clear();
-        mPrefixedEmojiShortcodes.putAll(results.mPrefixedEmojiShortcodes);
+        mEmojiPack = results.mEmojiPack;
+        if (mEmojiPack != null) {
+            mEmojiPack.startLoading();
+        }
+        mEmojiShortcodes = results.mEmojiShortcodes;
         // reload the whole engine
         try {
             ModernUIClient.getInstance().reloadTypeface();
@@ -167,6 +191,13 @@ public class FontResourceManager implements PreparableReloadListener {
         reloadAll();
     }
 
+    // SYNC, resources that the emoji pack reads may change from now on
+    protected void cancelEmojiLoading() {
+        if (mEmojiPack != null) {
+            mEmojiPack.cancelLoading();
+        }
+    }
+
     // SYNC, close native resources
     public void close() {
     }
@@ -176,9 +207,12 @@ public class FontResourceManager implements PreparableReloadListener {
                                      @Nonnull LoadResults results) {
         final var map = new Object2IntOpenHashMap<CharSequence>();
         final var files = new ArrayList<String>();
+        final var sizes = new IntArrayList();
+        long fingerprint = 0;
         CYCLE:
-        for (var image : resources.listResources("emoji",
-                res -> res.getPath().endsWith(".png")).keySet()) {
+        for (var entry : resources.listResources("emoji",
+                res -> res.getPath().endsWith(".png")).entrySet()) {
+            var image = entry.getKey();
             var path = image.getPath().split("/");
             if (path.length == 0) {
                 continue;
@@ -213,9 +247,22 @@ public class FontResourceManager implements PreparableReloadListener {
             }
             var sequence = new String(cps, 0, n);
             if (!map.containsKey(sequence)) {
+                // the pack is rebuilt when the size changes under the same name, content is
+                // only read when the pack is built, streams of file and zip resources report
+                // the uncompressed size without reading
+                final int size;
+                try (var stream = entry.getValue().open()) {
+                    size = stream.available();
+                } catch (IOException e) {
+                    continue;
+                }
                 // 1-based as glyph ID, see also GlyphManager.cacheEmoji()
                 map.put(sequence, map.size() + 1);
                 files.add(fileName);
+                sizes.add(size);
+                fingerprint = fingerprint * 31 + fileName.hashCode();
+                fingerprint = fingerprint * 31 + entry.getValue().sourcePackId().hashCode();
+                fingerprint = fingerprint * 31 + size;
             }
         } // CYCLE end
         LOGGER.info(GlyphManager.MARKER, "Scanned emoji map size: {}",
@@ -230,6 +277,7 @@ public class FontResourceManager implements PreparableReloadListener {
                     GlyphManager.EMOJI_SPACING,
                     GlyphManager.EMOJI_BASE,
                     map, files);
+            results.mEmojiPack = EmojiPack.open(files, sizes.toIntArray(), fingerprint);
         } else {
             LOGGER.info(GlyphManager.MARKER, "No Emoji font was found");
         }
@@ -242,7 +290,6 @@ public class FontResourceManager implements PreparableReloadListener {
     protected static void loadShortcodes(@Nonnull ResourceManager resources,
                                          @Nonnull LoadResults results) {
         final var map = new HashMap<String, String>();
-        final var prefixedMap = new HashMap<Character, HashSet<String>>();
         try (var reader = resources.openAsReader(ModernUIMod.location("emoji_data.json"))) {
             for (var entry : new Gson().fromJson(reader, JsonArray.class)) {
                 var row = entry.getAsJsonArray();
@@ -252,9 +299,6 @@ public class FontResourceManager implements PreparableReloadListener {
                 for (int i = 0; i < shortcodes.size(); i++) {
                     String sc = shortcodes.get(i).getAsString();
                     String key = ":" + sc + ":";
-                    char prefix = Character.toLowerCase(sc.charAt(0));
-                    prefixedMap.computeIfAbsent(prefix, $ -> new HashSet<>())
-                            .add(key);
                     if (i == 0) {
                         map.put(key, sequence);
                     } else {
@@ -267,25 +311,121 @@ public class FontResourceManager implements PreparableReloadListener {
         }
         LOGGER.info(GlyphManager.MARKER, "Scanned emoji shortcodes: {}",
                 map.size());
-        results.mEmojiShortcodes = map;
-        final var finalPrefixedMap = new HashMap<Character, List<String>>();
-        for (var e : prefixedMap.entrySet()) {
-            var list = new ArrayList<>(e.getValue());
-            list.sort(null);
-            finalPrefixedMap.put(e.getKey(), Collections.unmodifiableList(list));
-        }
-        results.mPrefixedEmojiShortcodes = finalPrefixedMap;
+        results.mEmojiShortcodes = EmojiShortcodes.create(map);
     }
 
     // ASYNC
     public void onFontRegistered(@Nonnull FontFamily f) {
     }
 
+    /**
+     * Record the identity of the file that a font family was created from.
+     *
+     * @see #getFileIdentity(File)
+     * @see #getContentIdentity(CheckedInputStream)
+     */
+    public static void putFontIdentity(@Nonnull FontFamily family, long identity) {
+        sFontIdentities.put(family, identity);
+    }
+
+    /**
+     * @return the identity of the font file, or 0 if unknown
+     */
+    public static long getFontIdentity(@Nonnull FontFamily family) {
+        Long identity = sFontIdentities.get(family);
+        return identity != null ? identity : 0;
+    }
+
+    /**
+     * Record glyphs of the file that a font family was created from, whose layout may
+     * depend on neighboring glyphs.
+     *
+     * @see #scanContextualGlyphs(File)
+     * @see #scanContextualGlyphs(ByteBuffer)
+     */
+    public static void putContextualGlyphs(@Nonnull FontFamily family, @Nullable BitSet glyphs) {
+        if (glyphs != null) {
+            sContextualGlyphs.put(family, glyphs);
+        }
+    }
+
+    /**
+     * @return glyph IDs that may interact with neighbors, or null if unknown
+     */
+    @Nullable
+    public static BitSet getContextualGlyphs(@Nonnull FontFamily family) {
+        return sContextualGlyphs.get(family);
+    }
+
+    /**
+     * Scan layout tables of a local font file, the file is mapped rather than read.
+     *
+     * @return glyph IDs that may interact with neighbors, or null if failed
+     */
+    @Nullable
+    public static BitSet scanContextualGlyphs(@Nonnull File file) {
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return scanContextualGlyphs(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            LOGGER.debug(ModernUIMod.MARKER, "Failed to scan font '{}'", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Scan layout tables of font data.
+     *
+     * @return glyph IDs that may interact with neighbors, or null if failed
+     */
+    @Nullable
+    public static BitSet scanContextualGlyphs(@Nonnull ByteBuffer data) {
+        try {
+            return OpenTypeLayoutScanner.scan(data);
+        } catch (RuntimeException e) {
+            LOGGER.debug(ModernUIMod.MARKER, "Failed to scan font data", e);
+            return null;
+        }
+    }
+
+    /**
+     * Identity of a local file, from its path, size and last modified time.
+     */
+    public static long getFileIdentity(@Nonnull File file) {
+        long h = file.getAbsolutePath().hashCode();
+        h = 31 * h + file.length();
+        h = 31 * h + file.lastModified();
+        return h;
+    }
+
+    /**
+     * Wrap a resource stream to compute the identity of its content.
+     *
+     * @see #getContentIdentity(CheckedInputStream)
+     */
+    @Nonnull
+    public static CheckedInputStream checkContent(@Nonnull InputStream stream) {
+        return new CheckedInputStream(stream, new CRC32());
+    }
+
+    /**
+     * Identity of a resource, from the CRC-32 of its content. The rest of the stream that
+     * was not read by the font loader is skipped.
+     */
+    public static long getContentIdentity(@Nonnull CheckedInputStream stream) throws IOException {
+        stream.transferTo(OutputStream.nullOutputStream());
+        return stream.getChecksum().getValue() | (1L << 32);
+    }
+
     @Nullable
     public EmojiFont getEmojiFont() {
         return mEmojiFont;
     }
 
+    @Nullable
+    public EmojiPack getEmojiPack() {
+        return mEmojiPack;
+    }
+
     /**
      * Lookup Emoji char sequence from shortcode with colons.
      *
@@ -294,13 +434,24 @@ public class FontResourceManager implements PreparableReloadListener {
      */
     @Nullable
     public String lookupEmojiShortcode(@Nonnull String shortcode) {
-        return mEmojiShortcodes.get(shortcode);
+        return mEmojiShortcodes.lookup(shortcode, 0, shortcode.length());
     }
 
+    /**
+     * Returns shortcodes with colons that start with the given prefix, case-insensitive.
+     *
+     * @param prefix the prefix, e.g. :che
+     * @return sorted shortcodes
+     */
     @Nonnull
     @Unmodifiable
-    public List<String> getEmojiShortcodes(char prefix) {
-        return mPrefixedEmojiShortcodes.getOrDefault(Character.toLowerCase(prefix), Collections.emptyList());
+    public List<String> getEmojiShortcodes(@Nonnull String prefix) {
+        return mEmojiShortcodes.complete(prefix);
+    }
+
+    @Nonnull
+    public EmojiShortcodes getEmojiShortcodes() {
+        return mEmojiShortcodes;
     }
 
     static class EmojiData {
@@ -28,16 +28,21 @@ import org.apache.commons.lang3.StringUtils;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
@@ -181,6 +186,15 @@ public abstract class ModernUIClient extends ModernUI {
         if (firstLoad) {
             var tasks = new ArrayList<CompletableFuture<Void>>();
             var fontManager = FontResourceManager.getInstance();
+            // files of other families are registered later, see FontIndex
+            var fontIndex = FontIndex.getInstance();
+            var requested = new HashSet<String>();
+            if (first != null) {
+                requested.add(first.toLowerCase(Locale.ROOT));
+            }
+            for (String fallback : fallbacks) {
+                requested.add(fallback.toLowerCase(Locale.ROOT));
+            }
             var registrationList = sFontRegistrationList;
             if (registrationList != null) {
                 for (var value : new LinkedHashSet<>(registrationList)) {
@@ -198,12 +212,20 @@ public abstract class ModernUIClient extends ModernUI {
                         entries = new File[]{file};
                     }
                     for (File entry : entries) {
+                        if (fontIndex.defer(entry, requested)) {
+                            continue;
+                        }
                         tasks.add(CompletableFuture.runAsync(
                                 () -> {
                                     try {
                                         FontFamily[] families = FontFamily.createFamilies(
                                                 entry, /*register*/true);
+                                        fontIndex.put(entry, families);
+                                        long identity = FontResourceManager.getFileIdentity(entry);
+                                        BitSet glyphs = FontResourceManager.scanContextualGlyphs(entry);
                                         for (var f : families) {
+                                            FontResourceManager.putFontIdentity(f, identity);
+                                            FontResourceManager.putContextualGlyphs(f, glyphs);
                                             fontManager.onFontRegistered(f);
                                             LOGGER.info(MARKER, "Registered font '{}', path '{}'",
                                                     f.getFamilyName(), entry);
@@ -226,12 +248,20 @@ public abstract class ModernUIClient extends ModernUI {
                             name.endsWith(".ttc") ||
                             name.endsWith(".otc")) {
                         Path absP = p.toAbsolutePath();
+                        if (fontIndex.defer(absP.toFile(), requested)) {
+                            continue;
+                        }
                         tasks.add(CompletableFuture.runAsync(
                                 () -> {
                                     try {
                                         FontFamily[] families = FontFamily.createFamilies(
                                                 absP.toFile(), /*register*/true);
+                                        fontIndex.put(absP.toFile(), families);
+                                        long identity = FontResourceManager.getFileIdentity(absP.toFile());
+                                        BitSet glyphs = FontResourceManager.scanContextualGlyphs(absP.toFile());
                                         for (var f : families) {
+                                            FontResourceManager.putFontIdentity(f, identity);
+                                            FontResourceManager.putContextualGlyphs(f, glyphs);
                                             fontManager.onFontRegistered(f);
                                             LOGGER.info(MARKER, "Registered font '{}', path '{}'",
                                                     f.getFamilyName(), absP);
@@ -262,10 +292,15 @@ public abstract class ModernUIClient extends ModernUI {
                 for (var resource : entry.getValue()) {
                     tasks.add(CompletableFuture.runAsync(
                             () -> {
-                                try (var inputStream = resource.open()) {
+                                try (var inputStream = FontResourceManager.checkContent(resource.open())) {
+                                    byte[] data = inputStream.readAllBytes();
                                     FontFamily[] families = FontFamily.createFamilies(
-                                            inputStream, /*register*/true);
+                                            new ByteArrayInputStream(data), /*register*/true);
+                                    long identity = FontResourceManager.getContentIdentity(inputStream);
+                                    BitSet glyphs = FontResourceManager.scanContextualGlyphs(ByteBuffer.wrap(data));
                                     for (var f : families) {
+                                        FontResourceManager.putFontIdentity(f, identity);
+                                        FontResourceManager.putContextualGlyphs(f, glyphs);
                                         fontManager.onFontRegistered(f);
                                         LOGGER.info(MARKER, "Registered font '{}', location '{}' in pack: '{}'",
                                                 f.getFamilyName(), entry.getKey(), resource.sourcePackId());
@@ -279,6 +314,7 @@ public abstract class ModernUIClient extends ModernUI {
                 }
             }
             CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+            fontIndex.save();
         }
         boolean success = loadSingleFont(first, selected, firstSetter);
         for (String fallback : fallbacks) {
@@ -287,6 +323,8 @@ public abstract class ModernUIClient extends ModernUI {
         if (!success && ModernUIMod.isDeveloperMode()) {
             LOGGER.debug(MARKER, "Available system font families:\n{}",
                     String.join("\n", FontFamily.getSystemFontMap().keySet()));
+            LOGGER.debug(MARKER, "Indexed font families, not registered yet:\n{}",
+                    String.join("\n", FontIndex.getInstance().getDeferredFamilies()));
         }
     }
 
@@ -299,6 +337,8 @@ public abstract class ModernUIClient extends ModernUI {
         try {
             File f = new File(value.replaceAll("\\\\", "/"));
             FontFamily family = FontFamily.createFamily(f, /*register*/false);
+            FontResourceManager.putFontIdentity(family, FontResourceManager.getFileIdentity(f));
+            FontResourceManager.putContextualGlyphs(family, FontResourceManager.scanContextualGlyphs(f));
             selected.add(family);
             LOGGER.debug(MARKER, "Font '{}' was loaded with config value '{}' as LOCAL FILE",
                     family.getFamilyName(), value);
@@ -308,7 +348,10 @@ public abstract class ModernUIClient extends ModernUI {
             return true;
         } catch (Exception ignored) {
         }
-        FontFamily family = FontFamily.getSystemFontWithAlias(value);
+        FontFamily family = FontIndex.getInstance().resolve(value);
+        if (family == null) {
+            family = FontFamily.getSystemFontWithAlias(value);
+        }
         if (family == null) {
             Optional<FontFamily> optional = FontFamily.getSystemFontMap().values().stream()
                     .filter(f -> f.getFamilyName().equalsIgnoreCase(value))
@@ -0,0 +1,201 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2026 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.mc;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Finds glyphs of an OpenType font (or collection) whose layout may depend on
+ * neighboring glyphs. That is, glyphs that begin a kerning pair, a ligature, or the input
+ * sequence of a contextual lookup, as well as cursive glyphs and marks.
+ * <p>
+ * All lookups are considered, regardless of features, scripts and languages.
+ * Single, multiple and alternate substitutions are not included, as they give the same
+ * result for a glyph with or without neighbors.
+ */
+final class OpenTypeLayoutScanner {
+
+    private static final int TAG_TTCF = 0x74746366; // 'ttcf'
+    private static final int TAG_KERN = 0x6B65726E; // 'kern'
+    private static final int TAG_GPOS = 0x47504F53; // 'GPOS'
+    private static final int TAG_GSUB = 0x47535542; // 'GSUB'
+
+    private final ByteBuffer mData;
+    private final BitSet mGlyphs = new BitSet();
+
+    private OpenTypeLayoutScanner(@Nonnull ByteBuffer data) {
+        mData = data;
+    }
+
+    /**
+     * Scan the font data, big-endian.
+     *
+     * @return glyph IDs that may interact with neighbors, of all fonts in the data
+     * @throws IndexOutOfBoundsException    the data is malformed
+     * @throws UnsupportedOperationException a table format is unknown
+     */
+    @Nonnull
+    static BitSet scan(@Nonnull ByteBuffer data) {
+        var scanner = new OpenTypeLayoutScanner(data);
+        if (data.getInt(0) == TAG_TTCF) {
+            int numFonts = data.getInt(8);
+            for (int i = 0; i < numFonts; i++) {
+                scanner.scanFont(data.getInt(12 + i * 4));
+            }
+        } else {
+            scanner.scanFont(0);
+        }
+        return scanner.mGlyphs;
+    }
+
+    private int u16(int offset) {
+        return mData.getShort(offset) & 0xFFFF;
+    }
+
+    private void scanFont(int offset) {
+        int numTables = u16(offset + 4);
+        for (int i = 0; i < numTables; i++) {
+            int record = offset + 12 + i * 16;
+            int tag = mData.getInt(record);
+            int tableOffset = mData.getInt(record + 8);
+            switch (tag) {
+                case TAG_KERN -> scanKern(tableOffset);
+                case TAG_GPOS -> scanLookups(tableOffset, true);
+                case TAG_GSUB -> scanLookups(tableOffset, false);
+            }
+        }
+    }
+
+    private void scanKern(int offset) {
+        final int nTables;
+        int subtable;
+        final boolean apple = mData.getInt(offset) == 0x00010000;
+        if (apple) {
+            nTables = mData.getInt(offset + 4);
+            subtable = offset + 8;
+        } else {
+            nTables = u16(offset + 2);
+            subtable = offset + 4;
+        }
+        for (int i = 0; i < nTables; i++) {
+            final int length;
+            final int format;
+            final int pairs;
+            if (apple) {
+                length = mData.getInt(subtable);
+                format = u16(subtable + 4) & 0xFF;
+                pairs = subtable + 8;
+            } else {
+                length = u16(subtable + 2);
+                format = u16(subtable + 4) >> 8;
+                pairs = subtable + 6;
+            }
+            if (format != 0) {
+                throw new UnsupportedOperationException("kern format " + format);
+            }
+            int nPairs = u16(pairs);
+            for (int j = 0; j < nPairs; j++) {
+                // the left glyph
+                mGlyphs.set(u16(pairs + 8 + j * 6));
+            }
+            subtable += length;
+        }
+    }
+
+    private void scanLookups(int offset, boolean gpos) {
+        int lookupList = offset + u16(offset + 8);
+        int lookupCount = u16(lookupList);
+        for (int i = 0; i < lookupCount; i++) {
+            int lookup = lookupList + u16(lookupList + 2 + i * 2);
+            int lookupType = u16(lookup);
+            int subTableCount = u16(lookup + 4);
+            for (int j = 0; j < subTableCount; j++) {
+                int subtable = lookup + u16(lookup + 6 + j * 2);
+                int type = lookupType;
+                if (type == (gpos ? 9 : 7)) {
+                    // extension
+                    type = u16(subtable + 2);
+                    subtable += mData.getInt(subtable + 4);
+                }
+                scanSubtable(subtable, type, gpos);
+            }
+        }
+    }
+
+    private void scanSubtable(int subtable, int type, boolean gpos) {
+        if (gpos) {
+            switch (type) {
+                // pair, cursive, mark-to-base, mark-to-ligature, mark-to-mark
+                case 2, 3, 4, 5, 6 -> scanCoverage(subtable + u16(subtable + 2));
+                case 7 -> scanContext(subtable);
+                case 8 -> scanChainContext(subtable);
+            }
+        } else {
+            switch (type) {
+                // ligature, reverse chaining
+                case 4, 8 -> scanCoverage(subtable + u16(subtable + 2));
+                case 5 -> scanContext(subtable);
+                case 6 -> scanChainContext(subtable);
+            }
+        }
+    }
+
+    private void scanContext(int subtable) {
+        int format = u16(subtable);
+        if (format == 3) {
+            // the first input glyph
+            scanCoverage(subtable + u16(subtable + 6));
+        } else {
+            scanCoverage(subtable + u16(subtable + 2));
+        }
+    }
+
+    private void scanChainContext(int subtable) {
+        int format = u16(subtable);
+        if (format == 3) {
+            int backtrackCount = u16(subtable + 2);
+            int input = subtable + 4 + backtrackCount * 2;
+            if (u16(input) > 0) {
+                // the first input glyph
+                scanCoverage(subtable + u16(input + 2));
+            }
+        } else {
+            scanCoverage(subtable + u16(subtable + 2));
+        }
+    }
+
+    private void scanCoverage(int coverage) {
+        int format = u16(coverage);
+        int count = u16(coverage + 2);
+        if (format == 1) {
+            for (int i = 0; i < count; i++) {
+                mGlyphs.set(u16(coverage + 4 + i * 2));
+            }
+        } else if (format == 2) {
+            for (int i = 0; i < count; i++) {
+                int range = coverage + 4 + i * 6;
+                mGlyphs.set(u16(range), u16(range + 2) + 1);
+            }
+        } else {
+            throw new UnsupportedOperationException("coverage format " + format);
+        }
+    }
+}
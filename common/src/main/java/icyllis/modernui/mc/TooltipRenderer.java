@@ -24,6 +24,7 @@ import icyllis.arc3d.core.MathUtil;
 import icyllis.modernui.graphics.Color;
 import icyllis.modernui.mc.mixin.AccessClientTextTooltip;
 import icyllis.modernui.mc.text.CharacterStyle;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import net.minecraft.client.gui.Font;
 import net.minecraft.client.gui.GuiGraphicsExtractor;
@@ -86,6 +87,9 @@ public final class TooltipRenderer implements ScrollController.IListener {
     public static volatile boolean sTitleBreak = true;
     public static volatile int sArrowScrollFactor = 60;
 
+    // incremented when config changes, invalidates cached layouts
+    public static volatile int sLayoutGeneration;
+
     public volatile boolean mLayoutRTL;
 
     private boolean mDraw;
@@ -107,8 +111,11 @@ public final class TooltipRenderer implements ScrollController.IListener {
     private long mCurrTimeMillis;
     private long mCurrDeltaMillis;
 
+    // cached layouts of recent tooltips, most recent first,
     // no weak ref, clear on frame gap
-    private ItemStack mLastSeenItem;
+    private final ArrayList<TooltipLayout> mLayoutCache = new ArrayList<>(MAX_CACHED_LAYOUTS);
+    private static final int MAX_CACHED_LAYOUTS = 4;
+    private final ContentRecorder mContentRecorder = new ContentRecorder();
 
     // true to use spectrum colors
     private boolean mUseSpectrum;
@@ -143,7 +150,7 @@ public final class TooltipRenderer implements ScrollController.IListener {
             mFrameGap = false;
         } else {
             mFrameGap = true;
-            mLastSeenItem = null;
+            mLayoutCache.clear();
             mPendingArrowMove = 0;
         }
         mCurrTimeMillis = timeMillis;
@@ -508,51 +515,200 @@ public final class TooltipRenderer implements ScrollController.IListener {
         sTempTexts.clear();
     }*/
 
-    int chooseBorderColor(int corner) {
-        if (sBorderColorCycle > 0) {
-            return mActiveStrokeColor[corner];
-        } else {
-            return mWorkStrokeColor[corner];
+    /**
+     * Geometry and colors of a tooltip, computed by {@link #obtainLayout}. Component lists
+     * are usually rebuilt every frame (and the Fabric line wrapping creates new lines), so
+     * the key is the content of text lines instead of the list identity, plus the item stack,
+     * which stays the same while it's hovered. Other components are keyed by their class
+     * and size. The hash only skips comparisons, a copy of the content is compared on match.
+     */
+    private static final class TooltipLayout {
+
+        // key
+        ItemStack mItemStack;
+        Font mFont;
+        int mScreenWidth;
+        int mScreenHeight;
+        int mSize;
+        long mContentHash;
+        int[] mContentInts;
+        Object[] mContentObjects;
+        // at most one rounded tooltip is allowed per frame, colors differ
+        boolean mFirstDraw;
+        int mGeneration;
+
+        int mTooltipWidth;
+        int mTooltipHeight;
+        boolean mTitleGap;
+        int mTitleBreakHeight;
+        // per component
+        int[] mWidths;
+        int[] mHeights;
+
+        final int[] mStrokeColor = new int[4];
+        boolean mUseSpectrum;
+
+        boolean matches(ItemStack itemStack, Font font, int screenWidth, int screenHeight,
+                        int size, boolean firstDraw, int generation, @Nonnull ContentRecorder content) {
+            return mItemStack == itemStack &&
+                    mFont == font &&
+                    mScreenWidth == screenWidth &&
+                    mScreenHeight == screenHeight &&
+                    mSize == size &&
+                    mFirstDraw == firstDraw &&
+                    mGeneration == generation &&
+                    content.contentEquals(this);
         }
     }
 
-    Vector4f chooseBorderColor(int corner, Vector4f uniform) {
-        int color = chooseBorderColor(corner);
-        int a = (color >>> 24);
-        int r = ((color >> 16) & 0xff);
-        int g = ((color >> 8) & 0xff);
-        int b = (color & 0xff);
-        return uniform.set(r / 255f, g / 255f, b / 255f, a / 255f);
+    /**
+     * Records the content of a component list, code points of text lines go to the int
+     * list, with a style in the object list at each style change. Other components are
+     * recorded as their class and size.
+     */
+    private static final class ContentRecorder implements FormattedCharSink {
+
+        // separators, code points are never negative
+        static final int LINE_END = -1;
+        static final int NON_TEXT = -2;
+        static final int STYLE_CHANGE = -3;
+
+        final IntArrayList mInts = new IntArrayList();
+        final ArrayList<Object> mObjects = new ArrayList<>();
+        long mHash;
+        Style mLastStyle;
+
+        @Override
+        public boolean accept(int index, @Nonnull Style style, int codePoint) {
+            if (style != mLastStyle) {
+                mLastStyle = style;
+                mObjects.add(style);
+                mInts.add(STYLE_CHANGE);
+                mHash = 31 * mHash + style.hashCode();
+            }
+            mInts.add(codePoint);
+            mHash = 31 * mHash + codePoint;
+            return true;
+        }
+
+        void record(@Nonnull List<ClientTooltipComponent> list, @Nonnull Font font) {
+            mInts.clear();
+            mObjects.clear();
+            mHash = list.size();
+            for (ClientTooltipComponent component : list) {
+                if (component instanceof ClientTextTooltip) {
+                    mLastStyle = null;
+                    ((AccessClientTextTooltip) component).getText().accept(this);
+                    mInts.add(LINE_END);
+                    mHash = 31 * mHash + LINE_END;
+                } else {
+                    // images and other components are identified by type and size,
+                    // the content is drawn by themselves
+                    final int width = component.getWidth(font);
+                    final int height = component.getHeight(font);
+                    mObjects.add(component.getClass());
+                    mInts.add(NON_TEXT);
+                    mInts.add(width);
+                    mInts.add(height);
+                    mHash = 31 * (31 * (31 * mHash + component.getClass().hashCode()) + width) + height;
+                }
+            }
+            mLastStyle = null;
+        }
+
+        boolean contentEquals(@Nonnull TooltipLayout layout) {
+            if (layout.mContentHash != mHash ||
+                    layout.mContentInts.length != mInts.size() ||
+                    layout.mContentObjects.length != mObjects.size()) {
+                return false;
+            }
+            if (!Arrays.equals(layout.mContentInts, 0, layout.mContentInts.length,
+                    mInts.elements(), 0, mInts.size())) {
+                return false;
+            }
+            for (int i = 0; i < layout.mContentObjects.length; i++) {
+                if (!layout.mContentObjects[i].equals(mObjects.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 
-    public void drawTooltip(@Nonnull ItemStack itemStack, @Nonnull GuiGraphicsExtractor gr,
-                            @Nonnull List<ClientTooltipComponent> list, int mouseX, int mouseY,
-                            @Nonnull Font font, int screenWidth, int screenHeight,
-                            float partialX, float partialY, @Nullable ClientTooltipPositioner positioner,
-                            @Nullable Identifier tooltipStyle) {
-        mDraw = true;
+    /**
+     * Find or compute the layout of a tooltip, this also updates the working colors.
+     * The result is immutable and can be used after recursive calls.
+     */
+    @Nonnull
+    private TooltipLayout obtainLayout(@Nonnull ItemStack itemStack, @Nonnull List<ClientTooltipComponent> list,
+                                       @Nonnull Font font, int screenWidth, int screenHeight) {
+        final int size = list.size();
+        final ContentRecorder content = mContentRecorder;
+        content.record(list, font);
+        final boolean firstDraw = mNumDrawsInThisFrame == 0;
+        final int generation = sLayoutGeneration;
+        final ArrayList<TooltipLayout> cache = mLayoutCache;
+        TooltipLayout colorSource = null;
+        for (int i = 0; i < cache.size(); i++) {
+            TooltipLayout layout = cache.get(i);
+            if (layout.matches(itemStack, font, screenWidth, screenHeight,
+                    size, firstDraw, generation, content)) {
+                if (i != 0) {
+                    cache.add(0, cache.remove(i));
+                }
+                System.arraycopy(layout.mStrokeColor, 0, mWorkStrokeColor, 0, 4);
+                mUseSpectrum = layout.mUseSpectrum;
+                return layout;
+            }
+            if (colorSource == null && layout.mItemStack == itemStack &&
+                    layout.mFirstDraw == firstDraw && layout.mGeneration == generation) {
+                colorSource = layout;
+            }
+        }
 
-        if (itemStack != mLastSeenItem || mNumDrawsInThisFrame > 0) {
-            mLastSeenItem = itemStack;
+        final TooltipLayout layout = new TooltipLayout();
+        layout.mItemStack = itemStack;
+        layout.mFont = font;
+        layout.mScreenWidth = screenWidth;
+        layout.mScreenHeight = screenHeight;
+        layout.mSize = size;
+        layout.mContentHash = content.mHash;
+        layout.mContentInts = content.mInts.toIntArray();
+        layout.mContentObjects = content.mObjects.toArray();
+        layout.mFirstDraw = firstDraw;
+        layout.mGeneration = generation;
+
+        if (colorSource != null) {
+            // the same item with different lines (e.g. durability), keep the colors
+            System.arraycopy(colorSource.mStrokeColor, 0, mWorkStrokeColor, 0, 4);
+            mUseSpectrum = colorSource.mUseSpectrum;
+        } else {
             computeWorkingColor(itemStack);
         }
+        System.arraycopy(mWorkStrokeColor, 0, layout.mStrokeColor, 0, 4);
+        layout.mUseSpectrum = mUseSpectrum;
 
+        final int[] widths = new int[size];
+        final int[] heights = new int[size];
         int tooltipWidth;
         int tooltipHeight;
         boolean titleGap = false;
         int titleBreakHeight = 0;
-        if (list.size() == 1) {
+        if (size == 1) {
             ClientTooltipComponent component = list.get(0);
-            tooltipWidth = component.getWidth(font);
-            tooltipHeight = component.getHeight(font) - TITLE_GAP;
+            widths[0] = tooltipWidth = component.getWidth(font);
+            heights[0] = component.getHeight(font);
+            tooltipHeight = heights[0] - TITLE_GAP;
         } else {
             tooltipWidth = 0;
             tooltipHeight = 0;
             Style singleStyle = null;
-            for (int i = 0; i < list.size(); i++) {
+            for (int i = 0; i < size; i++) {
                 ClientTooltipComponent component = list.get(i);
-                tooltipWidth = Math.max(tooltipWidth, component.getWidth(font));
+                widths[i] = component.getWidth(font);
+                tooltipWidth = Math.max(tooltipWidth, widths[i]);
                 int componentHeight = component.getHeight(font);
+                heights[i] = componentHeight;
                 tooltipHeight += componentHeight;
                 if (i == 0) {
                     titleBreakHeight = componentHeight;
@@ -586,6 +742,51 @@ public final class TooltipRenderer implements ScrollController.IListener {
                 tooltipHeight -= TITLE_GAP;
             }
         }
+        layout.mTooltipWidth = tooltipWidth;
+        layout.mTooltipHeight = tooltipHeight;
+        layout.mTitleGap = titleGap;
+        layout.mTitleBreakHeight = titleBreakHeight;
+        layout.mWidths = widths;
+        layout.mHeights = heights;
+
+        if (cache.size() >= MAX_CACHED_LAYOUTS) {
+            cache.remove(cache.size() - 1);
+        }
+        cache.add(0, layout);
+        return layout;
+    }
+
+    int chooseBorderColor(int corner) {
+        if (sBorderColorCycle > 0) {
+            return mActiveStrokeColor[corner];
+        } else {
+            return mWorkStrokeColor[corner];
+        }
+    }
+
+    Vector4f chooseBorderColor(int corner, Vector4f uniform) {
+        int color = chooseBorderColor(corner);
+        int a = (color >>> 24);
+        int r = ((color >> 16) & 0xff);
+        int g = ((color >> 8) & 0xff);
+        int b = (color & 0xff);
+        return uniform.set(r / 255f, g / 255f, b / 255f, a / 255f);
+    }
+
+    public void drawTooltip(@Nonnull ItemStack itemStack, @Nonnull GuiGraphicsExtractor gr,
+                            @Nonnull List<ClientTooltipComponent> list, int mouseX, int mouseY,
+                            @Nonnull Font font, int screenWidth, int screenHeight,
+                            float partialX, float partialY, @Nullable ClientTooltipPositioner positioner,
+                            @Nullable Identifier tooltipStyle) {
+        mDraw = true;
+
+        final TooltipLayout layout = obtainLayout(itemStack, list, font, screenWidth, screenHeight);
+        final int tooltipWidth = layout.mTooltipWidth;
+        final int tooltipHeight = layout.mTooltipHeight;
+        final boolean titleGap = layout.mTitleGap;
+        final int titleBreakHeight = layout.mTitleBreakHeight;
+        final int[] widths = layout.mWidths;
+        final int[] heights = layout.mHeights;
 
         float tooltipX;
         float tooltipY;
@@ -703,16 +904,16 @@ public final class TooltipRenderer implements ScrollController.IListener {
         for (int i = 0; i < list.size(); i++) {
             ClientTooltipComponent component = list.get(i);
             if (titleGap && i == 0 && sCenterTitle) {
-                component.extractText(gr, font, drawX + (tooltipWidth - component.getWidth(font)) / 2, drawY);
+                component.extractText(gr, font, drawX + (tooltipWidth - widths[i]) / 2, drawY);
             } else if (mLayoutRTL) {
-                component.extractText(gr, font, drawX + tooltipWidth - component.getWidth(font), drawY);
+                component.extractText(gr, font, drawX + tooltipWidth - widths[i], drawY);
             } else {
                 component.extractText(gr, font, drawX, drawY);
             }
             if (titleGap && i == 0) {
                 drawY += TITLE_GAP;
             }
-            drawY += component.getHeight(font);
+            drawY += heights[i];
         }
 
 
@@ -721,14 +922,14 @@ public final class TooltipRenderer implements ScrollController.IListener {
         for (int i = 0; i < list.size(); i++) {
             ClientTooltipComponent component = list.get(i);
             if (mLayoutRTL) {
-                component.extractImage(font, drawX + tooltipWidth - component.getWidth(font), drawY, tooltipWidth, tooltipHeight, gr);
+                component.extractImage(font, drawX + tooltipWidth - widths[i], drawY, tooltipWidth, tooltipHeight, gr);
             } else {
                 component.extractImage(font, drawX, drawY, tooltipWidth, tooltipHeight, gr);
             }
             if (titleGap && i == 0) {
                 drawY += TITLE_GAP;
             }
-            drawY += component.getHeight(font);
+            drawY += heights[i];
         }
         gr.pose().popMatrix();
     }
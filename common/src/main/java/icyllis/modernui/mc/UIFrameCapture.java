@@ -0,0 +1,313 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2026 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.mc;
+
+import icyllis.arc3d.opengl.GLTexture;
+import icyllis.modernui.annotation.RenderThread;
+import icyllis.modernui.graphics.Bitmap;
+import net.minecraft.util.Util;
+import org.lwjgl.opengl.GL33C;
+import org.lwjgl.system.MemoryUtil;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static icyllis.modernui.mc.ModernUIMod.*;
+
+/**
+ * Reads back the UI layer without stalling the render thread. The layer is copied into a
+ * pixel pack buffer and a fence is inserted, the buffer is mapped in a later frame once
+ * the fence is signaled, then the pixels are unpremultiplied and encoded to PNG on the IO
+ * pool. This is used for screenshots and for capturing a sequence of frames, one image
+ * per game frame so that the sequence keeps the timing of animations.
+ * <p>
+ * If all buffers are in flight or too many images are waiting to be encoded, the frame
+ * is skipped instead of waiting.
+ *
+ * @see UIManager#takeScreenshot()
+ * @see UIManager#captureFrames(int)
+ */
+final class UIFrameCapture {
+
+    private static final int MAX_BUFFERS = 3;
+    // images being unpremultiplied and encoded, each holds a full copy of the layer
+    private static final int MAX_PENDING_ENCODES = 8;
+    // rows per task of unpremultiplying
+    private static final int BAND_HEIGHT = 64;
+
+    // 255 / a in 16.16 fixed point
+    private static final int[] UNPREMUL_SCALE = new int[256];
+
+    static {
+        for (int a = 1; a < 256; a++) {
+            UNPREMUL_SCALE[a] = (255 * 65536 + (a >> 1)) / a;
+        }
+    }
+
+    /**
+     * A pixel pack buffer, in flight if the fence is not 0.
+     */
+    private static final class ReadBuffer {
+
+        int mBuffer;
+        long mCapacity;
+        long mFence;
+        int mWidth;
+        int mHeight;
+        // null for the screenshot, which is saved via dialog
+        Path mPath;
+    }
+
+    private final ArrayList<ReadBuffer> mFreeBuffers = new ArrayList<>(MAX_BUFFERS);
+    private final ArrayDeque<ReadBuffer> mInFlight = new ArrayDeque<>(MAX_BUFFERS);
+    private int mNumBuffers;
+
+    private final AtomicInteger mPendingEncodes = new AtomicInteger();
+
+    private boolean mScreenshotRequested;
+    @Nullable
+    private Path mCaptureDir;
+    private int mCaptureRemaining;
+    private int mCaptureIndex;
+
+    private long mCapturedFrameCount;
+    private long mSkippedFrameCount;
+
+    /**
+     * Save the next frame, a dialog is shown to choose the path.
+     */
+    @RenderThread
+    void requestScreenshot() {
+        mScreenshotRequested = true;
+    }
+
+    /**
+     * Save the next frames to the given directory, as frame_0000.png, frame_0001.png...
+     * A new request replaces the current one.
+     */
+    @RenderThread
+    void requestCapture(@Nonnull Path dir, int count) {
+        mCaptureDir = dir;
+        mCaptureRemaining = count;
+        mCaptureIndex = 0;
+    }
+
+    boolean isCapturing() {
+        return mCaptureRemaining > 0;
+    }
+
+    /**
+     * Called every frame after the layer is rendered, the layer is null if there's
+     * nothing to read or the backend is not OpenGL.
+     */
+    @RenderThread
+    void onFrame(@Nullable GLTexture layer) {
+        pollFinished();
+
+        if (layer == null) {
+            // nothing to save
+            mScreenshotRequested = false;
+        } else {
+            if (mScreenshotRequested) {
+                if (readLayer(layer, null)) {
+                    mScreenshotRequested = false;
+                }
+            }
+            if (mCaptureRemaining > 0) {
+                assert mCaptureDir != null;
+                if (readLayer(layer, mCaptureDir.resolve(
+                        String.format("frame_%04d.png", mCaptureIndex)))) {
+                    mCaptureIndex++;
+                } else {
+                    mSkippedFrameCount++;
+                }
+                if (--mCaptureRemaining == 0) {
+                    LOGGER.info(MARKER, "Captured {} UI frames to {}", mCaptureIndex, mCaptureDir);
+                    mCaptureDir = null;
+                }
+            }
+        }
+
+        if (mInFlight.isEmpty() && !mScreenshotRequested && mCaptureRemaining == 0 &&
+                mNumBuffers > 0) {
+            // idle, don't hold video memory
+            for (ReadBuffer buffer : mFreeBuffers) {
+                GL33C.glDeleteBuffers(buffer.mBuffer);
+            }
+            mFreeBuffers.clear();
+            mNumBuffers = 0;
+        }
+    }
+
+    @RenderThread
+    private boolean readLayer(@Nonnull GLTexture layer, @Nullable Path path) {
+        if (mPendingEncodes.get() >= MAX_PENDING_ENCODES) {
+            return false;
+        }
+        final ReadBuffer buffer;
+        if (!mFreeBuffers.isEmpty()) {
+            buffer = mFreeBuffers.remove(mFreeBuffers.size() - 1);
+        } else if (mNumBuffers < MAX_BUFFERS) {
+            buffer = new ReadBuffer();
+            buffer.mBuffer = GL33C.glGenBuffers();
+            mNumBuffers++;
+        } else {
+            return false;
+        }
+        final int width = layer.getWidth();
+        final int height = layer.getHeight();
+        final long size = (long) width * height * 4;
+
+        GL33C.glBindBuffer(GL33C.GL_PIXEL_PACK_BUFFER, buffer.mBuffer);
+        if (buffer.mCapacity < size) {
+            GL33C.glBufferData(GL33C.GL_PIXEL_PACK_BUFFER, size, GL33C.GL_STREAM_READ);
+            buffer.mCapacity = size;
+        }
+        GL33C.glPixelStorei(GL33C.GL_PACK_ROW_LENGTH, 0);
+        GL33C.glPixelStorei(GL33C.GL_PACK_SKIP_ROWS, 0);
+        GL33C.glPixelStorei(GL33C.GL_PACK_SKIP_PIXELS, 0);
+        GL33C.glPixelStorei(GL33C.GL_PACK_ALIGNMENT, 1);
+        int boundTexture = GL33C.glGetInteger(GL33C.GL_TEXTURE_BINDING_2D);
+        GL33C.glBindTexture(GL33C.GL_TEXTURE_2D, layer.getHandle());
+        // into the bound buffer, returns immediately
+        GL33C.glGetTexImage(GL33C.GL_TEXTURE_2D, 0, GL33C.GL_RGBA, GL33C.GL_UNSIGNED_BYTE, 0L);
+        GL33C.glBindTexture(GL33C.GL_TEXTURE_2D, boundTexture);
+        GL33C.glBindBuffer(GL33C.GL_PIXEL_PACK_BUFFER, 0);
+
+        buffer.mFence = GL33C.glFenceSync(GL33C.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        buffer.mWidth = width;
+        buffer.mHeight = height;
+        buffer.mPath = path;
+        mInFlight.addLast(buffer);
+        return true;
+    }
+
+    // map buffers whose fences are signaled, in order
+    @RenderThread
+    private void pollFinished() {
+        ReadBuffer buffer;
+        while ((buffer = mInFlight.peekFirst()) != null) {
+            int status = GL33C.glClientWaitSync(buffer.mFence, 0, 0);
+            if (status == GL33C.GL_TIMEOUT_EXPIRED) {
+                break;
+            }
+            mInFlight.removeFirst();
+            GL33C.glDeleteSync(buffer.mFence);
+            buffer.mFence = 0;
+            if (status != GL33C.GL_WAIT_FAILED) {
+                onReadFinished(buffer);
+            }
+            buffer.mPath = null;
+            mFreeBuffers.add(buffer);
+        }
+    }
+
+    @RenderThread
+    @SuppressWarnings("resource")
+    private void onReadFinished(@Nonnull ReadBuffer buffer) {
+        final Bitmap bitmap = Bitmap.createBitmap(buffer.mWidth, buffer.mHeight, Bitmap.Format.RGBA_8888);
+        GL33C.glBindBuffer(GL33C.GL_PIXEL_PACK_BUFFER, buffer.mBuffer);
+        long src = GL33C.nglMapBufferRange(GL33C.GL_PIXEL_PACK_BUFFER, 0, bitmap.getSize(),
+                GL33C.GL_MAP_READ_BIT);
+        if (src != 0) {
+            MemoryUtil.memCopy(src, bitmap.getAddress(), bitmap.getSize());
+            GL33C.glUnmapBuffer(GL33C.GL_PIXEL_PACK_BUFFER);
+        }
+        GL33C.glBindBuffer(GL33C.GL_PIXEL_PACK_BUFFER, 0);
+        if (src == 0) {
+            bitmap.close();
+            LOGGER.warn(MARKER, "Failed to map UI frame buffer");
+            return;
+        }
+        mCapturedFrameCount++;
+        final Path path = buffer.mPath;
+        mPendingEncodes.incrementAndGet();
+        Util.ioPool().execute(() -> {
+            try (bitmap) {
+                unpremulAlpha(bitmap);
+                if (path != null) {
+                    Files.createDirectories(path.getParent());
+                    bitmap.saveToPath(Bitmap.SaveFormat.PNG, 0, path);
+                } else {
+                    bitmap.saveDialog(Bitmap.SaveFormat.PNG, 0, null);
+                }
+            } catch (IOException e) {
+                LOGGER.warn(MARKER, "Failed to save UI frame", e);
+            } finally {
+                mPendingEncodes.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Unpremultiply RGBA pixels in place, bands of rows are processed in parallel.
+     * The inner loop has no division and no branch other than clamping, one multiply
+     * per channel with a reciprocal table.
+     */
+    static void unpremulAlpha(@Nonnull Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int rowStride = bitmap.getRowStride();
+        final long base = bitmap.getAddress();
+        // RGBA bytes in memory, alpha is the high byte on little-endian
+        final boolean little = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+        final int alphaShift = little ? 24 : 0;
+        final int colorShift = little ? 0 : 8;
+        final int bands = (height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+        IntStream.range(0, bands).parallel().forEach(band -> {
+            final int[] row = new int[width];
+            final int[] scale = UNPREMUL_SCALE;
+            final int end = Math.min(height, (band + 1) * BAND_HEIGHT);
+            for (int y = band * BAND_HEIGHT; y < end; y++) {
+                final long addr = base + (long) y * rowStride;
+                MemoryUtil.memIntBuffer(addr, width).get(row);
+                for (int x = 0; x < width; x++) {
+                    int col = row[x];
+                    int alpha = (col >>> alphaShift) & 0xFF;
+                    if (alpha == 0xFF) {
+                        continue;
+                    }
+                    int s = scale[alpha];
+                    int rgb = col >>> colorShift;
+                    int c0 = Math.min((((rgb) & 0xFF) * s + 0x8000) >>> 16, 0xFF);
+                    int c1 = Math.min((((rgb >>> 8) & 0xFF) * s + 0x8000) >>> 16, 0xFF);
+                    int c2 = Math.min((((rgb >>> 16) & 0xFF) * s + 0x8000) >>> 16, 0xFF);
+                    row[x] = ((c0 | (c1 << 8) | (c2 << 16)) << colorShift) | (alpha << alphaShift);
+                }
+                MemoryUtil.memIntBuffer(addr, width).put(row);
+            }
+        });
+        bitmap.setPremultiplied(false);
+    }
+
+    void dump(@Nonnull PrintWriter pw) {
+        pw.printf("UI Capture: Buffers=%d, InFlight=%d, PendingEncodes=%d, Captured=%d, Skipped=%d\n",
+                mNumBuffers, mInFlight.size(), mPendingEncodes.get(),
+                mCapturedFrameCount, mSkippedFrameCount);
+    }
+}
@@ -73,12 +73,10 @@ import net.minecraft.network.chat.Component;
 import net.minecraft.resources.Identifier;
 import net.minecraft.sounds.SoundEvent;
 import net.minecraft.sounds.SoundEvents;
-import net.minecraft.util.Util;
 import net.minecraft.util.thread.BlockableEventLoop;
 import net.minecraft.world.inventory.AbstractContainerMenu;
 import net.minecraft.world.item.ItemStack;
 import org.apache.commons.io.output.StringBuilderWriter;
-import org.apache.commons.lang3.tuple.Pair;
 import org.apache.logging.log4j.Marker;
 import org.apache.logging.log4j.MarkerManager;
 import org.jetbrains.annotations.ApiStatus;
@@ -89,9 +87,15 @@ import org.lwjgl.system.MemoryUtil;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import static icyllis.modernui.mc.ModernUIMod.LOGGER;
 import static org.lwjgl.glfw.GLFW.*;
@@ -170,6 +174,13 @@ public abstract class UIManager implements LifecycleOwner {
 
     public final TooltipRenderer mTooltipRenderer = new TooltipRenderer();
 
+    // render thread only
+    private final ArrayList<Recording> mTakenRecordings = new ArrayList<>();
+    private final UIFrameCapture mFrameCapture = new UIFrameCapture();
+    private static final int CAPTURE_FRAME_COUNT = 120;
+    // UI frames recorded ahead of the render thread before the UI thread waits
+    private static final int MAX_PENDING_FRAMES = 2;
+
 
     /// User Interface \\\
 
@@ -263,6 +274,7 @@ public abstract class UIManager implements LifecycleOwner {
             }
             break;
         }
+        mRoot.discardPendingFrames();
         mRoot.mSurface = RefCnt.move(mRoot.mSurface);
         Core.requireUiRecordingContext().unref();
         LOGGER.debug(MARKER, "Quited UI thread");
@@ -617,6 +629,7 @@ public abstract class UIManager implements LifecycleOwner {
         if (action == GLFW_PRESS) {
             switch (event.key()) {
                 case GLFW_KEY_Y -> takeScreenshot();
+                case GLFW_KEY_R -> captureFrames(CAPTURE_FRAME_COUNT);
                 //case GLFW_KEY_H -> open(new TestFragment());
                 //case GLFW_KEY_J -> open(new TestPauseFragment());
                 case GLFW_KEY_U -> {
@@ -710,79 +723,27 @@ public abstract class UIManager implements LifecycleOwner {
         }
     }
 
+    /**
+     * Save the UI layer of the next frame, a dialog is shown to choose the path.
+     * The layer is read back asynchronously.
+     */
     @VisibleForTesting
-    @SuppressWarnings("resource")
+    @RenderThread
     public void takeScreenshot() {
-        @SharedPtr
-        ImageProxy surface = mRoot.getLayer();
-        if (surface == null) {
-            return;
-        }
-        if (!(surface.getImage() instanceof @RawPtr GLTexture layer)) {
-            surface.unref();
-            return;
-        }
-        final int width = layer.getWidth();
-        final int height = layer.getHeight();
-        final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Format.RGBA_8888);
-        bitmap.setPremultiplied(true);
-        GL33C.glPixelStorei(GL33C.GL_PACK_ROW_LENGTH, 0);
-        GL33C.glPixelStorei(GL33C.GL_PACK_SKIP_ROWS, 0);
-        GL33C.glPixelStorei(GL33C.GL_PACK_SKIP_PIXELS, 0);
-        GL33C.glPixelStorei(GL33C.GL_PACK_ALIGNMENT, 1);
-        // SYNC GPU TODO (use transfer buffer?)
-        GL33C.glBindBuffer(GL33C.GL_PIXEL_PACK_BUFFER, 0);
-        int boundTexture = GL33C.glGetInteger(GL33C.GL_TEXTURE_BINDING_2D);
-        GL33C.glBindTexture(GL33C.GL_TEXTURE_2D, layer.getHandle());
-        GL33C.glGetTexImage(GL33C.GL_TEXTURE_2D, 0, GL33C.GL_RGBA, GL33C.GL_UNSIGNED_BYTE,
-                bitmap.getAddress());
-        GL33C.glBindTexture(GL33C.GL_TEXTURE_2D, boundTexture);
-        surface.unref();
-        Util.ioPool().execute(() -> {
-            Bitmap converted = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(), Bitmap.Format.RGBA_8888);
-            converted.setPremultiplied(false);
-            try (bitmap) {
-                // unpremul
-                converted.setPixels(bitmap, 0, 0, 0, 0, bitmap.getWidth(), bitmap.getHeight());
-            }
-            try (converted) {
-                converted.saveDialog(Bitmap.SaveFormat.PNG, 0, null);
-            } catch (IOException e) {
-                LOGGER.warn(MARKER, "Failed to save UI screenshot", e);
-            }
-        });
+        mFrameCapture.requestScreenshot();
     }
 
-    /*@SuppressWarnings("IntegerMultiplicationImplicitCastToLong")
-    static void unpremulAlpha(Bitmap bitmap) {
-        final int width = bitmap.getWidth();
-        final int height = bitmap.getHeight();
-        final int rowStride = bitmap.getRowStride();
-        long addr = bitmap.getAddress();
-        final boolean big = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
-        for (int i = 0; i < height; i++) {
-            for (int j = 0; j < width; j++) {
-                long base = addr + (j << 2);
-                int col = MemoryUtil.memGetInt(base);
-                if (big) {
-                    col = Integer.reverseBytes(col);
-                }
-                int alpha = col >>> 24;
-                if (alpha != 0) {
-                    float a = alpha / 255.0f;
-                    int r = MathUtil.clamp((int) ((col & 0xFF) / a + 0.5f), 0, 0xFF);
-                    int g = MathUtil.clamp((int) (((col >> 8) & 0xFF) / a + 0.5f), 0, 0xFF);
-                    int b = MathUtil.clamp((int) (((col >> 16) & 0xFF) / a + 0.5f), 0, 0xFF);
-                    col = (r) | (g << 8) | (b << 16) | (col & 0xFF000000);
-                    if (big) {
-                        col = Integer.reverseBytes(col);
-                    }
-                    MemoryUtil.memPutInt(base, col);
-                }
-            }
-            addr += rowStride;
-        }
-    }*/
+    /**
+     * Save the UI layer of the next frames to screenshots/modernui, for recording
+     * animations. Frames are skipped if the GPU or disk can't keep up.
+     */
+    @RenderThread
+    public void captureFrames(int count) {
+        Path dir = minecraft.gameDirectory.toPath().resolve("screenshots").resolve("modernui")
+                .resolve(LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd_HH.mm.ss")));
+        mFrameCapture.requestCapture(dir, count);
+        LOGGER.info(MARKER, "Capturing {} UI frames to {}", count, dir);
+    }
 
     protected void changeRadialBlur() {
         if (minecraft.gameRenderer.currentPostEffect() == null) {
@@ -849,6 +810,11 @@ public abstract class UIManager implements LifecycleOwner {
             mFragmentController.getFragmentManager().dump("", null, pw);
         }
 
+        if (mRoot != null) {
+            mRoot.dumpFrameStats(pw);
+            mFrameCapture.dump(pw);
+        }
+
         {
             int coreN = LayoutCache.getSize();
             int coreMem = LayoutCache.getMemoryUsage();
@@ -915,25 +881,28 @@ public abstract class UIManager implements LifecycleOwner {
         @RawPtr
         ImmediateContext context = Core.requireImmediateContext();
 
-        var frameTask = mRoot.swapFrameTask();
-        @SharedPtr
-        Recording recording = frameTask.getLeft();
+        final ArrayList<Recording> recordings = mTakenRecordings;
         @SharedPtr
-        ImageProxy surface = frameTask.getRight();
+        ImageProxy surface = mRoot.swapFrameTasks(recordings);
+        final boolean hasRecording = !recordings.isEmpty();
 
-        if (recording != null) {
+        // replay every frame in order, a frame may depend on uploads of the previous ones
+        for (int i = 0; i < recordings.size(); i++) {
+            @SharedPtr
+            Recording recording = recordings.get(i);
             boolean added = context.addTask(recording);
             recording.close();
             if (!added) {
                 LOGGER.error("Failed to add draw commands");
             }
         }
+        recordings.clear();
 
         if (context.getDevice() instanceof GLDevice glDevice) {
             glDevice.flushRenderCalls();
         } // other backends don't need manual maintenance
 
-        if (recording != null) {
+        if (hasRecording) {
             context.submit();
         } else {
             context.checkForFinishedWork();
@@ -973,7 +942,12 @@ public abstract class UIManager implements LifecycleOwner {
 
 
 
-        if (surface != null) {
+        // nothing to composite if the view tree draws nothing
+        if (surface != null && !mRoot.mLayerEmpty) {
+            if (!hasRecording) {
+                // no view requested a frame, the layer is reused as is
+                mRoot.mReusedFrameCount++;
+            }
             if (surface.getImage() instanceof @RawPtr GLTexture layer) {
                 // draw off-screen target to Minecraft mainTarget (not the default framebuffer)
                 if (mLayerTexture == null || mLayerTexture.source != layer) {
@@ -989,18 +963,7 @@ public abstract class UIManager implements LifecycleOwner {
                     // ensure there's ref before submitting to the GPU
                     mLayerTexture.touch();
                 }
-                gr.nextStratum();
-                MuiModApi.get().submitGuiElementRenderState(gr, new BlitRenderState(
-                        // render target is always premultiplied
-                        RenderPipelines.GUI_TEXTURED_PREMULTIPLIED_ALPHA,
-                        // using the nearest sampler is performant
-                        TextureSetup.singleTexture(mLayerTextureView, RenderSystem.getSamplerCache().getClampToEdge(FilterMode.NEAREST)),
-                        new Matrix3x2f().scale(1.0F / minecraft.getWindow().getGuiScale()),
-                        0, 0, minecraft.getWindow().getWidth(), minecraft.getWindow().getHeight(),
-                        0.0F, 1.0F, 0.0F, 1.0F,
-                        ~0,
-                        /*scissorArea*/ null
-                ));
+                blitLayer(gr, mLayerTextureView);
             } else if (surface.getImage() instanceof @RawPtr VulkanImage layer) {
                 if (ModernUIMod.isVulkanModLoaded()) {
                     if (mLayerTexture_Vulkan == null || !VulkanModIntegration.sameImage(mLayerTexture_Vulkan, layer)) {
@@ -1015,23 +978,14 @@ public abstract class UIManager implements LifecycleOwner {
                     }
                     layer.refCommandBuffer();
                     VulkanModIntegration.syncImageLayoutFromArc3D(mLayerTexture_Vulkan, layer);
-                    gr.nextStratum();
-                    MuiModApi.get().submitGuiElementRenderState(gr, new BlitRenderState(
-                            // render target is always premultiplied
-                            RenderPipelines.GUI_TEXTURED_PREMULTIPLIED_ALPHA,
-                            // using the nearest sampler is performant
-                            TextureSetup.singleTexture(mLayerTextureView_Vulkan, RenderSystem.getSamplerCache().getClampToEdge(FilterMode.NEAREST)),
-                            new Matrix3x2f().scale(1.0F / minecraft.getWindow().getGuiScale()),
-                            0, 0, minecraft.getWindow().getWidth(), minecraft.getWindow().getHeight(),
-                            0.0F, 1.0F, 0.0F, 1.0F,
-                            ~0,
-                            /*scissorArea*/ null
-                    ));
+                    blitLayer(gr, mLayerTextureView_Vulkan);
                     VulkanModIntegration.addFrameOp(layer::unrefCommandBuffer);
                 }
                 mLastSubmittedVulkanLayer = layer;
             }
         }
+        mFrameCapture.onFrame(surface != null && surface.getImage() instanceof @RawPtr GLTexture layer
+                ? layer : null);
         RefCnt.move(surface);
 
         if (mScreen != null) {
@@ -1041,6 +995,25 @@ public abstract class UIManager implements LifecycleOwner {
         }
     }
 
+    /**
+     * Composite the UI layer onto the Minecraft main target.
+     */
+    @RenderThread
+    private void blitLayer(@Nonnull GuiGraphicsExtractor gr, @Nonnull GpuTextureView layerView) {
+        gr.nextStratum();
+        MuiModApi.get().submitGuiElementRenderState(gr, new BlitRenderState(
+                // render target is always premultiplied
+                RenderPipelines.GUI_TEXTURED_PREMULTIPLIED_ALPHA,
+                // using the nearest sampler is performant
+                TextureSetup.singleTexture(layerView, RenderSystem.getSamplerCache().getClampToEdge(FilterMode.NEAREST)),
+                new Matrix3x2f().scale(1.0F / minecraft.getWindow().getGuiScale()),
+                0, 0, minecraft.getWindow().getWidth(), minecraft.getWindow().getHeight(),
+                0.0F, 1.0F, 0.0F, 1.0F,
+                ~0,
+                /*scissorArea*/ null
+        ));
+    }
+
     /**
      * Called when game window size changed, used to re-layout the window.
      */
@@ -1180,6 +1153,7 @@ public abstract class UIManager implements LifecycleOwner {
             if (!minecraft.isRunning() && mRunning) {
                 mRunning = false;
                 mRoot.mHandler.post(this::finish);
+                mRoot.releaseLayer();
                 if (mLayerTexture != null) {
                     mLayerTextureView.close();
                     mLayerTextureView = null;
@@ -1243,6 +1217,24 @@ public abstract class UIManager implements LifecycleOwner {
         LOGGER.debug(MARKER, "Quited Modern UI");
     }
 
+    /**
+     * A frame recorded by the UI thread. The layer is the surface the frame was drawn
+     * to, so a frame recorded before a resize is composited from the old surface.
+     *
+     * @param recording the draw commands
+     * @param layer     the backing target of the surface
+     * @param timeNanos when the frame was recorded
+     * @param empty     whether the view tree draws nothing, see {@link ViewRootImpl#isContentEmpty()}
+     */
+    private record FrameTask(@SharedPtr Recording recording, @SharedPtr ImageProxy layer,
+                             long timeNanos, boolean empty) {
+
+        void close() {
+            recording.close();
+            RefCnt.move(layer);
+        }
+    }
+
     @UiThread
     protected class ViewRootImpl extends ViewRoot {
 
@@ -1252,11 +1244,34 @@ public abstract class UIManager implements LifecycleOwner {
         MenuHelper mContextMenuHelper;
 
         GraniteSurface mSurface;
-        Recording mLastFrameTask;
+
+        /**
+         * Frames recorded by the UI thread and not yet taken by the render thread. Every
+         * frame must be replayed in order, since atlas and texture uploads recorded in a
+         * frame are assumed by later frames. The UI thread keeps recording while the
+         * render thread is behind by less than {@link #MAX_PENDING_FRAMES}, then it waits.
+         */
+        private final ArrayBlockingQueue<FrameTask> mPendingFrames =
+                new ArrayBlockingQueue<>(MAX_PENDING_FRAMES);
 
         private long mLastPurgeNanos;
 
-        ArrayList<MinecraftDrawHandler.Operation> mPendingRawDrawHandlerOperations = new ArrayList<>();
+        // UI thread writes
+        private final LongAdder mPostedFrameCount = new LongAdder();
+        private final LongAdder mStalledFrameCount = new LongAdder();
+        // render thread only
+        @SharedPtr
+        private ImageProxy mLayer;
+        private long mRenderedFrameCount;
+        long mReusedFrameCount;
+        private long mTotalLatencyNanos;
+        private long mMaxLatencyNanos;
+
+        // whether the last taken frame is empty, render thread only
+        boolean mLayerEmpty = true;
+
+        final ConcurrentLinkedQueue<MinecraftDrawHandler.Operation> mPendingRawDrawHandlerOperations =
+                new ConcurrentLinkedQueue<>();
         ArrayList<MinecraftDrawHandler> mRawDrawHandlers = new ArrayList<>();
 
         @Override
@@ -1352,20 +1367,10 @@ public abstract class UIManager implements LifecycleOwner {
         protected void endDrawLocked(@Nonnull Canvas canvas) {
             canvas.restoreToCount(1);
             Recording task = Core.requireUiRecordingContext().snap();
-            synchronized (mRenderLock) {
-                if (mLastFrameTask != null) {
-                    mLastFrameTask.close();
-                }
-                mLastFrameTask = task;
-                try {
-                    mRenderLock.wait();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-                if (mLastFrameTask != null) {
-                    mLastFrameTask.close();
-                }
-                mLastFrameTask = null;
+            if (task != null) {
+                mPostedFrameCount.increment();
+                postFrameTask(new FrameTask(task, RefCnt.create(mSurface.getBackingTarget()),
+                        System.nanoTime(), isContentEmpty()));
             }
             var context = Core.requireUiRecordingContext();
             if (System.nanoTime() - mLastPurgeNanos >= 20_000_000_000L) {
@@ -1374,6 +1379,32 @@ public abstract class UIManager implements LifecycleOwner {
             }
         }
 
+        /**
+         * Returns true if the view tree draws nothing, then the layer is not composited.
+         * The decor and the fragment container are owned by this class, they draw nothing
+         * and never get an overlay. Any other visible view may draw anywhere, e.g. by an
+         * overlay or a shadow, so the whole layer is composited if there is one.
+         */
+        private boolean isContentEmpty() {
+            final WindowGroup decor = mDecor;
+            for (int i = 0, e = decor.getChildCount(); i < e; i++) {
+                View child = decor.getChildAt(i);
+                if (child.getVisibility() != View.VISIBLE) {
+                    continue;
+                }
+                if (child != mFragmentContainerView) {
+                    return false;
+                }
+                final FragmentContainerView container = mFragmentContainerView;
+                for (int j = 0, f = container.getChildCount(); j < f; j++) {
+                    if (container.getChildAt(j).getVisibility() == View.VISIBLE) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
         @Nullable
         @SharedPtr
         private ImageProxy getLayer() {
@@ -1387,37 +1418,88 @@ public abstract class UIManager implements LifecycleOwner {
         }
 
         void addRawDrawHandlerOperation(MinecraftDrawHandler.Operation op) {
-            synchronized (mRenderLock) {
-                mPendingRawDrawHandlerOperations.add(op);
+            mPendingRawDrawHandlerOperations.add(op);
+        }
+
+        /**
+         * Queue a frame for the render thread, wait if the render thread is behind.
+         * The frame is only discarded if the UI is shutting down.
+         */
+        private void postFrameTask(@Nonnull FrameTask task) {
+            if (mPendingFrames.offer(task)) {
+                return;
+            }
+            mStalledFrameCount.increment();
+            try {
+                while (!mPendingFrames.offer(task, 100, TimeUnit.MILLISECONDS)) {
+                    if (!mRunning) {
+                        task.close();
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                task.close();
+            }
+        }
+
+        @UiThread
+        void discardPendingFrames() {
+            for (FrameTask task; (task = mPendingFrames.poll()) != null; ) {
+                task.close();
             }
         }
 
         @RenderThread
-        private Pair<@SharedPtr Recording, @SharedPtr ImageProxy> swapFrameTask() {
-            @SharedPtr
-            Recording recording;
-            @SharedPtr
-            ImageProxy layer;
-            synchronized (mRenderLock) {
-                if (mSurface != null) {
-                    layer = RefCnt.create(mSurface.getBackingTarget());
-                } else {
-                    layer = null;
-                }
-                recording = mLastFrameTask;
-                mLastFrameTask = null;
-                for (int i = 0; i < mPendingRawDrawHandlerOperations.size(); i++) {
-                    var operation = mPendingRawDrawHandlerOperations.get(i);
-                    switch (operation.mOp) {
-                        case MinecraftDrawHandler.Operation.OP_ADD -> mRawDrawHandlers.add(operation.mTarget);
-                        case MinecraftDrawHandler.Operation.OP_REMOVE -> mRawDrawHandlers.remove(operation.mTarget);
-                        case MinecraftDrawHandler.Operation.OP_UPDATE -> operation.mTarget.syncProperties();
-                    }
+        void releaseLayer() {
+            mLayer = RefCnt.move(mLayer);
+        }
+
+        void dumpFrameStats(@Nonnull PrintWriter pw) {
+            long rendered = mRenderedFrameCount;
+            pw.printf("UI Frames: Posted=%d, Rendered=%d, Reused=%d, Stalled=%d, Pending=%d, " +
+                            "AvgLatency=%.2fms, MaxLatency=%.2fms\n",
+                    mPostedFrameCount.sum(), rendered, mReusedFrameCount, mStalledFrameCount.sum(),
+                    mPendingFrames.size(),
+                    rendered > 0 ? mTotalLatencyNanos / 1e6 / rendered : 0.0,
+                    mMaxLatencyNanos / 1e6);
+            pw.println("UI Layer: Empty=" + mLayerEmpty);
+        }
+
+        /**
+         * Take all pending frames in order and the layer of the latest one. The UI thread
+         * only records when a view was invalidated, so no recording is taken if nothing
+         * changed since the last call, then there is nothing to submit and the layer
+         * contents are reused.
+         *
+         * @param recordings receives the recordings in order, the caller takes ownership
+         * @return the layer to composite, or null
+         */
+        @RenderThread
+        @Nullable
+        @SharedPtr
+        private ImageProxy swapFrameTasks(@Nonnull List<@SharedPtr Recording> recordings) {
+            final long now = System.nanoTime();
+            for (FrameTask task; (task = mPendingFrames.poll()) != null; ) {
+                recordings.add(task.recording());
+                // the surface may have been replaced by the UI thread on resize,
+                // the layer always matches the frame
+                mLayer = RefCnt.move(mLayer, task.layer());
+                mLayerEmpty = task.empty();
+                long latency = now - task.timeNanos();
+                mRenderedFrameCount++;
+                mTotalLatencyNanos += latency;
+                mMaxLatencyNanos = Math.max(mMaxLatencyNanos, latency);
+            }
+            MinecraftDrawHandler.Operation operation;
+            while ((operation = mPendingRawDrawHandlerOperations.poll()) != null) {
+                switch (operation.mOp) {
+                    case MinecraftDrawHandler.Operation.OP_ADD -> mRawDrawHandlers.add(operation.mTarget);
+                    case MinecraftDrawHandler.Operation.OP_REMOVE -> mRawDrawHandlers.remove(operation.mTarget);
+                    case MinecraftDrawHandler.Operation.OP_UPDATE -> operation.mTarget.syncProperties();
                 }
-                mPendingRawDrawHandlerOperations.clear();
-                mRenderLock.notifyAll();
             }
-            return Pair.of(recording, layer);
+            return mLayer != null ? RefCnt.create(mLayer) : null;
             /*// wait UI thread, if slow
             synchronized (mRenderLock) {
 
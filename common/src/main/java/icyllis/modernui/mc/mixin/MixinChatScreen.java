@@ -26,8 +26,6 @@ import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 
-import java.util.regex.Matcher;
-
 /**
  * Transform emoji shortcodes.
  */
@@ -40,36 +38,51 @@ public class MixinChatScreen {
     @Unique
     private boolean modernUI_MC$broadcasting;
 
+    // the value when onEdited was last called
+    @Unique
+    private String modernUI_MC$lastValue = "";
+
     @Inject(method = "onEdited", at = @At("HEAD"))
     private void _onEdited(String s, CallbackInfo ci) {
-        if (!modernUI_MC$broadcasting &&
-                ModernUIClient.sEmojiShortcodes &&
-                !input.getValue().startsWith("/") &&
+        if (modernUI_MC$broadcasting) {
+            return;
+        }
+        String value = input.getValue();
+        if (ModernUIClient.sEmojiShortcodes &&
+                !value.startsWith("/") &&
                 (!(input instanceof IModernEditBox) ||
                         !((IModernEditBox) input).modernUI_MC$getUndoManager().isInUndo())) {
-            final FontResourceManager manager = FontResourceManager.getInstance();
-            CYCLE:
-            for (;;) {
-                final Matcher matcher = MuiModApi.EMOJI_SHORTCODE_PATTERN.matcher(input.getValue());
-                while (matcher.find()) {
-                    int start = matcher.start();
-                    int end = matcher.end();
-                    if (end - start > 2) {
-                        String replacement = manager.lookupEmojiShortcode(
-                                input.getValue().substring(start, end)
-                        );
-                        if (replacement != null) {
-                            modernUI_MC$broadcasting = true;
-                            input.setHighlightPos(start);
-                            input.setCursorPosition(end);
-                            input.insertText(replacement);
-                            modernUI_MC$broadcasting = false;
-                            continue CYCLE;
-                        }
-                    }
-                }
-                break;
+            final EmojiShortcodes shortcodes = FontResourceManager.getInstance().getEmojiShortcodes();
+            // only scan around the edited region, shortcodes in the rest were there before
+            final String last = modernUI_MC$lastValue;
+            final int maxCommon = Math.min(value.length(), last.length());
+            int prefix = 0;
+            while (prefix < maxCommon && value.charAt(prefix) == last.charAt(prefix)) {
+                prefix++;
+            }
+            int suffix = 0;
+            while (suffix < maxCommon - prefix &&
+                    value.charAt(value.length() - 1 - suffix) == last.charAt(last.length() - 1 - suffix)) {
+                suffix++;
+            }
+            int from = Math.max(0, prefix - shortcodes.getMaxLength());
+            int to = Math.min(value.length(), value.length() - suffix + shortcodes.getMaxLength());
+            long range;
+            while ((range = shortcodes.find(value, from, to)) != -1) {
+                int start = (int) (range >>> 32);
+                int end = (int) range;
+                modernUI_MC$broadcasting = true;
+                input.setHighlightPos(start);
+                input.setCursorPosition(end);
+                input.insertText(shortcodes.lookup(value, start, end));
+                modernUI_MC$broadcasting = false;
+                String newValue = input.getValue();
+                int delta = newValue.length() - value.length();
+                value = newValue;
+                from = end + delta;
+                to = Math.min(value.length(), to + delta);
             }
         }
+        modernUI_MC$lastValue = value;
     }
 }
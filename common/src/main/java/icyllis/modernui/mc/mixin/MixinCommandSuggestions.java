@@ -79,7 +79,7 @@ public abstract class MixinCommandSuggestions {
 
                 if (candidate.startsWith(":", startPos) && candidate.length() - startPos >= 2) {
                     Collection<String> suggestions = FontResourceManager.getInstance().getEmojiShortcodes(
-                            candidate.charAt(startPos + 1)
+                            candidate.substring(startPos)
                     );
                     if (!suggestions.isEmpty()) {
                         pendingSuggestions = SharedSuggestionProvider.suggest(suggestions,
@@ -0,0 +1,233 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2026 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.mc.text;
+
+import icyllis.modernui.graphics.text.EmojiFont;
+import icyllis.modernui.graphics.text.Font;
+import icyllis.modernui.graphics.text.FontCollection;
+import icyllis.modernui.graphics.text.FontFamily;
+import icyllis.modernui.graphics.text.FontPaint;
+import icyllis.modernui.graphics.text.ShapedText;
+import icyllis.modernui.mc.FontResourceManager;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Precomputed glyph IDs, fonts, offsets and advances of Latin-1 characters for a font
+ * collection, style and size. A style run that only contains supported characters is
+ * laid out by table lookup, bypassing itemization and text shaping.
+ * <p>
+ * Each entry is the output of the full layout path for that single character, so the
+ * result is identical to the full path as long as characters do not interact with each
+ * other. This is checked against the layout tables of the font files when the table is
+ * built: it is disabled if any glyph begins a kerning pair, a ligature or a contextual
+ * lookup, or if the font file was not scanned (e.g. system fonts). Values must also be
+ * multiples of 1/64, then float summation is exact and independent of how the full path
+ * splits the text into pieces, the same applies to the start advance of a run.
+ *
+ * @see TextLayoutProcessor#handleStyleRun
+ */
+final class AsciiLayoutTable {
+
+    /**
+     * Key of the table, anti-aliasing and linear metrics are in flags. Locale is
+     * included because 'locl' may substitute glyphs.
+     */
+    record Key(FontCollection font, int fontStyle, int fontSize, Locale locale, int flags) {
+    }
+
+    // the glyph of each char, glyph ID -1 means the char is not supported
+    private final int[] mGlyphs = new int[256];
+    private final Font[] mFonts = new Font[256];
+    // x, y
+    private final float[] mOffsets = new float[512];
+    private final float[] mAdvances = new float[256];
+
+    private boolean mUsable;
+
+    private AsciiLayoutTable() {
+    }
+
+    /**
+     * Build the table with the given paint, font collection, style and size must have
+     * been set.
+     */
+    @Nonnull
+    static AsciiLayoutTable build(@Nonnull FontPaint paint, int fontStyle) {
+        final AsciiLayoutTable table = new AsciiLayoutTable();
+        final IntArrayList glyphs = new IntArrayList();
+        final ArrayList<Font> fonts = new ArrayList<>();
+        final FloatArrayList positions = new FloatArrayList();
+        final ShapedText.RunConsumer consumer = (piece, start, end, isRtl, p, offsetX) -> {
+            for (int i = 0; i < piece.getGlyphCount(); i++) {
+                fonts.add(piece.getFont(i));
+            }
+            glyphs.addElements(glyphs.size(), piece.getGlyphs());
+            int posIndex = positions.size();
+            positions.addElements(posIndex, piece.getPositions());
+            for (int posEnd = positions.size();
+                 posIndex < posEnd;
+                 posIndex += 2) {
+                positions.elements()[posIndex] += offsetX;
+            }
+        };
+        final char[] buf = new char[1];
+        final float[] advances = new float[1];
+        boolean exact = true;
+        for (int c = 0; c < 256; c++) {
+            table.mGlyphs[c] = -1;
+            // C0, C1 controls and soft hyphen
+            if (c < 0x20 || (c >= 0x7F && c < 0xA0) || c == 0xAD) {
+                continue;
+            }
+            buf[0] = (char) c;
+            advances[0] = 0;
+            glyphs.clear();
+            fonts.clear();
+            positions.clear();
+            float advance = ShapedText.doLayoutRun(
+                    buf, 0, 1, 0, 1,
+                    false, paint, 0,
+                    advances, 0, null, consumer
+            );
+            if (glyphs.size() != 1 || advances[0] != advance) {
+                continue;
+            }
+            table.mGlyphs[c] = glyphs.getInt(0);
+            table.mFonts[c] = fonts.get(0);
+            table.mOffsets[c << 1] = positions.getFloat(0);
+            table.mOffsets[c << 1 | 1] = positions.getFloat(1);
+            table.mAdvances[c] = advance;
+            exact &= isExact(advance) &&
+                    isExact(positions.getFloat(0)) &&
+                    isExact(positions.getFloat(1));
+        }
+        if (!exact) {
+            return table;
+        }
+
+        final List<FontFamily> families = paint.getFont().getFamilies();
+        for (int c = 0; c < 256; c++) {
+            Font font = table.mFonts[c];
+            if (font == null || font instanceof BitmapFont || font instanceof SpaceFont ||
+                    font instanceof EmojiFont) {
+                // no text shaping
+                continue;
+            }
+            BitSet contextual = null;
+            for (FontFamily family : families) {
+                if (family.getClosestMatch(fontStyle) == font) {
+                    contextual = FontResourceManager.getContextualGlyphs(family);
+                    break;
+                }
+            }
+            if (contextual == null || contextual.get(table.mGlyphs[c])) {
+                return table;
+            }
+        }
+        table.mUsable = true;
+        return table;
+    }
+
+    static boolean isExact(float v) {
+        float s = v * 64;
+        return s == (int) s;
+    }
+
+    /**
+     * @return true if the range can be laid out by this table
+     */
+    boolean canLayout(@Nonnull char[] text, int start, int limit) {
+        final int[] glyphs = mGlyphs;
+        for (int i = start; i < limit; i++) {
+            char c = text[i];
+            if (c > 0xFF || glyphs[c] == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean isUsable() {
+        return mUsable;
+    }
+
+    int getGlyph(char c) {
+        return mGlyphs[c];
+    }
+
+    Font getFont(char c) {
+        return mFonts[c];
+    }
+
+    float getOffsetX(char c) {
+        return mOffsets[c << 1];
+    }
+
+    float getOffsetY(char c) {
+        return mOffsets[c << 1 | 1];
+    }
+
+    float getAdvance(char c) {
+        return mAdvances[c];
+    }
+
+    /**
+     * Compute line break boundaries of text that only contains ASCII letters, digits,
+     * spaces and hyphens between letters or digits, the result is the same as UAX #14
+     * for these chars. Breaks are after spaces and after hyphens that are followed by
+     * a letter. The limit is always a boundary.
+     *
+     * @return false if the text contains other chars, and nothing is added
+     */
+    static boolean computeLineBoundaries(@Nonnull char[] text, int start, int limit,
+                                         @Nonnull IntArrayList boundaries) {
+        for (int i = start; i < limit; i++) {
+            char c = text[i];
+            if (c == '-') {
+                if (i == start || i + 1 == limit ||
+                        !isAlnum(text[i - 1]) || !isAlnum(text[i + 1])) {
+                    return false;
+                }
+            } else if (c != ' ' && !isAlnum(c)) {
+                return false;
+            }
+        }
+        for (int i = start + 1; i < limit; i++) {
+            char prev = text[i - 1];
+            char c = text[i];
+            if ((prev == ' ' && c != ' ') ||
+                    (prev == '-' && c > '9')) {
+                boundaries.add(i);
+            }
+        }
+        boundaries.add(limit);
+        return true;
+    }
+
+    private static boolean isAlnum(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+}
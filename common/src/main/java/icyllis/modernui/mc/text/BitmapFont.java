@@ -31,6 +31,7 @@ import icyllis.modernui.graphics.Rect;
 import icyllis.modernui.graphics.text.Font;
 import icyllis.modernui.graphics.text.FontMetricsInt;
 import icyllis.modernui.graphics.text.FontPaint;
+import icyllis.modernui.mc.FontResourceManager;
 import it.unimi.dsi.fastutil.floats.FloatArrayList;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
@@ -38,15 +39,15 @@ import net.minecraft.client.Minecraft;
 import net.minecraft.client.gui.font.providers.BitmapProvider;
 import net.minecraft.client.renderer.texture.DynamicTexture;
 import net.minecraft.resources.Identifier;
-import net.minecraft.server.packs.resources.ResourceManager;
+import net.minecraft.server.packs.resources.ResourceProvider;
 import org.jetbrains.annotations.Unmodifiable;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.zip.CheckedInputStream;
 
 import static icyllis.modernui.mc.ModernUIMod.LOGGER;
 
@@ -100,6 +101,9 @@ public class BitmapFont implements Font, AutoCloseable {
     private final float mScaleFactor;
     private final int[][] mCodepointGrid;
 
+    // identity of the texture and metrics, see FontResourceManager#getFontIdentity
+    private long mIdentity;
+
     private BitmapFont(Identifier name, Bitmap bitmap,
                        int[][] grid, int rows, int cols,
                        int height, int ascent) {
@@ -169,7 +173,7 @@ public class BitmapFont implements Font, AutoCloseable {
     }
 
     @Nonnull
-    public static BitmapFont create(BitmapProvider.Definition definition, ResourceManager manager) {
+    public static BitmapFont create(BitmapProvider.Definition definition, ResourceProvider manager) {
         int height = definition.height();
         int ascent = definition.ascent();
         if (ascent > height) {
@@ -183,14 +187,21 @@ public class BitmapFont implements Font, AutoCloseable {
         int cols = grid[0].length;
         var file = definition.file();
         var location = file.withPrefix("textures/");
-        try (InputStream stream = manager.open(location)) {
+        try (CheckedInputStream stream = FontResourceManager.checkContent(manager.open(location))) {
             //XXX: Minecraft doesn't use texture views, read swizzles may not work,
             // so we always use RGBA (colored)
             var opts = new BitmapFactory.Options();
             opts.inPreferredFormat = Bitmap.Format.RGBA_8888;
             Bitmap bitmap = BitmapFactory.decodeStream(stream, opts);
             Objects.requireNonNull(bitmap);
-            return new BitmapFont(file, bitmap, grid, rows, cols, height, ascent);
+            var font = new BitmapFont(file, bitmap, grid, rows, cols, height, ascent);
+            // glyph advances are computed from pixels
+            long identity = FontResourceManager.getContentIdentity(stream);
+            identity = 31 * identity + Arrays.deepHashCode(grid);
+            identity = 31 * identity + height;
+            identity = 31 * identity + ascent;
+            font.mIdentity = identity;
+            return font;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -402,6 +413,10 @@ public class BitmapFont implements Font, AutoCloseable {
         return fitsInAtlas() ? GlyphManager.BITMAP_SHEET : mTextureName;
     }
 
+    public long getIdentity() {
+        return mIdentity;
+    }
+
     // positive
     public int getAscent() {
         return mAscent;
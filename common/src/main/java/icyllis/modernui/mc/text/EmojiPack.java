@@ -0,0 +1,360 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2026 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.mc.text;
+
+import com.mojang.blaze3d.platform.NativeImage;
+import com.mojang.blaze3d.platform.Transparency;
+import icyllis.modernui.graphics.Bitmap;
+import icyllis.modernui.graphics.BitmapFactory;
+import icyllis.modernui.mc.ModernUIMod;
+import icyllis.modernui.mc.MuiPlatform;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.renderer.texture.MipmapGenerator;
+import net.minecraft.client.renderer.texture.MipmapStrategy;
+import org.lwjgl.system.MemoryUtil;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import static icyllis.modernui.mc.ModernUIMod.LOGGER;
+import static icyllis.modernui.mc.text.GlyphManager.*;
+
+/**
+ * Pre-packed emoji images, raw RGBA pixels of each emoji and its first mip level, indexed
+ * by the 1-based glyph ID assigned in {@link icyllis.modernui.mc.FontResourceManager}.
+ * The file is generated on a background thread when emoji resources change, and then
+ * memory-mapped, so emoji images are copied into the atlas without PNG decoding and
+ * mipmap generation on the render thread. Resources are identified by name, source pack
+ * and size, which are known without reading them, building is aborted if the size of any
+ * of them no longer matches, or when another resource reload starts.
+ * <p>
+ * Layout: header (magic, version, count, size, fingerprint), one flag byte per glyph
+ * padded to 8 bytes, and fixed size records.
+ *
+ * @see GlyphManager#lookupGlyph
+ */
+public final class EmojiPack {
+
+    private static final int MAGIC = 0x4D554550; // MUEP
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    private static final String FILE_PREFIX = "emoji_pack_";
+    private static final String FILE_SUFFIX = ".bin";
+
+    private static final int BASE_SIZE = EMOJI_SIZE * EMOJI_SIZE * 4;
+    private static final int MIP_SIZE = (EMOJI_SIZE / 2) * (EMOJI_SIZE / 2) * 4;
+    private static final int RECORD_SIZE = BASE_SIZE + MIP_SIZE;
+
+    /**
+     * The most frequently used emojis, prefetched after the file is mapped.
+     */
+    private static final int[] COMMON_EMOJIS = {
+            0x1F602, 0x2764, 0x1F923, 0x1F44D, 0x1F62D, 0x1F64F, 0x1F618, 0x1F970,
+            0x1F60D, 0x1F60A, 0x1F389, 0x1F601, 0x1F495, 0x1F97A, 0x1F605, 0x1F525,
+            0x263A, 0x1F926, 0x2665, 0x1F937, 0x1F644, 0x1F606, 0x1F917, 0x1F609,
+            0x1F382, 0x1F914, 0x1F44F, 0x1F642, 0x1F633, 0x1F973, 0x1F60E, 0x1F44C,
+            0x1F49C, 0x1F614, 0x1F4AA, 0x2728, 0x1F496, 0x1F440, 0x1F60B, 0x1F60F,
+            0x1F622, 0x1F449, 0x1F497, 0x1F629, 0x1F4AF, 0x1F339, 0x1F49E, 0x1F388,
+            0x1F499, 0x1F603, 0x1F621, 0x1F490, 0x1F61C, 0x1F648, 0x1F91E, 0x1F604,
+            0x1F924, 0x1F64C, 0x1F92A, 0x1F600, 0x1F48B, 0x1F480, 0x1F447, 0x1F494,
+    };
+
+    private final List<String> mFiles;
+    private final int[] mSizes;
+    private final long mFingerprint;
+    private final Path mPath;
+
+    private volatile ByteBuffer mBuffer;
+    private volatile boolean mBuilding;
+    private volatile boolean mCancelled;
+
+    private EmojiPack(@Nonnull List<String> files, @Nonnull int[] sizes,
+                      long fingerprint, @Nonnull Path path) {
+        mFiles = files;
+        mSizes = sizes;
+        mFingerprint = fingerprint;
+        mPath = path;
+    }
+
+    /**
+     * Open the pack matching the emoji files, or prepare to build it.
+     *
+     * @param files       emoji file names, index + 1 is the glyph ID
+     * @param sizes       size in bytes of each file
+     * @param fingerprint hash of file names, their source packs and sizes
+     */
+    @Nonnull
+    public static EmojiPack open(@Nonnull List<String> files, @Nonnull int[] sizes,
+                                 long fingerprint) {
+        assert files.size() == sizes.length;
+        fingerprint = fingerprint * 31 + EMOJI_SIZE;
+        fingerprint = fingerprint * 31 + VERSION;
+        Path path = MuiPlatform.get().getBootstrapPath()
+                .resolveSibling(FILE_PREFIX + Long.toHexString(fingerprint) + FILE_SUFFIX);
+        var pack = new EmojiPack(List.copyOf(files), sizes, fingerprint, path);
+        if (Files.exists(path)) {
+            pack.map();
+        }
+        return pack;
+    }
+
+    private void map() {
+        try (var channel = FileChannel.open(mPath, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION ||
+                    buffer.getInt(8) != mFiles.size() || buffer.getInt(12) != EMOJI_SIZE ||
+                    buffer.getLong(16) != mFingerprint ||
+                    buffer.capacity() != getFileSize(mFiles.size())) {
+                LOGGER.warn(MARKER, "Invalid emoji pack {}", mPath);
+                return;
+            }
+            mBuffer = buffer;
+            LOGGER.info(MARKER, "Mapped emoji pack {}, {} emojis", mPath, mFiles.size());
+        } catch (IOException e) {
+            LOGGER.warn(MARKER, "Failed to map emoji pack {}", mPath, e);
+        }
+    }
+
+    private static long getRecordOffset(int count) {
+        return HEADER_SIZE + ((count + 7) & ~7);
+    }
+
+    private static long getFileSize(int count) {
+        return getRecordOffset(count) + (long) count * RECORD_SIZE;
+    }
+
+    public boolean isMapped() {
+        return mBuffer != null;
+    }
+
+    /**
+     * Build the pack file on a background thread if it was not mapped, then prefetch
+     * common emojis.
+     */
+    public void startLoading() {
+        if (mFiles.isEmpty() || mBuilding ||
+                getFileSize(mFiles.size()) > Integer.MAX_VALUE) {
+            return;
+        }
+        mBuilding = true;
+        Thread thread = new Thread(() -> {
+            try {
+                if (mBuffer == null) {
+                    build();
+                }
+                prefetch();
+            } catch (CancellationException e) {
+                LOGGER.info(MARKER, "Cancelled building emoji pack {}: {}", mPath, e.getMessage());
+                try {
+                    Files.deleteIfExists(getTempPath());
+                } catch (IOException ignored) {
+                }
+            } catch (Exception e) {
+                LOGGER.warn(MARKER, "Failed to build emoji pack {}", mPath, e);
+            }
+        }, "ModernUI-EmojiPack");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Abort building, called when another resource reload starts. The pack is left
+     * unmapped if it was not built yet.
+     */
+    public void cancelLoading() {
+        mCancelled = true;
+    }
+
+    @Nonnull
+    private Path getTempPath() {
+        return mPath.resolveSibling(mPath.getFileName() + ".tmp");
+    }
+
+    private void build() throws IOException {
+        final int count = mFiles.size();
+        final Path temp = getTempPath();
+        final long start = System.nanoTime();
+        // remove packs of previous emoji sets
+        try (var stream = Files.newDirectoryStream(mPath.getParent(),
+                FILE_PREFIX + "*" + FILE_SUFFIX)) {
+            for (Path p : stream) {
+                try {
+                    Files.deleteIfExists(p);
+                } catch (IOException e) {
+                    // still mapped on some platforms
+                    LOGGER.debug(MARKER, "Failed to delete emoji pack {}", p, e);
+                }
+            }
+        }
+        final var resources = Minecraft.getInstance().getResourceManager();
+        final ByteBuffer flags = ByteBuffer.allocate((int) (getRecordOffset(count) - HEADER_SIZE));
+        final ByteBuffer mipBuffer = ByteBuffer.allocateDirect(MIP_SIZE);
+        final var opts = new BitmapFactory.Options();
+        opts.inPreferredFormat = Bitmap.Format.RGBA_8888;
+        try (var channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int i = 0; i < count; i++) {
+                if (mCancelled) {
+                    throw new CancellationException("resource reload");
+                }
+                String path = "emoji/" + mFiles.get(i);
+                byte[] data;
+                try (InputStream inputStream = resources.open(ModernUIMod.location(path))) {
+                    data = inputStream.readAllBytes();
+                } catch (IOException e) {
+                    LOGGER.debug(MARKER, "Skipped emoji {} in pack", path, e);
+                    continue;
+                }
+                if (data.length != mSizes[i]) {
+                    // pixels would be stamped with a stale fingerprint
+                    throw new CancellationException("emoji " + path + " changed");
+                }
+                try (Bitmap bitmap = BitmapFactory.decodeStream(new ByteArrayInputStream(data), opts)) {
+                    if (bitmap.getWidth() != EMOJI_SIZE || bitmap.getHeight() != EMOJI_SIZE) {
+                        continue;
+                    }
+                    long src = bitmap.getAddress();
+                    @SuppressWarnings("resource") NativeImage[] mips = MipmapGenerator.generateMipLevels(
+                            ModernUIMod.location(path),
+                            new NativeImage[]{new NativeImage(NativeImage.Format.RGBA, EMOJI_SIZE, EMOJI_SIZE,
+                                    false, src)},
+                            1,
+                            MipmapStrategy.MEAN,
+                            0,
+                            Transparency.TRANSPARENT_AND_TRANSLUCENT
+                    );
+                    long offset = getRecordOffset(count) + (long) i * RECORD_SIZE;
+                    writeFully(channel, MemoryUtil.memByteBuffer(src, BASE_SIZE), offset);
+                    mipBuffer.clear();
+                    MemoryUtil.memCopy(mips[1].getPointer(), MemoryUtil.memAddress(mipBuffer), MIP_SIZE);
+                    mips[1].close();
+                    writeFully(channel, mipBuffer, offset + BASE_SIZE);
+                    flags.put(i, (byte) 1);
+                } catch (Exception e) {
+                    LOGGER.debug(MARKER, "Skipped emoji {} in pack", path, e);
+                }
+            }
+            if (channel.size() < getFileSize(count)) {
+                // trailing records may be skipped
+                writeFully(channel, ByteBuffer.allocate(1), getFileSize(count) - 1);
+            }
+            writeFully(channel, flags, HEADER_SIZE);
+            // header is written last, a partial file is never valid
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(EMOJI_SIZE).putLong(mFingerprint);
+            header.flip();
+            writeFully(channel, header, 0);
+        }
+        if (mCancelled) {
+            throw new CancellationException("resource reload");
+        }
+        Files.move(temp, mPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info(MARKER, "Built emoji pack {}, {} emojis in {} ms", mPath, count,
+                (System.nanoTime() - start) / 1000000);
+        map();
+    }
+
+    private static void writeFully(@Nonnull FileChannel channel, @Nonnull ByteBuffer src,
+                                   long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    /**
+     * Touch pages of common emojis, so that the first lookup won't fault.
+     */
+    private void prefetch() {
+        final ByteBuffer buffer = mBuffer;
+        if (buffer == null) {
+            return;
+        }
+        final int count = mFiles.size();
+        int sum = 0;
+        for (int i = 0; i < count; i++) {
+            String file = mFiles.get(i);
+            int cp;
+            try {
+                cp = Integer.parseInt(file.substring(0, file.length() - 4), 16);
+            } catch (NumberFormatException e) {
+                // sequences are not prefetched
+                continue;
+            }
+            for (int common : COMMON_EMOJIS) {
+                if (common == cp) {
+                    long offset = getRecordOffset(count) + (long) i * RECORD_SIZE;
+                    for (long p = offset; p < offset + RECORD_SIZE; p += 4096) {
+                        sum += buffer.get((int) p);
+                    }
+                    break;
+                }
+            }
+        }
+        LOGGER.debug(MARKER, "Prefetched common emojis ({})", sum);
+    }
+
+    /**
+     * Returns the base pixels of the emoji, or null if the pack is not mapped yet or
+     * the emoji is invalid.
+     *
+     * @param glyphId 1-based glyph ID
+     */
+    @Nullable
+    public ByteBuffer getPixels(int glyphId) {
+        final ByteBuffer buffer = mBuffer;
+        final int count = mFiles.size();
+        if (buffer == null || glyphId <= 0 || glyphId > count ||
+                buffer.get(HEADER_SIZE + glyphId - 1) == 0) {
+            return null;
+        }
+        int offset = (int) (getRecordOffset(count) + (long) (glyphId - 1) * RECORD_SIZE);
+        return buffer.slice(offset, BASE_SIZE);
+    }
+
+    /**
+     * Returns the first mip level following the base pixels. The image refers to the
+     * mapped memory and must not be closed.
+     */
+    @Nonnull
+    public static NativeImage getMipImage(@Nonnull ByteBuffer pixels) {
+        return new NativeImage(NativeImage.Format.RGBA, EMOJI_SIZE / 2, EMOJI_SIZE / 2,
+                false, MemoryUtil.memAddress(pixels) + BASE_SIZE);
+    }
+
+    /**
+     * @return the size of mapped file in bytes
+     */
+    public long getMemorySize() {
+        final ByteBuffer buffer = mBuffer;
+        return buffer != null ? buffer.capacity() : 0;
+    }
+}
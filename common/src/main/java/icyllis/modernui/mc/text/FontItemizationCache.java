@@ -0,0 +1,118 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2026 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.mc.text;
+
+import icyllis.modernui.graphics.text.FontCollection;
+import icyllis.modernui.graphics.text.FontFamily;
+import it.unimi.dsi.fastutil.ints.Int2ByteOpenHashMap;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+/**
+ * Caches the fallback family of each code point for a font collection, that is, the
+ * first family that has the glyph, and whether any other family has it too. The BMP is
+ * a dense byte table, supplementary planes are in a sparse map, both are filled lazily
+ * and dropped on reload.
+ * <p>
+ * This is a lookup table only, text layout still itemizes with the full collection,
+ * because the itemizer probes the families itself and may prefer another family by
+ * locale or keep the family of the previous run.
+ */
+final class FontItemizationCache {
+
+    // 0 means not computed, 1..126 is the family index plus one,
+    // the high bit is set if another family also has the glyph
+    private static final byte UNKNOWN = 0;
+    private static final byte MISSING = (byte) 0xFF;
+    private static final int SHARED = 0x80;
+
+    private static final int MAX_FAMILIES = 126;
+
+    private final List<FontFamily> mFamilies;
+    private final byte[] mBmp;
+    private final Int2ByteOpenHashMap mSupplementary;
+
+    FontItemizationCache(@Nonnull FontCollection collection) {
+        mFamilies = collection.getFamilies();
+        if (mFamilies.size() > 1 && mFamilies.size() <= MAX_FAMILIES) {
+            mBmp = new byte[0x10000];
+            mSupplementary = new Int2ByteOpenHashMap();
+        } else {
+            // a single family is found by one probe anyway
+            mBmp = null;
+            mSupplementary = null;
+        }
+    }
+
+    /**
+     * @return the fallback family index of the code point, or -1 if no family has it
+     */
+    int getFamilyIndex(int codePoint) {
+        if (mBmp == null) {
+            return mFamilies.isEmpty() || !mFamilies.get(0).hasGlyph(codePoint) ? -1 : 0;
+        }
+        byte b = getEntry(codePoint);
+        return b == MISSING ? -1 : (b & ~SHARED & 0xFF) - 1;
+    }
+
+    private byte getEntry(int codePoint) {
+        byte b;
+        if (codePoint < 0x10000) {
+            // racy but idempotent
+            b = mBmp[codePoint];
+            if (b == UNKNOWN) {
+                b = computeFamilyIndex(codePoint);
+                mBmp[codePoint] = b;
+            }
+        } else {
+            synchronized (mSupplementary) {
+                b = mSupplementary.get(codePoint);
+                if (b == UNKNOWN) {
+                    b = computeFamilyIndex(codePoint);
+                    mSupplementary.put(codePoint, b);
+                }
+            }
+        }
+        return b;
+    }
+
+    private byte computeFamilyIndex(int codePoint) {
+        for (int i = 0, e = mFamilies.size(); i < e; i++) {
+            if (mFamilies.get(i).hasGlyph(codePoint)) {
+                for (int j = i + 1; j < e; j++) {
+                    if (mFamilies.get(j).hasGlyph(codePoint)) {
+                        return (byte) ((i + 1) | SHARED);
+                    }
+                }
+                return (byte) (i + 1);
+            }
+        }
+        return MISSING;
+    }
+
+    long getMemorySize() {
+        if (mBmp == null) {
+            return 0;
+        }
+        synchronized (mSupplementary) {
+            return mBmp.length + mSupplementary.size() * 5L;
+        }
+    }
+}
@@ -28,9 +28,12 @@ import icyllis.modernui.graphics.text.EmojiFont;
 import icyllis.modernui.graphics.text.Font;
 import icyllis.modernui.graphics.text.FontCollection;
 import icyllis.modernui.graphics.text.OutlineFont;
+import icyllis.modernui.mc.FontResourceManager;
 import icyllis.modernui.mc.ModernUIMod;
 import icyllis.modernui.mc.text.mixin.AccessFontManager;
+import icyllis.modernui.text.TextUtils;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.gui.font.FontManager;
@@ -60,7 +63,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Objects;
 import java.util.Random;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.IntConsumer;
@@ -111,6 +115,25 @@ public class GlyphManager {
     public static volatile boolean sAntiAliasing = true;
     public static volatile boolean sFractionalMetrics = true;
 
+    /**
+     * Config value, whether to rasterize outline glyphs on worker threads.
+     * Glyphs that are not ready are skipped for a frame.
+     */
+    public static volatile boolean sAsyncRasterization = true;
+
+    /**
+     * Number of worker threads for glyph rasterization.
+     */
+    private static final int RASTER_PARALLELISM =
+            Math.clamp(Runtime.getRuntime().availableProcessors() / 2, 1, 4);
+
+    /**
+     * Glyph images up to 64x64 pixels (ARGB) use pooled buffers, larger images
+     * allocate their own buffers.
+     */
+    private static final int POOLED_BUFFER_SIZE = 64 * 64 * 4;
+    private static final int MAX_POOLED_BUFFERS = 256;
+
     /**
      * Emoji font design.
      */
@@ -189,6 +212,46 @@ public class GlyphManager {
 
     private long mLastPurgeNanos;
 
+    private int mUploadBatchDepth;
+
+    /**
+     * Incremented on {@link #reload()}, rasterization results of previous
+     * generations are discarded.
+     */
+    private volatile int mGeneration;
+
+    /**
+     * Incremented at the end of each frame, glyphs record it on lookup and draw.
+     *
+     * @see ModernBakedGlyph#lastUsedFrame
+     */
+    static int sFrameIndex;
+
+    private volatile ExecutorService mRasterExecutor;
+
+    /**
+     * Worker thread local image and graphics.
+     */
+    private final ThreadLocal<GlyphRasterizer> mRasterizers = new ThreadLocal<>();
+
+    /**
+     * Glyph keys that are being rasterized, render thread only.
+     */
+    private final LongOpenHashSet mPendingGlyphs = new LongOpenHashSet();
+
+    /**
+     * Results from worker threads, stitched on render thread.
+     */
+    private final ConcurrentLinkedQueue<RasterResult> mRasterResults = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Results that failed to be stitched because the atlas is full, render thread only.
+     */
+    private final ArrayList<RasterResult> mDeferredResults = new ArrayList<>();
+
+    private final ConcurrentLinkedQueue<ByteBuffer> mBufferPool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mPooledBufferCount = new AtomicInteger();
+
     private final CopyOnWriteArrayList<Consumer<AtlasInvalidationInfo>> mAtlasInvalidationCallbacks
             = new CopyOnWriteArrayList<>();
 
@@ -257,6 +320,13 @@ public class GlyphManager {
         mBitmapFontTable.values().forEach(s -> s.mFastCharMap.clear());
         mBitmapFontTable.clear();
         mBitmapFontTable = new HashMap<>();
+        // in-flight results will be discarded
+        mGeneration++;
+        mPendingGlyphs.clear();
+        for (RasterResult result : mDeferredResults) {
+            releaseBuffer(result.pixels);
+        }
+        mDeferredResults.clear();
         allocateImage();
     }
 
@@ -331,7 +401,7 @@ public class GlyphManager {
             long key = computeGlyphKey(awtFont, glyphId);
             if (mFontAtlas == null) {
                 // we use mipmapping and SDF, so 2px width border around it
-                mFontAtlas = new ModernFontAtlas(Engine.MASK_FORMAT_A8, GLYPH_BORDER, true);
+                mFontAtlas = createAtlas(Engine.MASK_FORMAT_A8, GLYPH_BORDER, true);
                 Minecraft.getInstance().getTextureManager().register(
                         FONT_SHEET, mFontAtlas
                 );
@@ -351,7 +421,7 @@ public class GlyphManager {
             long key = computeEmojiKey(emojiFont, glyphId);
             if (mEmojiAtlas == null) {
                 // we assume emoji images have a border, and no additional border
-                mEmojiAtlas = new ModernFontAtlas(Engine.MASK_FORMAT_ARGB, 0, true);
+                mEmojiAtlas = createAtlas(Engine.MASK_FORMAT_ARGB, 0, true);
                 Minecraft.getInstance().getTextureManager().register(
                         EMOJI_SHEET, mEmojiAtlas
                 );
@@ -374,7 +444,7 @@ public class GlyphManager {
             if (bitmapFont.fitsInAtlas()) {
                 long key = computeBitmapGlyphKey(bitmapFont, glyphId);
                 if (mBitmapAtlas == null) {
-                    mBitmapAtlas = new ModernFontAtlas(Engine.MASK_FORMAT_ARGB, 0, false);
+                    mBitmapAtlas = createAtlas(Engine.MASK_FORMAT_ARGB, 0, false);
                     Minecraft.getInstance().getTextureManager().register(
                             BITMAP_SHEET, mBitmapAtlas
                     );
@@ -398,6 +468,33 @@ public class GlyphManager {
         return null;
     }
 
+    /**
+     * Same as {@link #lookupGlyph(Font, int, int)}, but outline glyphs that are not in
+     * the atlas are rasterized on worker threads. In that case, the returned glyph is
+     * not ready yet (x is {@link Integer#MIN_VALUE}) and should be skipped for this frame,
+     * the same instance will be ready after one or two frames.
+     *
+     * @param font     the font (with style) to which this glyph ID belongs
+     * @param fontSize the font size in device space
+     * @param glyphId  the font specific glyph ID (should be laid-out) to lookup in the atlas
+     * @return the cached glyph sprite or null if the glyph has nothing to render
+     */
+    @Nullable
+    @RenderThread
+    public ModernBakedGlyph lookupGlyphAsync(@Nonnull Font font, int fontSize, int glyphId) {
+        if (!sAsyncRasterization || mFontAtlas == null ||
+                !(font instanceof OutlineFont outlineFont)) {
+            return lookupGlyph(font, fontSize, glyphId);
+        }
+        java.awt.Font awtFont = outlineFont.chooseFont(fontSize);
+        long key = computeGlyphKey(awtFont, glyphId);
+        ModernBakedGlyph glyph = mFontAtlas.getGlyph(key);
+        if (glyph != null && glyph.x == Integer.MIN_VALUE) {
+            requestGlyph(awtFont, glyphId, mFontAtlas, glyph, key);
+        }
+        return glyph;
+    }
+
     @RenderThread
     public AbstractTexture getCurrentTexture(int maskFormat) {
         if (maskFormat == Engine.MASK_FORMAT_A8) {
@@ -470,6 +567,54 @@ public class GlyphManager {
         }
     }
 
+    @RenderThread
+    private ModernFontAtlas createAtlas(int maskFormat, int borderWidth, boolean linearSampling) {
+        var atlas = new ModernFontAtlas(maskFormat, borderWidth, linearSampling);
+        if (mUploadBatchDepth > 0) {
+            atlas.beginBatch();
+        }
+        return atlas;
+    }
+
+    /**
+     * Defer uploads of glyph images stitched from now on, until the matching
+     * {@link #endUploadBatch()}. Glyphs stitched in a batch must not be drawn
+     * before the batch ends.
+     */
+    @RenderThread
+    public void beginUploadBatch() {
+        if (mUploadBatchDepth++ == 0) {
+            if (mFontAtlas != null) {
+                mFontAtlas.beginBatch();
+            }
+            if (mEmojiAtlas != null) {
+                mEmojiAtlas.beginBatch();
+            }
+            if (mBitmapAtlas != null) {
+                mBitmapAtlas.beginBatch();
+            }
+        }
+    }
+
+    /**
+     * Upload glyph images that are stitched since {@link #beginUploadBatch()}.
+     */
+    @RenderThread
+    public void endUploadBatch() {
+        assert mUploadBatchDepth > 0;
+        if (--mUploadBatchDepth == 0) {
+            if (mFontAtlas != null) {
+                mFontAtlas.endBatch();
+            }
+            if (mEmojiAtlas != null) {
+                mEmojiAtlas.endBatch();
+            }
+            if (mBitmapAtlas != null) {
+                mBitmapAtlas.endBatch();
+            }
+        }
+    }
+
     /**
      * Clear unused entries and perform atlas resizing.
      */
@@ -478,6 +623,12 @@ public class GlyphManager {
             mLastPurgeNanos = System.nanoTime();
             compact();
         }
+        beginUploadBatch();
+        try {
+            flushRasterResults();
+        } finally {
+            endUploadBatch();
+        }
         ModernFontAtlas atlas;
         if ((atlas = mFontAtlas) != null && atlas.mResizeRequested) {
             if (atlas.resize()) {
@@ -503,6 +654,16 @@ public class GlyphManager {
                 }
             }
         }
+        if (mFontAtlas != null) {
+            mFontAtlas.onEndFrame();
+        }
+        if (mEmojiAtlas != null) {
+            mEmojiAtlas.onEndFrame();
+        }
+        if (mBitmapAtlas != null) {
+            mBitmapAtlas.onEndFrame();
+        }
+        sFrameIndex++;
     }
 
     public void debug() {
@@ -525,6 +686,12 @@ public class GlyphManager {
         if (mEmojiAtlas != null) {
             mEmojiAtlas.dumpInfo(pw, "EmojiAtlas");
         }
+        EmojiPack emojiPack = FontResourceManager.getInstance().getEmojiPack();
+        if (emojiPack != null) {
+            pw.print("EmojiPack: ");
+            pw.print("Mapped=" + emojiPack.isMapped());
+            pw.println(", MappedSize=" + TextUtils.binaryCompact(emojiPack.getMemorySize()));
+        }
         if (mBitmapAtlas != null) {
             mBitmapAtlas.dumpInfo(pw, "BitmapAtlas");
         }
@@ -602,6 +769,223 @@ public class GlyphManager {
         return glyph;
     }
 
+    /**
+     * Worker thread local resources for rasterization.
+     */
+    private static final class GlyphRasterizer {
+
+        final int mGeneration;
+        final BufferedImage mImage;
+        final Graphics2D mGraphics;
+        final int[] mImageData;
+
+        GlyphRasterizer(int generation) {
+            mGeneration = generation;
+            mImage = new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_INT_ARGB);
+            mGraphics = createGraphics(mImage);
+            mImageData = new int[IMAGE_SIZE * IMAGE_SIZE];
+        }
+    }
+
+    /**
+     * A rasterized glyph image with border, pixels is null if the glyph has nothing to render.
+     */
+    private record RasterResult(ModernFontAtlas atlas, ModernBakedGlyph glyph,
+                                java.awt.Font font, long key, int generation,
+                                int x, int y, int width, int height,
+                                @Nullable ByteBuffer pixels) {
+    }
+
+    @Nonnull
+    private ExecutorService getRasterExecutor() {
+        ExecutorService executor = mRasterExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = mRasterExecutor;
+                if (executor == null) {
+                    final ClassLoader contextClassLoader = GlyphManager.class.getClassLoader();
+                    final AtomicInteger threadIndex = new AtomicInteger();
+                    mRasterExecutor = executor = Executors.newFixedThreadPool(RASTER_PARALLELISM, r -> {
+                        var thread = new Thread(r, "ModernUI-GlyphRaster-" + threadIndex.getAndIncrement());
+                        thread.setDaemon(true);
+                        thread.setContextClassLoader(contextClassLoader);
+                        thread.setUncaughtExceptionHandler((t, e) ->
+                                LOGGER.error(MARKER, "Uncaught exception in {}", t.getName(), e));
+                        return thread;
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Submit an outline glyph to worker threads, if it's not in flight.
+     */
+    @RenderThread
+    private void requestGlyph(@Nonnull java.awt.Font font, int glyphCode,
+                              @Nonnull ModernFontAtlas atlas, @Nonnull ModernBakedGlyph glyph,
+                              long key) {
+        if (!mPendingGlyphs.add(key)) {
+            return;
+        }
+        final int generation = mGeneration;
+        final int maskFormat = atlas.getMaskFormat();
+        try {
+            getRasterExecutor().execute(() -> {
+                RasterResult result;
+                try {
+                    result = rasterizeGlyph(font, glyphCode, atlas, glyph, key, generation, maskFormat);
+                } catch (Throwable e) {
+                    LOGGER.error(MARKER, "Failed to rasterize glyph {} of {}", glyphCode, font, e);
+                    // treat as empty, so the key is no longer pending
+                    result = new RasterResult(atlas, glyph, font, key, generation,
+                            0, 0, 0, 0, null);
+                }
+                mRasterResults.add(result);
+            });
+        } catch (RejectedExecutionException e) {
+            mPendingGlyphs.remove(key);
+        }
+    }
+
+    /**
+     * Rasterize a glyph image on a worker thread, the same as {@link #cacheGlyph}
+     * but the result is not stitched.
+     */
+    @Nonnull
+    private RasterResult rasterizeGlyph(@Nonnull java.awt.Font font, int glyphCode,
+                                        @Nonnull ModernFontAtlas atlas, @Nonnull ModernBakedGlyph glyph,
+                                        long key, int generation, int maskFormat) {
+        GlyphRasterizer rasterizer = mRasterizers.get();
+        if (rasterizer == null || rasterizer.mGeneration != generation) {
+            // AA settings may be changed
+            rasterizer = new GlyphRasterizer(generation);
+            mRasterizers.set(rasterizer);
+        }
+        final Graphics2D graphics = rasterizer.mGraphics;
+        GlyphVector vector = font.createGlyphVector(graphics.getFontRenderContext(), new int[]{glyphCode});
+
+        Rectangle bounds = vector.getPixelBounds(null, 0, 0);
+
+        int borderedWidth = bounds.width + GLYPH_BORDER * 2;
+        int borderedHeight = bounds.height + GLYPH_BORDER * 2;
+        if (bounds.width == 0 || bounds.height == 0 ||
+                borderedWidth > IMAGE_SIZE || borderedHeight > IMAGE_SIZE) {
+            return new RasterResult(atlas, glyph, font, key, generation,
+                    0, 0, 0, 0, null);
+        }
+
+        graphics.drawGlyphVector(vector, GLYPH_BORDER - bounds.x, GLYPH_BORDER - bounds.y);
+        final int[] imageData = rasterizer.mImageData;
+        rasterizer.mImage.getRGB(0, 0, borderedWidth, borderedHeight, imageData, 0, borderedWidth);
+        graphics.clearRect(0, 0, borderedWidth, borderedHeight);
+
+        final int size = borderedWidth * borderedHeight;
+        final ByteBuffer pixels;
+        if (maskFormat == Engine.MASK_FORMAT_A8) {
+            pixels = acquireBuffer(size);
+            for (int i = 0; i < size; i++) {
+                // alpha channel for grayscale texture
+                pixels.put((byte) (imageData[i] >>> 24));
+            }
+        } else {
+            // used only when texture swizzle is broken
+            pixels = acquireBuffer(size * 4);
+            for (int i = 0; i < size; i++) {
+                pixels.put((byte) 255).put((byte) 255).put((byte) 255)
+                        .put((byte) (imageData[i] >>> 24));
+            }
+        }
+        return new RasterResult(atlas, glyph, font, key, generation,
+                bounds.x, bounds.y, bounds.width, bounds.height, pixels.flip());
+    }
+
+    /**
+     * Pack and upload glyph images that are rasterized since last call.
+     */
+    @RenderThread
+    private void flushRasterResults() {
+        if (!mDeferredResults.isEmpty()) {
+            var deferred = mDeferredResults.toArray(new RasterResult[0]);
+            mDeferredResults.clear();
+            for (RasterResult result : deferred) {
+                stitchRasterResult(result);
+            }
+        }
+        RasterResult result;
+        while ((result = mRasterResults.poll()) != null) {
+            stitchRasterResult(result);
+        }
+    }
+
+    @RenderThread
+    private void stitchRasterResult(@Nonnull RasterResult result) {
+        final ModernBakedGlyph glyph = result.glyph;
+        if (result.generation != mGeneration || result.atlas != mFontAtlas ||
+                glyph.x != Integer.MIN_VALUE) {
+            // reloaded, or already cached by lookupGlyph()
+            mPendingGlyphs.remove(result.key);
+            releaseBuffer(result.pixels);
+            return;
+        }
+        final ModernFontAtlas atlas = result.atlas;
+        if (result.pixels == null) {
+            atlas.setNoPixels(result.key);
+            mPendingGlyphs.remove(result.key);
+            return;
+        }
+        if (atlas.mResizeRequested) {
+            // defer to next frame
+            mDeferredResults.add(result);
+            return;
+        }
+        glyph.x = result.x;
+        glyph.y = result.y;
+        glyph.width = (short) result.width;
+        glyph.height = (short) result.height;
+        if (!atlas.stitch(glyph, result.pixels, null)) {
+            // invalidate glyph image and defer to next frame
+            glyph.x = Integer.MIN_VALUE;
+            result.pixels.rewind();
+            mDeferredResults.add(result);
+            return;
+        }
+        mPendingGlyphs.remove(result.key);
+        releaseBuffer(result.pixels);
+        GlyphStrike strike = mFontTable.get(result.font);
+        if (strike != null) {
+            int standardWidth = computeStandardWidth(glyph, result.font.getSize());
+            strike.mFastCharMap
+                    .computeIfAbsent(standardWidth, __ -> new FastCharSet())
+                    .glyphs.add(glyph);
+        }
+    }
+
+    @Nonnull
+    private ByteBuffer acquireBuffer(int size) {
+        if (size <= POOLED_BUFFER_SIZE) {
+            ByteBuffer buffer = mBufferPool.poll();
+            if (buffer != null) {
+                mPooledBufferCount.decrementAndGet();
+                return buffer.clear();
+            }
+            return BufferUtils.createByteBuffer(POOLED_BUFFER_SIZE); // auto GC
+        }
+        return BufferUtils.createByteBuffer(size);
+    }
+
+    private void releaseBuffer(@Nullable ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != POOLED_BUFFER_SIZE) {
+            return;
+        }
+        if (mPooledBufferCount.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            mBufferPool.offer(buffer);
+        } else {
+            mPooledBufferCount.decrementAndGet();
+        }
+    }
+
     @Nullable
     @RenderThread
     private ModernBakedGlyph cacheEmoji(@Nonnull EmojiFont font, int glyphId,
@@ -615,6 +999,21 @@ public class GlyphManager {
             atlas.setNoPixels(key);
             return null;
         }
+        EmojiPack pack = FontResourceManager.getInstance().getEmojiPack();
+        ByteBuffer packed = pack != null ? pack.getPixels(glyphId) : null;
+        if (packed != null) {
+            // no decoding and mipmap generation
+            glyph.x = 0;
+            glyph.y = -EMOJI_ASCENT;
+            glyph.width = EMOJI_SIZE;
+            glyph.height = EMOJI_SIZE;
+            if (!atlas.stitch(glyph, packed, EmojiPack.getMipImage(packed))) {
+                // invalidate glyph image and defer to next frame
+                glyph.x = Integer.MIN_VALUE;
+                return null;
+            }
+            return glyph;
+        }
         String path = "emoji/" + font.getFileName(glyphId);
         var opts = new BitmapFactory.Options();
         opts.inPreferredFormat = Bitmap.Format.RGBA_8888;
@@ -695,34 +1094,40 @@ public class GlyphManager {
 
     private void allocateImage() {
         mImage = new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_INT_ARGB);
-        mGraphics = mImage.createGraphics();
+        mGraphics = createGraphics(mImage);
 
         mImageData = new int[IMAGE_SIZE * IMAGE_SIZE];
         mImageBuffer = BufferUtils.createByteBuffer(mImageData.length * 4); // auto GC
+    }
+
+    @Nonnull
+    private static Graphics2D createGraphics(@Nonnull BufferedImage image) {
+        Graphics2D graphics = image.createGraphics();
 
         // set background color for use with clearRect()
-        mGraphics.setBackground(BG_COLOR);
+        graphics.setBackground(BG_COLOR);
 
         // drawImage() to this buffer will copy all source pixels instead of alpha blending them into the current image
-        mGraphics.setComposite(AlphaComposite.Src);
+        graphics.setComposite(AlphaComposite.Src);
 
         // this only for shape rendering, so we turn it off
-        mGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
 
         if (sAntiAliasing) {
-            mGraphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+            graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
                     RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
         } else {
-            mGraphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+            graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
                     RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
         }
         if (sFractionalMetrics) {
-            mGraphics.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS,
+            graphics.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS,
                     RenderingHints.VALUE_FRACTIONALMETRICS_ON);
         } else {
-            mGraphics.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS,
+            graphics.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS,
                     RenderingHints.VALUE_FRACTIONALMETRICS_OFF);
         }
+        return graphics;
     }
 
     /**
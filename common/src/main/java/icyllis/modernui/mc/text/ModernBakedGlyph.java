@@ -79,6 +79,18 @@ public class ModernBakedGlyph implements BakedGlyph {
      */
     public float v2;
 
+    /**
+     * The frame index of last use, for atlas eviction.
+     *
+     * @see GlyphManager#sFrameIndex
+     */
+    public int lastUsedFrame;
+
+    /**
+     * True if the glyph image was evicted from the atlas, and not stitched again.
+     */
+    boolean evicted;
+
     public ModernBakedGlyph() {
         x = Integer.MIN_VALUE;
     }
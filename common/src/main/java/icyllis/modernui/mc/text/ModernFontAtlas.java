@@ -21,12 +21,13 @@ package icyllis.modernui.mc.text;
 import com.mojang.blaze3d.opengl.GlTexture;
 import com.mojang.blaze3d.platform.NativeImage;
 import com.mojang.blaze3d.platform.TextureUtil;
+import com.mojang.blaze3d.systems.CommandEncoder;
 import com.mojang.blaze3d.systems.RenderSystem;
 import com.mojang.blaze3d.textures.AddressMode;
 import com.mojang.blaze3d.textures.FilterMode;
 import com.mojang.blaze3d.textures.GpuTexture;
+import com.mojang.blaze3d.textures.GpuTextureView;
 import com.mojang.blaze3d.textures.TextureFormat;
-import icyllis.arc3d.core.MathUtil;
 import icyllis.arc3d.core.Rect2i;
 import icyllis.arc3d.core.RectanglePacker;
 import icyllis.arc3d.engine.Engine;
@@ -38,10 +39,12 @@ import icyllis.modernui.core.Core;
 import icyllis.modernui.mc.ModernUIMod;
 import icyllis.modernui.mc.VulkanModIntegration;
 import icyllis.modernui.text.TextUtils;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import net.minecraft.client.renderer.texture.AbstractTexture;
 import net.minecraft.client.renderer.texture.Dumpable;
 import net.minecraft.resources.Identifier;
+import org.lwjgl.system.MemoryUtil;
 
 import javax.annotation.Nonnull;
 import javax.annotation.WillNotClose;
@@ -50,6 +53,8 @@ import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.function.IntUnaryOperator;
 
@@ -64,8 +69,18 @@ import static org.lwjgl.opengl.GL33C.*;
  * The initial texture size is 1024*1024, and each resize double the height and width
  * alternately. For example, 1024*1024 -> 1024*2048 -> 2048*2048.
  * Each 512*512 area becomes a chunk, and has its {@link RectanglePacker}.
+ * Each chunk also indexes the glyphs stitched into it, when the atlas is full, chunks
+ * with the fewest recently used glyphs are evicted first.
  * The OpenGL texture ID will change due to expanding the texture size.
  * <p>
+ * Glyph images are not uploaded when they are stitched, they are copied into a staging
+ * image of the target chunk, and the chunk records a dirty rectangle. {@link #flush()}
+ * merges dirty rectangles of each chunk, as long as the merged area covers no glyph that
+ * was uploaded earlier, and uploads each merged area with one call per mip level. Flush
+ * happens before the texture view is taken for drawing, unless uploads are deferred by
+ * {@link #beginBatch()}, and at the end of each frame. Staging images are pooled and
+ * kept between frames.
+ * <p>
  * For {@link Engine#MASK_FORMAT_ARGB}, we have non-premultiplied alpha.
  *
  * @see GlyphManager
@@ -91,15 +106,94 @@ public class ModernFontAtlas extends AbstractTexture implements Dumpable {
 
     private final List<Chunk> mChunks = new ArrayList<>();
 
+    // chunks that have pending uploads, in stitching order
+    private final List<Chunk> mDirtyChunks = new ArrayList<>();
+    private int mBatchDepth;
+
+    // staging images that are not used by any chunk
+    private final List<Staging> mStagingPool = new ArrayList<>();
+
     // current texture size
     private int mWidth = 0;
     private int mHeight = 0;
 
     private final Rect2i mRect = new Rect2i();
 
-    private record Chunk(int x, int y, RectanglePacker packer) {
+    private static final class Chunk {
+
+        final int x;
+        final int y;
+        final RectanglePacker packer;
+
+        // glyphs stitched into this chunk
+        final ArrayList<ModernBakedGlyph> mGlyphs = new ArrayList<>();
+        // the first glyphs whose images have been uploaded
+        int mUploadedGlyphs;
+        // pending uploads, x y width height in atlas coordinates
+        final IntArrayList mDirtyRects = new IntArrayList();
+        // non-null while there are pending uploads
+        Staging mStaging;
+        // computed by compact()
+        int mHotGlyphs;
+        int mLastUsedFrame;
+
+        Chunk(int x, int y, RectanglePacker packer) {
+            this.x = x;
+            this.y = y;
+            this.packer = packer;
+        }
+
+        void updateHotness(int frame) {
+            int hotGlyphs = 0;
+            int lastUsedFrame = Integer.MIN_VALUE;
+            for (ModernBakedGlyph glyph : mGlyphs) {
+                if (frame - glyph.lastUsedFrame <= HOT_FRAMES) {
+                    hotGlyphs++;
+                }
+                lastUsedFrame = Math.max(lastUsedFrame, glyph.lastUsedFrame);
+            }
+            mHotGlyphs = hotGlyphs;
+            mLastUsedFrame = lastUsedFrame;
+        }
     }
 
+    /**
+     * CPU images of a chunk, in chunk coordinates. Pixels that are not dirty are zero.
+     */
+    private static final class Staging {
+
+        final NativeImage image;
+        @Nullable
+        final NativeImage mipImage;
+
+        Staging(NativeImage.Format format, boolean useMipmaps) {
+            image = new NativeImage(format, CHUNK_SIZE, CHUNK_SIZE, true);
+            mipImage = useMipmaps
+                    ? new NativeImage(format, CHUNK_SIZE / 2, CHUNK_SIZE / 2, true)
+                    : null;
+        }
+
+        long getMemorySize() {
+            long size = (long) CHUNK_SIZE * CHUNK_SIZE;
+            if (mipImage != null) {
+                size += (long) (CHUNK_SIZE / 2) * (CHUNK_SIZE / 2);
+            }
+            return size * image.format().components();
+        }
+
+        void close() {
+            image.close();
+            if (mipImage != null) {
+                mipImage.close();
+            }
+        }
+    }
+
+    /**
+     * Staging images kept in the pool between frames, others are freed after flush.
+     */
+    private static final int MAX_POOLED_STAGING = 4;
+
     //private final ImmediateContext mContext;
     private final int mMaskFormat;
     private final int mBorderWidth;
@@ -116,8 +210,27 @@ public class ModernFontAtlas extends AbstractTexture implements Dumpable {
     //private final boolean mLinearSampling;
     private final boolean mUseMipmaps;
 
-    // overflow and wrap
-    private int mLastCompactChunkIndex;
+    /**
+     * Glyphs used in this number of frames are considered hot.
+     */
+    static final int HOT_FRAMES = 600;
+
+    // coldest first
+    private static final Comparator<Chunk> CHUNK_COLDNESS =
+            Comparator.<Chunk>comparingInt(c -> c.mHotGlyphs)
+                    .thenComparingInt(c -> c.mLastUsedFrame);
+
+    // eviction stats
+    private long mEvictedChunks;
+    private long mEvictedGlyphs;
+    private long mRerasterizedGlyphs;
+
+    // upload stats, the current frame and the last frame
+    private int mUploadCalls;
+    private long mUploadBytes;
+    private int mLastUploadCalls;
+    private long mLastUploadBytes;
+    private long mTotalUploadBytes;
 
     @RenderThread
     public ModernFontAtlas(int maskFormat, int borderWidth,
@@ -171,7 +284,11 @@ public class ModernFontAtlas extends AbstractTexture implements Dumpable {
     @Nullable
     public ModernBakedGlyph getGlyph(long key) {
         // static factory
-        return mGlyphs.computeIfAbsent(key, __ -> new ModernBakedGlyph());
+        ModernBakedGlyph glyph = mGlyphs.computeIfAbsent(key, __ -> new ModernBakedGlyph());
+        if (glyph != null) {
+            glyph.lastUsedFrame = GlyphManager.sFrameIndex;
+        }
+        return glyph;
     }
 
     public void setNoPixels(long key) {
@@ -188,33 +305,26 @@ public class ModernFontAtlas extends AbstractTexture implements Dumpable {
         var rect = mRect;
         rect.set(0, 0,
                 glyph.width + mBorderWidth * 2, glyph.height + mBorderWidth * 2);
-        boolean inserted = false;
+        Chunk target = null;
         for (Chunk chunk : mChunks) {
             if (chunk.packer.addRect(rect)) {
-                inserted = true;
-                rect.offset(chunk.x, chunk.y);
+                target = chunk;
                 break;
             }
         }
-        if (!inserted) {
+        if (target == null) {
             mResizeRequested = true;
             return false;
         }
 
+        rect.offset(target.x, target.y);
         // include border
-        NativeImage.Format format = mMaskFormat == Engine.MASK_FORMAT_ARGB
-                ? NativeImage.Format.RGBA
-                : NativeImage.Format.LUMINANCE;
-        var commandEncoder = RenderSystem.getDevice().createCommandEncoder();
-        commandEncoder.writeToTexture(getTexture(), pixels, format,
-                0, 0, rect.x(), rect.y(),
-                rect.width(), rect.height());
-        if (mUseMipmaps) {
-            assert mipPixels != null;
-            commandEncoder.writeToTexture(getTexture(), mipPixels,
-                    1, 0, rect.x() / 2, rect.y() / 2,
-                    rect.width() / 2, rect.height() / 2,
-                    0, 0);
+        assert !mUseMipmaps || mipPixels != null;
+        enqueue(target, rect, pixels, mUseMipmaps ? mipPixels : null);
+        target.mGlyphs.add(glyph);
+        if (glyph.evicted) {
+            glyph.evicted = false;
+            mRerasterizedGlyphs++;
         }
         /*int rowBytes = rect.width() * ColorInfo.bytesPerPixel(colorType);
         boolean res = ((GLDevice) mContext.getDevice()).writePixels(
@@ -239,6 +349,261 @@ public class ModernFontAtlas extends AbstractTexture implements Dumpable {
         return true;
     }
 
+    private NativeImage.Format getStagingFormat() {
+        return mMaskFormat == Engine.MASK_FORMAT_ARGB
+                ? NativeImage.Format.RGBA
+                : NativeImage.Format.LUMINANCE;
+    }
+
+    /**
+     * Defer uploads of glyph images stitched from now on, until the matching
+     * {@link #endBatch()}, even if the texture view is taken. Batches can be nested.
+     */
+    public void beginBatch() {
+        mBatchDepth++;
+    }
+
+    /**
+     * Ends a batch, the outermost one uploads pending glyph images.
+     */
+    public void endBatch() {
+        assert mBatchDepth > 0;
+        if (--mBatchDepth == 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Uploads pending glyph images first, so that draws never sample them before
+     * they are on the GPU, unless in a batch.
+     */
+    @Nonnull
+    @Override
+    public GpuTextureView getTextureView() {
+        if (mBatchDepth == 0) {
+            flush();
+        }
+        return super.getTextureView();
+    }
+
+    private void enqueue(@NonNull Chunk chunk, @NonNull Rect2i rect, @NonNull ByteBuffer pixels,
+                         @Nullable NativeImage mipPixels) {
+        Staging staging = chunk.mStaging;
+        if (staging == null) {
+            if (mStagingPool.isEmpty()) {
+                staging = new Staging(getStagingFormat(), mUseMipmaps);
+            } else {
+                staging = mStagingPool.removeLast();
+            }
+            chunk.mStaging = staging;
+            mDirtyChunks.add(chunk);
+        }
+        final int bpp = getStagingFormat().components();
+        final int rowBytes = rect.width() * bpp;
+        assert pixels.remaining() >= rowBytes * rect.height();
+        copyRows(MemoryUtil.memAddress(pixels), rowBytes, rowBytes, rect.height(),
+                staging.image, rect.x() - chunk.x, rect.y() - chunk.y);
+        if (mipPixels != null) {
+            copyRows(mipPixels.getPointer(), mipPixels.getWidth() * bpp,
+                    (rect.width() / 2) * bpp, rect.height() / 2,
+                    staging.mipImage, (rect.x() - chunk.x) / 2, (rect.y() - chunk.y) / 2);
+        }
+        final IntArrayList dirtyRects = chunk.mDirtyRects;
+        dirtyRects.add(rect.x());
+        dirtyRects.add(rect.y());
+        dirtyRects.add(rect.width());
+        dirtyRects.add(rect.height());
+    }
+
+    private static void copyRows(long src, long srcRowBytes, int rowBytes, int rows,
+                                 @NonNull NativeImage dst, int dstX, int dstY) {
+        final int bpp = dst.format().components();
+        final long dstRowBytes = (long) dst.getWidth() * bpp;
+        long p = dst.getPointer() + dstY * dstRowBytes + (long) dstX * bpp;
+        for (int i = 0; i < rows; i++) {
+            MemoryUtil.memCopy(src, p, rowBytes);
+            src += srcRowBytes;
+            p += dstRowBytes;
+        }
+    }
+
+    private static void clearRows(@NonNull NativeImage dst, int left, int top, int right, int bottom) {
+        final int bpp = dst.format().components();
+        final long dstRowBytes = (long) dst.getWidth() * bpp;
+        long p = dst.getPointer() + top * dstRowBytes + (long) left * bpp;
+        for (int i = top; i < bottom; i++) {
+            MemoryUtil.memSet(p, 0, (long) (right - left) * bpp);
+            p += dstRowBytes;
+        }
+    }
+
+    /**
+     * Upload pending glyph images through a single command encoder. Dirty rectangles
+     * of each chunk are merged into as few uploads as possible.
+     */
+    @RenderThread
+    public void flush() {
+        if (mDirtyChunks.isEmpty()) {
+            return;
+        }
+        final CommandEncoder commandEncoder = RenderSystem.getDevice().createCommandEncoder();
+        for (Chunk chunk : mDirtyChunks) {
+            flushChunk(commandEncoder, chunk);
+        }
+        mDirtyChunks.clear();
+    }
+
+    private void flushChunk(@NonNull CommandEncoder commandEncoder, @NonNull Chunk chunk) {
+        final int[] rects = chunk.mDirtyRects.elements();
+        final int count = chunk.mDirtyRects.size() >> 2;
+        int left = Integer.MAX_VALUE, top = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE, bottom = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            left = Math.min(left, rects[i << 2]);
+            top = Math.min(top, rects[i << 2 | 1]);
+            right = Math.max(right, rects[i << 2] + rects[i << 2 | 2]);
+            bottom = Math.max(bottom, rects[i << 2 | 1] + rects[i << 2 | 3]);
+        }
+        if (!overlapsUploadedGlyphs(chunk, left, top, right, bottom)) {
+            upload(commandEncoder, chunk, left, top, right, bottom);
+        } else {
+            // the union would overwrite earlier glyphs, merge from top to bottom instead
+            final long[] order = new long[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = (long) rects[i << 2 | 1] << 32 | i;
+            }
+            Arrays.sort(order);
+            int l = 0, t = 0, r = 0, b = 0;
+            for (int k = 0; k < count; k++) {
+                final int i = (int) order[k];
+                final int x = rects[i << 2], y = rects[i << 2 | 1];
+                final int x2 = x + rects[i << 2 | 2], y2 = y + rects[i << 2 | 3];
+                if (k > 0) {
+                    final int ml = Math.min(l, x), mt = Math.min(t, y);
+                    final int mr = Math.max(r, x2), mb = Math.max(b, y2);
+                    if (!overlapsUploadedGlyphs(chunk, ml, mt, mr, mb)) {
+                        l = ml;
+                        t = mt;
+                        r = mr;
+                        b = mb;
+                        continue;
+                    }
+                    upload(commandEncoder, chunk, l, t, r, b);
+                }
+                l = x;
+                t = y;
+                r = x2;
+                b = y2;
+            }
+            upload(commandEncoder, chunk, l, t, r, b);
+        }
+
+        // reset the dirty area and return the staging images
+        final Staging staging = chunk.mStaging;
+        clearRows(staging.image, left - chunk.x, top - chunk.y, right - chunk.x, bottom - chunk.y);
+        if (staging.mipImage != null) {
+            clearRows(staging.mipImage, (left - chunk.x) / 2, (top - chunk.y) / 2,
+                    (right - chunk.x) / 2, (bottom - chunk.y) / 2);
+        }
+        if (mStagingPool.size() < MAX_POOLED_STAGING) {
+            mStagingPool.add(staging);
+        } else {
+            staging.close();
+        }
+        chunk.mStaging = null;
+        chunk.mDirtyRects.clear();
+        chunk.mUploadedGlyphs = chunk.mGlyphs.size();
+    }
+
+    /**
+     * @return true if the area intersects the image of any glyph that was uploaded before
+     */
+    private boolean overlapsUploadedGlyphs(@NonNull Chunk chunk, int left, int top, int right, int bottom) {
+        final ArrayList<ModernBakedGlyph> glyphs = chunk.mGlyphs;
+        for (int i = 0, e = chunk.mUploadedGlyphs; i < e; i++) {
+            final ModernBakedGlyph glyph = glyphs.get(i);
+            // texture coordinates are exact, the size is a power of two
+            final int gl = Math.round(glyph.u1 * mWidth) - mBorderWidth;
+            final int gt = Math.round(glyph.v1 * mHeight) - mBorderWidth;
+            final int gr = Math.round(glyph.u2 * mWidth) + mBorderWidth;
+            final int gb = Math.round(glyph.v2 * mHeight) + mBorderWidth;
+            if (gl < right && gr > left && gt < bottom && gb > top) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void upload(@NonNull CommandEncoder commandEncoder, @NonNull Chunk chunk,
+                        int left, int top, int right, int bottom) {
+        final Staging staging = chunk.mStaging;
+        final int bpp = getStagingFormat().components();
+        commandEncoder.writeToTexture(texture, staging.image,
+                0, 0, left, top,
+                right - left, bottom - top,
+                left - chunk.x, top - chunk.y);
+        mUploadCalls++;
+        mUploadBytes += (long) (right - left) * (bottom - top) * bpp;
+        if (staging.mipImage != null) {
+            // each glyph covers (x / 2, y / 2, width / 2, height / 2) on the mip level
+            final int ml = left / 2, mt = top / 2;
+            final int mr = right / 2, mb = bottom / 2;
+            if (mr > ml && mb > mt) {
+                commandEncoder.writeToTexture(texture, staging.mipImage,
+                        1, 0, ml, mt,
+                        mr - ml, mb - mt,
+                        ml - chunk.x / 2, mt - chunk.y / 2);
+                mUploadCalls++;
+                mUploadBytes += (long) (mr - ml) * (mb - mt) * bpp;
+            }
+        }
+    }
+
+    /**
+     * Called at the end of frame, after {@link #flush()}.
+     */
+    void onEndFrame() {
+        mLastUploadCalls = mUploadCalls;
+        mLastUploadBytes = mUploadBytes;
+        mTotalUploadBytes += mUploadBytes;
+        mUploadCalls = 0;
+        mUploadBytes = 0;
+    }
+
+    public long getEvictedGlyphCount() {
+        return mEvictedGlyphs;
+    }
+
+    /**
+     * @return number of glyphs that are stitched again after being evicted
+     */
+    public long getRerasterizedGlyphCount() {
+        return mRerasterizedGlyphs;
+    }
+
+    public int getLastUploadCalls() {
+        return mLastUploadCalls;
+    }
+
+    public long getLastUploadBytes() {
+        return mLastUploadBytes;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        for (Chunk chunk : mDirtyChunks) {
+            chunk.mStaging.close();
+            chunk.mStaging = null;
+            chunk.mDirtyRects.clear();
+        }
+        mDirtyChunks.clear();
+        for (Staging staging : mStagingPool) {
+            staging.close();
+        }
+        mStagingPool.clear();
+    }
+
     boolean resize() {
         mResizeRequested = false;
         if (texture == null) {
@@ -281,6 +646,9 @@ public class ModernFontAtlas extends AbstractTexture implements Dumpable {
                 vertical = true;
             }
 
+            // deferred uploads must be done before copying
+            flush();
+
             // copy to new texture
             GpuTexture newTexture = createTexture();
             RenderSystem.getDevice().createCommandEncoder()
@@ -301,7 +669,7 @@ public class ModernFontAtlas extends AbstractTexture implements Dumpable {
                 LOGGER.warn(GlyphManager.MARKER, "Failed to copy to new texture");
             }*/
 
-            close();
+            super.close();
             texture = newTexture;
 
             if (vertical) {
@@ -397,7 +765,6 @@ public class ModernFontAtlas extends AbstractTexture implements Dumpable {
             return false;
         }
         assert mChunks.size() > 1;
-        //TODO this implementation is not ideal and we need a review
         double coverage = 0;
         for (Chunk chunk : mChunks) {
             coverage += chunk.packer.getCoverage();
@@ -409,36 +776,36 @@ public class ModernFontAtlas extends AbstractTexture implements Dumpable {
             return false;
         }
         double coverageToClean = Math.max(coverage - maxCoverage, maxCoverage);
-        boolean cleared = false;
-        // clear 16 chunks at most
+        final int frame = GlyphManager.sFrameIndex;
+        for (Chunk chunk : mChunks) {
+            chunk.updateHotness(frame);
+        }
+        Chunk[] chunks = mChunks.toArray(new Chunk[0]);
+        Arrays.sort(chunks, CHUNK_COLDNESS);
+        int clearedChunks = 0;
+        // clear 16 chunks at most, coldest first
         for (int iChunk = 0;
-             iChunk < Math.min(16, mChunks.size()) && coverageToClean > 0;
+             iChunk < chunks.length && clearedChunks < 16 && coverageToClean > 0;
              iChunk++) {
-            // let index overflow and wrap
-            assert MathUtil.isPow2(mChunks.size());
-            int index = (mLastCompactChunkIndex++) & (mChunks.size() - 1);
-            Chunk chunk = mChunks.get(index);
+            Chunk chunk = chunks[iChunk];
             double cc = chunk.packer.getCoverage();
             if (cc == 0) {
                 continue;
             }
             coverageToClean -= cc;
             chunk.packer.clear();
-            float cu1 = (float) chunk.x / mWidth;
-            float cv1 = (float) chunk.y / mHeight;
-            float cu2 = cu1 + (float) CHUNK_SIZE / mWidth;
-            float cv2 = cv1 + (float) CHUNK_SIZE / mHeight;
-            for (var glyph : mGlyphs.values()) {
-                if (glyph == null) continue;
-                if (glyph.u1 >= cu1 && glyph.u2 < cu2 &&
-                        glyph.v1 >= cv1 && glyph.v2 < cv2) {
-                    // invalidate glyph image
-                    glyph.x = Integer.MIN_VALUE;
-                }
+            chunk.mUploadedGlyphs = 0;
+            for (var glyph : chunk.mGlyphs) {
+                // invalidate glyph image
+                glyph.x = Integer.MIN_VALUE;
+                glyph.evicted = true;
             }
-            cleared = true;
+            mEvictedGlyphs += chunk.mGlyphs.size();
+            mEvictedChunks++;
+            chunk.mGlyphs.clear();
+            clearedChunks++;
         }
-        return cleared;
+        return clearedChunks > 0;
     }
 
     @Override
@@ -544,7 +911,25 @@ public class ModernFontAtlas extends AbstractTexture implements Dumpable {
         TextUtils.binaryCompact(pw, memorySize);
         pw.print(" (");
         pw.print(memorySize);
-        pw.println(" bytes)");
+        int pendingUploads = 0;
+        for (Chunk chunk : mDirtyChunks) {
+            pendingUploads += chunk.mDirtyRects.size() >> 2;
+        }
+        pw.print(" bytes), PendingUploads=");
+        pw.print(pendingUploads);
+        pw.print(", StagingMemorySize=");
+        long stagingMemorySize = 0;
+        for (Staging staging : mStagingPool) {
+            stagingMemorySize += staging.getMemorySize();
+        }
+        for (Chunk chunk : mDirtyChunks) {
+            stagingMemorySize += chunk.mStaging.getMemorySize();
+        }
+        TextUtils.binaryCompact(pw, stagingMemorySize);
+        pw.printf(", LastFrameUploads=%d (%d bytes), TotalUploadBytes=%d",
+                mLastUploadCalls, mLastUploadBytes, mTotalUploadBytes);
+        pw.printf(", EvictedChunks=%d, EvictedGlyphs=%d, RerasterizedGlyphs=%d%n",
+                mEvictedChunks, mEvictedGlyphs, mRerasterizedGlyphs);
     }
 
     /**
@@ -54,7 +54,7 @@ public class ModernPreparedText implements Font.PreparedText {
             1, 0, false, 0, 0,
             0, 0, 0, 0, null,
             new ArrayList<>(), false, 0,
-            null, null, null, new ArrayList<>()
+            null, new int[0], 0, new ArrayList<>()
     );
 
     private final float density;
@@ -71,14 +71,15 @@ public class ModernPreparedText implements Font.PreparedText {
     private final boolean hasEffect;
     private final float totalAdvance;
     private final BakedGlyph[] glyphs;
-    private final float[] positions;
-    private final int[] flags;
+    // glyph data of the layout, see TextLayout.packGlyphData
+    private final int[] glyphData;
+    private final int glyphCount;
     private final ArrayList<TextRenderable> customRenderables;
 
     ModernPreparedText(float density, float shadowOffset, boolean dropShadow, int color,
                        int bgColor, float x, float top, float xAdj, float yAdj, ScreenRectangle bounds,
                        ArrayList<TextRun> runs, boolean hasEffect, float totalAdvance,
-                       BakedGlyph[] glyphs, float[] positions, int[] flags,
+                       BakedGlyph[] glyphs, int[] glyphData, int glyphCount,
                        ArrayList<TextRenderable> customRenderables) {
         this.density = density;
         this.shadowOffset = shadowOffset;
@@ -94,8 +95,8 @@ public class ModernPreparedText implements Font.PreparedText {
         this.hasEffect = hasEffect;
         this.totalAdvance = totalAdvance;
         this.glyphs = glyphs;
-        this.positions = positions;
-        this.flags = flags;
+        this.glyphData = glyphData;
+        this.glyphCount = glyphCount;
         this.customRenderables = customRenderables;
     }
 
@@ -113,8 +114,7 @@ public class ModernPreparedText implements Font.PreparedText {
             }
         }
 
-        final var positions = layout.getPositions();
-        final var flags = layout.getGlyphFlags();
+        final int frameIndex = GlyphManager.sFrameIndex;
 
         final float baseline = top + TextLayout.sBaselineOffset;
 
@@ -133,6 +133,10 @@ public class ModernPreparedText implements Font.PreparedText {
                     x + layout.getTotalAdvance() + 1, top + 9);
         }
 
+        final int[] data = layout.getGlyphData();
+        final int flagOffset = layout.getGlyphCount();
+        final int posOffset = flagOffset << 1;
+
         ArrayList<TextRun> textRuns = new ArrayList<>();
         ArrayList<TextRenderable> customRenderables = new ArrayList<>();
         boolean glyphArrayIsCopied = false;
@@ -142,7 +146,7 @@ public class ModernPreparedText implements Font.PreparedText {
             if (vglyph == null) {
                 continue;
             }
-            final int bits = flags[i];
+            final int bits = data[flagOffset + i];
             if (!(vglyph instanceof ModernBakedGlyph glyph)) {
                 // atlas sprite and player skin don't use style
                 int glyphColor = color;
@@ -154,8 +158,8 @@ public class ModernPreparedText implements Font.PreparedText {
                     shadowColor = ARGB.scaleRGB(glyphColor, 0.25f);
                 }
                 var renderable = vglyph.createGlyph(
-                        x + positions[i << 1] + xAdj,
-                        top + positions[i << 1 | 1] + yAdj,
+                        x + Float.intBitsToFloat(data[posOffset + (i << 1)]) + xAdj,
+                        top + Float.intBitsToFloat(data[posOffset + (i << 1 | 1)]) + yAdj,
                         glyphColor, shadowColor,
                         Style.EMPTY,
                         0, 1
@@ -190,9 +194,14 @@ public class ModernPreparedText implements Font.PreparedText {
                 }
                 glyphs[i] = glyph;
             }
+            if (glyph.x == Integer.MIN_VALUE) {
+                // being rasterized, skip for this frame
+                continue;
+            }
+            glyph.lastUsedFrame = frameIndex;
             if ((bits & CharacterStyle.ANY_BITMAP_REPLACEMENT) != 0) {
                 final float scaleFactor;
-                if (layout.getFont(i) instanceof BitmapFont bitmapFont) {
+                if (layout.getFont(data, i) instanceof BitmapFont bitmapFont) {
                     texture = GlyphManager.getInstance().getCurrentTexture(bitmapFont);
                     ascent = -glyph.y / TextLayoutEngine.BITMAP_SCALE;
                     scaleFactor = 1f / TextLayoutEngine.BITMAP_SCALE;
@@ -204,16 +213,16 @@ public class ModernPreparedText implements Font.PreparedText {
                     isColorEmoji = true;
                 }
                 fakeItalic = (bits & CharacterStyle.ITALIC_MASK) != 0;
-                rx = x + positions[i << 1] + glyph.x * scaleFactor;
-                ry = baseline + positions[i << 1 | 1] + glyph.y * scaleFactor;
+                rx = x + Float.intBitsToFloat(data[posOffset + (i << 1)]) + glyph.x * scaleFactor;
+                ry = baseline + Float.intBitsToFloat(data[posOffset + (i << 1 | 1)]) + glyph.y * scaleFactor;
 
                 w = glyph.width * scaleFactor;
                 h = glyph.height * scaleFactor;
                 mode = TextRenderType.MODE_NORMAL; // for color emoji
             } else {
                 mode = preferredMode;
-                rx = x + positions[i << 1] + glyph.x * invDensity;
-                ry = baseline + positions[i << 1 | 1] + glyph.y * invDensity;
+                rx = x + Float.intBitsToFloat(data[posOffset + (i << 1)]) + glyph.x * invDensity;
+                ry = baseline + Float.intBitsToFloat(data[posOffset + (i << 1 | 1)]) + glyph.y * invDensity;
 
                 w = glyph.width * invDensity;
                 h = glyph.height * invDensity;
@@ -280,8 +289,8 @@ public class ModernPreparedText implements Font.PreparedText {
         this.hasEffect = layout.hasEffect();
         this.totalAdvance = layout.getTotalAdvance();
         this.glyphs = glyphs;
-        this.positions = positions;
-        this.flags = flags;
+        this.glyphData = data;
+        this.glyphCount = flagOffset;
         this.customRenderables = customRenderables;
     }
 
@@ -340,7 +349,7 @@ public class ModernPreparedText implements Font.PreparedText {
                             TextureSetup.singleTextureWithLightmap(run.textureView, run.sampler),
                             scissor,
                             x, top, color, dropShadow,
-                            glyphs, positions, flags,
+                            glyphs, glyphData, glyphCount,
                             run.glyphStart, run.glyphEnd,
                             run.isColorEmoji, run.isDirectMask,
                             density, shadowOffset)
@@ -351,8 +360,7 @@ public class ModernPreparedText implements Font.PreparedText {
                     new TextEffectRenderState(pose,
                             scissor,
                             x, top, color, dropShadow,
-                            positions, flags,
-                            totalAdvance, shadowOffset)
+                            glyphData, glyphCount, totalAdvance, shadowOffset)
             );
         }
     }
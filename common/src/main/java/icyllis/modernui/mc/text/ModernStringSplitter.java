@@ -20,6 +20,7 @@ package icyllis.modernui.mc.text;
 
 import icyllis.modernui.graphics.text.LineBreaker;
 import icyllis.modernui.mc.MuiModApi;
+import it.unimi.dsi.fastutil.booleans.BooleanArrayList;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntList;
 import net.minecraft.ChatFormatting;
@@ -31,7 +32,7 @@ import org.apache.commons.lang3.mutable.MutableObject;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.util.Optional;
+import java.util.*;
 import java.util.function.BiConsumer;
 
 /**
@@ -498,6 +499,12 @@ public final class ModernStringSplitter extends StringSplitter {
         }
         width = Math.max(width, 0.0f);
 
+        if (findParagraphEnd(text, 0) < text.length()) {
+            // multiple paragraphs, e.g. book and sign editors
+            computeParagraphLineBreaks(text, width, base, consumer);
+            return;
+        }
+
         final TextLayout layout = mEngine.lookupVanillaLayout(text, base,
                 TextLayoutEngine.COMPUTE_ADVANCES | TextLayoutEngine.COMPUTE_LINE_BOUNDARIES);
         final char[] buf = layout.getTextBuf();
@@ -539,8 +546,84 @@ public final class ModernStringSplitter extends StringSplitter {
             nextBoundaryIndex = lineBreaker.process(layout, buf, paraStart, paraEnd, nextBoundaryIndex);
         }
 
-        final IntList result = lineBreaker.mBreakPoints;
+        dispatchLineBreaks(text, base, lineBreaker.mBreakPoints, consumer);
+    }
+
+    /**
+     * Compute line breaks paragraph by paragraph. Each paragraph is laid out and cached
+     * separately, so editing a long text only re-lays out the paragraph that changed,
+     * other paragraphs are cache hits.
+     * <p>
+     * Formatting codes that are active at the start of a paragraph are prepended to
+     * the paragraph text, the styles are the same as if the full text is laid out.
+     */
+    private void computeParagraphLineBreaks(@Nonnull String text, float width, @Nonnull Style base,
+                                            @Nonnull StringSplitter.LinePosConsumer consumer) {
+        final LineProcessor lineBreaker = new LineProcessor(width);
+        // formatting codes since the last reset
+        final StringBuilder codes = new StringBuilder();
+
+        int stripOffset = 0;
+        int paraEnd;
+        for (int paraStart = 0, e = text.length(); paraStart < e; paraStart = paraEnd) {
+            paraEnd = findParagraphEnd(text, paraStart);
+            final String para;
+            if (codes.isEmpty()) {
+                para = text.substring(paraStart, paraEnd);
+            } else {
+                para = codes + text.substring(paraStart, paraEnd);
+            }
+            final TextLayout layout = mEngine.lookupVanillaLayout(para, base,
+                    TextLayoutEngine.COMPUTE_ADVANCES | TextLayoutEngine.COMPUTE_LINE_BOUNDARIES);
+            final int charCount = layout.getCharCount();
+            if (charCount > 0) {
+                lineBreaker.processParagraph(layout, stripOffset);
+                stripOffset += charCount;
+            }
+            for (int i = paraStart; i < paraEnd; i++) {
+                if (text.charAt(i) == ChatFormatting.PREFIX_CODE && ++i < paraEnd) {
+                    ChatFormatting formatting = MuiModApi.getFormattingByCode(text.charAt(i));
+                    if (formatting == ChatFormatting.RESET) {
+                        codes.setLength(0);
+                    } else if (formatting != null) {
+                        codes.append(ChatFormatting.PREFIX_CODE).append(text.charAt(i));
+                    }
+                }
+            }
+        }
 
+        if (!lineBreaker.mBreakPoints.isEmpty()) {
+            dispatchLineBreaks(text, base, lineBreaker.mBreakPoints, consumer);
+        } else if (stripOffset == 0) {
+            // formatting codes only
+            consumer.accept(base, 0, text.length());
+        }
+    }
+
+    /**
+     * Find the end of the paragraph that starts at the given index, LINE_FEED(U+000A) is
+     * included in the paragraph. Formatting codes are skipped as {@link StringDecomposer} does.
+     *
+     * @return the paragraph end index (exclusive), or text length if it's the last paragraph
+     */
+    private static int findParagraphEnd(@Nonnull String text, int start) {
+        for (int i = start, e = text.length(); i < e; i++) {
+            char c = text.charAt(i);
+            if (c == ChatFormatting.PREFIX_CODE) {
+                i++;
+            } else if (c == '\n') {
+                return i + 1;
+            }
+        }
+        return text.length();
+    }
+
+    /**
+     * Map break points in strip indices back to string indices with formatting codes.
+     */
+    private static void dispatchLineBreaks(@Nonnull String text, @Nonnull Style base,
+                                           @Nonnull IntList result,
+                                           @Nonnull StringSplitter.LinePosConsumer consumer) {
         int mStripIndex = 0;
 
         int mBreakOffsetIndex = 0;
@@ -597,6 +680,59 @@ public final class ModernStringSplitter extends StringSplitter {
         }
         width = Math.max(width, 0.0f);
 
+        if (hasLineFeed(text)) {
+            // multiple paragraphs, e.g. books and markdown, don't lay out the full text
+            final LineIterator it = new LineIterator(text, width, base);
+            while (it.hasNext()) {
+                FormattedText line = it.next();
+                consumer.accept(line, it.isContinuation());
+            }
+            return;
+        }
+        computeParagraphLineBreaks(text, width, base, true, consumer);
+    }
+
+    private static boolean hasLineFeed(@Nonnull FormattedText text) {
+        return text.visit(string -> findParagraphEnd(string, 0) < string.length() ||
+                isLineFeedEnd(string)
+                ? FormattedText.STOP_ITERATION
+                : Optional.empty()).isPresent();
+    }
+
+    /**
+     * @return true if the last char is a LINE_FEED(U+000A) that is not a formatting code
+     */
+    private static boolean isLineFeedEnd(@Nonnull String text) {
+        int i = 0;
+        for (int e = text.length() - 1; i < e; i++) {
+            if (text.charAt(i) == ChatFormatting.PREFIX_CODE) {
+                i++;
+            }
+        }
+        return i == text.length() - 1 && text.charAt(i) == '\n';
+    }
+
+    /**
+     * @return true if the text has no char to lay out
+     */
+    private static boolean isFormattingOnly(@Nonnull String text) {
+        for (int i = 0, e = text.length(); i < e; i += 2) {
+            if (text.charAt(i) != ChatFormatting.PREFIX_CODE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compute line breaks of a paragraph, the paragraph can end with LINE_FEED(U+000A).
+     *
+     * @param last false to omit the empty line after the LINE_FEED, it belongs to
+     *             the next paragraph
+     */
+    private void computeParagraphLineBreaks(@Nonnull FormattedText text, float width, @Nonnull Style base,
+                                            boolean last,
+                                            @Nonnull BiConsumer<FormattedText, Boolean> consumer) {
         final TextLayout layout = mEngine.lookupFormattedLayout(text, base,
                 TextLayoutEngine.COMPUTE_ADVANCES | TextLayoutEngine.COMPUTE_LINE_BOUNDARIES);
         final char[] buf = layout.getTextBuf();
@@ -709,11 +845,148 @@ public final class ModernStringSplitter extends StringSplitter {
                 : visitor.mCollector.getResultOrEmpty();
         if (remainder != null) {
             consumer.accept(remainder, visitor.mNonNewPara);
-        } else if (!visitor.mNonNewPara) {
+        } else if (!visitor.mNonNewPara && last) {
             consumer.accept(FormattedText.EMPTY, Boolean.FALSE);
         }
     }
 
+    /**
+     * Returns an iterator that breaks the text into lines lazily, one paragraph at a time.
+     * Only the paragraph being consumed is laid out, so a scroll view can stop after
+     * the visible lines plus a margin. Lines are the same as
+     * {@link #computeLineBreaks(FormattedText, float, Style, BiConsumer)}.
+     *
+     * @param text  the text to break line
+     * @param width the width limit of the line
+     * @param base  the base style
+     */
+    @Nonnull
+    public LineIterator iterateLines(@Nonnull FormattedText text, float width, @Nonnull Style base) {
+        return new LineIterator(text, Math.max(width, 0.0f), base);
+    }
+
+    /**
+     * Yields lines of a text paragraph by paragraph. Paragraphs are split at LINE_FEED
+     * (U+000A), formatting codes that are active at the split point are prepended to
+     * the rest of the string, as {@link StringDecomposer} does for the full text.
+     */
+    public final class LineIterator implements Iterator<FormattedText> {
+
+        private final float mWidth;
+        private final Style mBase;
+
+        // styled strings of the full text, the string at the index may be partially consumed
+        private final ArrayList<LineComponent> mPieces = new ArrayList<>();
+        private int mPieceIndex;
+
+        // lines of the current paragraph
+        private final ArrayList<FormattedText> mLines = new ArrayList<>();
+        private final BooleanArrayList mContinuations = new BooleanArrayList();
+        private int mLineIndex;
+        private boolean mContinuation;
+
+        private boolean mFinished;
+
+        private LineIterator(@Nonnull FormattedText text, float width, @Nonnull Style base) {
+            mWidth = width;
+            mBase = base;
+            if (text != CommonComponents.EMPTY && text != FormattedText.EMPTY) {
+                text.visit((style, string) -> {
+                    if (!string.isEmpty()) {
+                        mPieces.add(new LineComponent(string, style));
+                    }
+                    return Optional.empty();
+                }, base);
+            }
+            mFinished = mPieces.isEmpty();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (mLineIndex >= mLines.size()) {
+                if (mFinished) {
+                    return false;
+                }
+                nextParagraph();
+            }
+            return true;
+        }
+
+        @Override
+        public FormattedText next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            mContinuation = mContinuations.getBoolean(mLineIndex);
+            return mLines.get(mLineIndex++);
+        }
+
+        /**
+         * @return false if the line returned by {@link #next()} is the first line of a paragraph
+         */
+        public boolean isContinuation() {
+            return mContinuation;
+        }
+
+        private void nextParagraph() {
+            mLines.clear();
+            mContinuations.clear();
+            mLineIndex = 0;
+            final ArrayList<LineComponent> para = new ArrayList<>();
+            boolean last = true;
+            final int count = mPieces.size();
+            while (mPieceIndex < count) {
+                LineComponent piece = mPieces.get(mPieceIndex);
+                String s = piece.text();
+                int paraEnd = findParagraphEnd(s, 0);
+                if (paraEnd < s.length()) {
+                    para.add(new LineComponent(s.substring(0, paraEnd), piece.style()));
+                    // keep the rest, with formatting codes since the last reset
+                    final StringBuilder rest = new StringBuilder();
+                    for (int i = 0; i < paraEnd; i++) {
+                        if (s.charAt(i) == ChatFormatting.PREFIX_CODE && ++i < paraEnd) {
+                            ChatFormatting formatting = MuiModApi.getFormattingByCode(s.charAt(i));
+                            if (formatting == ChatFormatting.RESET) {
+                                rest.setLength(0);
+                            } else if (formatting != null) {
+                                rest.append(ChatFormatting.PREFIX_CODE).append(s.charAt(i));
+                            }
+                        }
+                    }
+                    rest.append(s, paraEnd, s.length());
+                    mPieces.set(mPieceIndex, new LineComponent(rest.toString(), piece.style()));
+                    last = false;
+                    break;
+                }
+                // release consumed strings
+                mPieces.set(mPieceIndex++, null);
+                para.add(piece);
+                if (isLineFeedEnd(s)) {
+                    last = false;
+                    break;
+                }
+            }
+            final FormattedText text = FormattedText.composite(para);
+            if (last) {
+                mFinished = true;
+                boolean empty = true;
+                for (var piece : para) {
+                    empty &= isFormattingOnly(piece.text());
+                }
+                if (empty) {
+                    // empty line after the last LINE_FEED, or formatting codes only
+                    mLines.add(para.isEmpty() ? FormattedText.EMPTY : text);
+                    mContinuations.add(false);
+                    return;
+                }
+            }
+            computeParagraphLineBreaks(text, mWidth, mBase, last, (line, continuation) -> {
+                mLines.add(line);
+                mContinuations.add(continuation.booleanValue());
+            });
+        }
+    }
+
     public static class LineProcessor {
 
         private float mLineWidth;
@@ -725,10 +998,28 @@ public final class ModernStringSplitter extends StringSplitter {
 
         private final IntList mBreakPoints = new IntArrayList();
 
+        /**
+         * Strip index of the current paragraph layout in the full text.
+         */
+        private int mOffset;
+
         public LineProcessor(float lineWidthLimit) {
             mLineWidthLimit = lineWidthLimit;
         }
 
+        /**
+         * Process a layout that contains a single paragraph. Break points are offset by
+         * the given strip index, as if the paragraph is a part of a full layout.
+         *
+         * @param layout the paragraph layout, must have advances and line boundaries
+         * @param offset the strip index of the paragraph in the full text
+         */
+        public void processParagraph(@Nonnull TextLayout layout, int offset) {
+            mOffset = offset;
+            process(layout, layout.getTextBuf(), 0, layout.getCharCount(), 0);
+            mOffset = 0;
+        }
+
         public int process(@Nonnull TextLayout layout, @Nonnull char[] buf,
                            int start, int end, int nextBoundaryIndex) {
             mLineWidth = 0;
@@ -818,7 +1109,7 @@ public final class ModernStringSplitter extends StringSplitter {
 
         // Add a break point
         private void breakLineAt(int offset, float remainingNextLineWidth, float remainingNextCharsAdvance) {
-            mBreakPoints.add(offset);
+            mBreakPoints.add(mOffset + offset);
 
             mLineWidth = remainingNextLineWidth;
             mCharsAdvance = remainingNextCharsAdvance;
@@ -834,7 +1125,7 @@ public final class ModernStringSplitter extends StringSplitter {
         }
 
         private int getPrevLineBreakOffset() {
-            return mBreakPoints.isEmpty() ? 0 : mBreakPoints.getInt(mBreakPoints.size() - 1);
+            return mBreakPoints.isEmpty() ? 0 : Math.max(mBreakPoints.getInt(mBreakPoints.size() - 1) - mOffset, 0);
         }
     }
 
@@ -0,0 +1,217 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2026 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.mc.text;
+
+import icyllis.modernui.graphics.text.Font;
+import icyllis.modernui.graphics.text.FontCollection;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches shaping results of word segments, shared by all {@link TextLayoutProcessor}s.
+ * A style run is split after spaces, and each segment is shaped with itself as context,
+ * so strings that share words (e.g. "Diamond Sword" and "Diamond Pickaxe", or tooltip
+ * lines that differ only by a number) share their shaping results even if the full
+ * layouts are not cached.
+ * <p>
+ * A segment stores everything {@link TextLayoutProcessor} needs to splice it into a
+ * layout: glyph IDs, positions relative to the segment, fonts and grapheme advances.
+ * Values are in device space (not divided by resolution level), the font size is part
+ * of the key.
+ *
+ * @see TextLayoutProcessor#handleStyleRun
+ */
+final class ShapedSegmentCache {
+
+    /**
+     * Segments longer than this are not cached.
+     */
+    static final int MAX_SEGMENT_LENGTH = 32;
+
+    private static final int MAX_ENTRIES = 16384;
+
+    private final ConcurrentHashMap<Key, Segment> mMap = new ConcurrentHashMap<>();
+
+    private final LongAdder mHitCount = new LongAdder();
+    private final LongAdder mMissCount = new LongAdder();
+
+    /**
+     * Shaping result of a segment.
+     *
+     * @param glyphs    glyph IDs in visual order
+     * @param positions x1 y1 x2 y2... relative to the left of the segment
+     * @param fonts     font of each glyph
+     * @param advances  grapheme advances in logical order, length is segment length
+     * @param advance   the total advance of the segment
+     */
+    record Segment(int[] glyphs, float[] positions, Font[] fonts,
+                   float[] advances, float advance) {
+
+        int getMemorySize() {
+            return 56 + 16 * 4 + glyphs.length * 4 + positions.length * 4 +
+                    fonts.length * 4 + advances.length * 4;
+        }
+    }
+
+    /**
+     * Segment key, the lookup key refers to the text array, and the stored key
+     * owns a copy.
+     */
+    static final class Key {
+
+        private char[] mChars;
+        private int mStart;
+        private int mEnd;
+        private FontCollection mFont;
+        private int mFontStyle;
+        private int mFontSize;
+        private Locale mLocale;
+        private boolean mRtl;
+        // linear metrics and anti-aliasing affect advances
+        private int mFlags;
+
+        private int mHash;
+
+        Key() {
+        }
+
+        private Key(@Nonnull Key key) {
+            mChars = Arrays.copyOfRange(key.mChars, key.mStart, key.mEnd);
+            mStart = 0;
+            mEnd = mChars.length;
+            mFont = key.mFont;
+            mFontStyle = key.mFontStyle;
+            mFontSize = key.mFontSize;
+            mLocale = key.mLocale;
+            mRtl = key.mRtl;
+            mFlags = key.mFlags;
+            mHash = key.mHash;
+        }
+
+        @Nonnull
+        Key update(@Nonnull char[] chars, int start, int end,
+                   @Nonnull FontCollection font, int fontStyle, int fontSize,
+                   @Nonnull Locale locale, boolean isRtl, int flags) {
+            mChars = chars;
+            mStart = start;
+            mEnd = end;
+            mFont = font;
+            mFontStyle = fontStyle;
+            mFontSize = fontSize;
+            mLocale = locale;
+            mRtl = isRtl;
+            mFlags = flags;
+            int h = 1;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + chars[i];
+            }
+            h = 31 * h + font.hashCode();
+            h = 31 * h + fontStyle;
+            h = 31 * h + fontSize;
+            h = 31 * h + locale.hashCode();
+            h = 31 * h + (isRtl ? 1 : 0);
+            h = 31 * h + flags;
+            mHash = h;
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key key)) {
+                return false;
+            }
+            return mHash == key.mHash &&
+                    mFontStyle == key.mFontStyle &&
+                    mFontSize == key.mFontSize &&
+                    mRtl == key.mRtl &&
+                    mFlags == key.mFlags &&
+                    mFont.equals(key.mFont) &&
+                    mLocale.equals(key.mLocale) &&
+                    Arrays.equals(mChars, mStart, mEnd, key.mChars, key.mStart, key.mEnd);
+        }
+
+        int getMemorySize() {
+            return 56 + 16 + (mEnd - mStart) * 2;
+        }
+    }
+
+    @Nullable
+    Segment get(@Nonnull Key key) {
+        Segment segment = mMap.get(key);
+        if (segment != null) {
+            mHitCount.increment();
+        } else {
+            mMissCount.increment();
+        }
+        return segment;
+    }
+
+    /**
+     * @param key the lookup key, a copy is stored
+     */
+    void put(@Nonnull Key key, @Nonnull Segment segment) {
+        if (mMap.size() >= MAX_ENTRIES) {
+            // drop a quarter, the iteration order of the hash table is effectively random
+            Iterator<Key> it = mMap.keySet().iterator();
+            for (int i = 0; i < MAX_ENTRIES / 4 && it.hasNext(); i++) {
+                it.next();
+                it.remove();
+            }
+        }
+        mMap.put(new Key(key), segment);
+    }
+
+    void clear() {
+        mMap.clear();
+    }
+
+    int size() {
+        return mMap.size();
+    }
+
+    long getHitCount() {
+        return mHitCount.sum();
+    }
+
+    long getMissCount() {
+        return mMissCount.sum();
+    }
+
+    long getMemorySize() {
+        long size = 0;
+        for (var e : mMap.entrySet()) {
+            size += e.getKey().getMemorySize() + e.getValue().getMemorySize();
+        }
+        return size;
+    }
+}
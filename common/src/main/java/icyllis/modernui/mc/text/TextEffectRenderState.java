@@ -35,7 +35,7 @@ public record TextEffectRenderState(
         Matrix3x2fc pose,
         @Nullable ScreenRectangle scissorArea,
         float x, float top, int color, boolean dropShadow,
-        float[] positions, int[] flags,
+        int[] glyphData, int glyphCount,
         float totalAdvance, float shadowOffset
 ) implements GuiElementRenderState {
     @Override
@@ -57,16 +57,17 @@ public record TextEffectRenderState(
         int r;
         int g;
         int b;
-        var positions = this.positions;
-        var flags = this.flags;
+        final int[] data = this.glyphData;
+        final int flagOffset = this.glyphCount;
+        final int posOffset = flagOffset << 1;
         var pose = this.pose;
         float x = this.x;
         if (isShadow) {
             x += shadowOffset;
             baseline += shadowOffset;
         }
-        for (int i = 0, e = flags.length; i < e; i++) {
-            final int bits = flags[i];
+        for (int i = 0, e = glyphCount; i < e; i++) {
+            final int bits = data[flagOffset + i];
             if ((bits & CharacterStyle.EFFECT_MASK) == 0) {
                 continue;
             }
@@ -84,8 +85,9 @@ public record TextEffectRenderState(
                     b >>= 2;
                 }
             }
-            final float rx1 = x + positions[i << 1];
-            final float rx2 = x + ((i + 1 == e) ? totalAdvance : positions[(i + 1) << 1]);
+            final float rx1 = x + Float.intBitsToFloat(data[posOffset + (i << 1)]);
+            final float rx2 = x + ((i + 1 == e) ? totalAdvance
+                    : Float.intBitsToFloat(data[posOffset + ((i + 1) << 1)]));
             if ((bits & CharacterStyle.STRIKETHROUGH_MASK) != 0) {
                 TextRenderEffect.drawStrikethrough(pose, builder, rx1, rx2, baseline,
                         r, g, b, a);
@@ -28,17 +28,26 @@ import net.minecraft.network.chat.Style;
 import net.minecraft.resources.Identifier;
 import net.minecraft.util.ARGB;
 import org.joml.Matrix4fc;
+import org.lwjgl.system.MemoryUtil;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.lang.ref.Cleaner;
 import java.util.Arrays;
+import java.util.Objects;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The layout contains all glyph layout information and rendering information.
  * <p>
  * This is a Minecraft alternative of {@link icyllis.modernui.graphics.text.ShapedText},
  * {@link icyllis.arc3d.sketch.TextBlob} and {@link icyllis.arc3d.granite.BakedTextBlob}.
+ * <p>
+ * <b>Note:</b> glyph IDs, flags, positions and font indices are packed in one array, so
+ * {@link #getGlyphs()}, {@link #getGlyphFlags()}, {@link #getPositions()} and
+ * {@link #getFontIndices()} return a new array on every call, writes to the result no longer
+ * affect the layout. Use the indexed accessors such as {@link #getPositionX(int)} instead.
  */
 public class TextLayout {
 
@@ -65,68 +74,67 @@ public class TextLayout {
      */
     public static float sBaselineOffset = STANDARD_BASELINE_OFFSET;
 
+    /**
+     * Config value, whether to cache glyph quads for repeated draws of the same text.
+     *
+     * @see TextMesh
+     */
+    public static volatile boolean sCacheTextMesh = false;
+
+    /**
+     * Bytes of off-heap glyph data, and bytes of heap glyph data that were dropped
+     * because an off-heap copy exists.
+     */
+    private static final AtomicLong sNativeMemorySize = new AtomicLong();
+    private static final AtomicLong sDetachedMemorySize = new AtomicLong();
+
+    /**
+     * Frees off-heap glyph data of layouts that became unreachable while detached.
+     */
+    private static final Cleaner sNativeCleaner = Cleaner.create();
+
     /**
      * The copied text buffer without formatting codes in logical order.
      */
     private final char[] mTextBuf;
 
     /**
-     * All baked glyphs for rendering, empty glyphs have been removed from this array.
-     * The order is visually left-to-right (i.e. in visual order). Fast digit chars and
-     * obfuscated chars are {@link icyllis.modernui.mc.text.GlyphManager.FastCharSet}.
+     * Glyph IDs, flags, positions and font indices packed in one slab, see
+     * {@link #packGlyphData}. This is null while the data of a cold cached layout
+     * only exists off-heap.
+     */
+    private volatile int[] mGlyphData;
+    private final int mGlyphCount;
+    private final boolean mHasFontIndices;
+
+    /**
+     * Off-heap glyph data, only exists while {@link #mGlyphData} is null, guarded by this.
      */
-    private final int[] mGlyphs;
+    private transient NativeGlyphData mNativeGlyphData;
+    private transient Cleaner.Cleanable mNativeCleanable;
+
     private final BakedGlyph[] mBakedGlyphs;
     private boolean mFullyBaked;
     private transient BakedGlyph[] mBakedGlyphsForSDF;
     private transient SparseArray<BakedGlyph[]> mBakedGlyphsArray;
 
-    /**
-     * Position x1 y1 x2 y2... relative to the same point, for rendering glyphs.
-     * These values are not offset to glyph additional baseline but aligned.
-     * Same indexing with {@link #mGlyphs}, align to left, in visual order.
-     * <p>
-     * Note the values are scaled to Minecraft GUI coordinates.
-     */
-    private final float[] mPositions;
-
-    private final byte[] mFontIndices;
     private final Font[] mFonts;
 
     /**
      * The length and order are relative to the raw string (with formatting codes).
      * Only grapheme cluster bounds have advances, others are zeros. For example:
-     * [13.57, 0, 14.26, 0, 0]. {@link #mGlyphs}.length may less than grapheme cluster
+     * [13.57, 0, 14.26, 0, 0]. {@link #mGlyphCount} may less than grapheme cluster
      * count (invisible glyphs are removed). Logical order.
      * <p>
      * Note the values are scaled to Minecraft GUI coordinates.
      */
     private final float[] mAdvances;
 
-    /*
-     * lower 24 bits - 0xRRGGBB color
-     * higher 8 bits
-     * |--------|
-     *         1  BOLD
-     *        1   ITALIC
-     *       1    UNDERLINE
-     *      1     STRIKETHROUGH
-     *     1      OBFUSCATED
-     *    1       COLOR_EMOJI_REPLACEMENT
-     *   1        BITMAP_REPLACEMENT
-     *  1         IMPLICIT_COLOR
-     * |--------|
-     */
-    /**
-     * Glyph rendering flags. Same indexing with {@link #mGlyphs}, in visual order.
-     */
-    private final int[] mGlyphFlags;
-
     /*
      * Glyphs to relative char indices of the strip string (without formatting codes).
      * For vanilla layout ({@link VanillaLayoutKey} and {@link TextLayoutEngine#lookupVanillaLayout(String)}),
      * these will be adjusted to string index (with formatting codes).
-     * Same indexing with {@link #mGlyphs}, in visual order.
+     * Same indexing with glyphs, in visual order.
      */
     //private final int[] mCharIndices;
 
@@ -153,20 +161,85 @@ public class TextLayout {
     final int mComputedFlags;
 
     /**
-     * Elapsed time in seconds since last use.
+     * Engine clock in seconds of last use, written by any thread that hits the cache.
+     */
+    private transient volatile int mLastAccessTime;
+
+    /**
+     * Memory size in bytes of this layout and its cache key, when it was inserted.
+     *
+     * @see TextLayoutCache
      */
-    private transient int mTimer = 0;
+    transient int mCacheWeight;
+
+    /**
+     * Text meshes for main and shadow draws, render thread only.
+     */
+    private transient TextMesh[] mMeshes;
+
+    /*
+     * lower 24 bits - 0xRRGGBB color
+     * higher 8 bits
+     * |--------|
+     *         1  BOLD
+     *        1   ITALIC
+     *       1    UNDERLINE
+     *      1     STRIKETHROUGH
+     *     1      OBFUSCATED
+     *    1       COLOR_EMOJI_REPLACEMENT
+     *   1        BITMAP_REPLACEMENT
+     *  1         IMPLICIT_COLOR
+     * |--------|
+     */
+
+    /**
+     * Pack per-glyph data into one slab, the slab is never modified. For n glyphs:
+     * <ul>
+     *     <li>[0, n) glyphs, in visual order</li>
+     *     <li>[n, 2n) glyph flags, same indexing with glyphs</li>
+     *     <li>[2n, 4n) positions x1 y1 x2 y2... as float bits, divided by scale</li>
+     *     <li>[4n, 4n + (n + 3) / 4) font indices, four per int from the lowest byte,
+     *     only if there are multiple fonts</li>
+     * </ul>
+     *
+     * @param count       the number of glyphs, arrays may be larger than this
+     * @param scale       positions are divided by this to Minecraft GUI coordinates
+     * @param fontIndices font index of each glyph, or null if there is only one font
+     * @return a new slab
+     */
+    @Nonnull
+    static int[] packGlyphData(int count, @Nonnull int[] glyphs, @Nonnull int[] glyphFlags,
+                               @Nonnull float[] positions, float scale,
+                               @Nullable byte[] fontIndices) {
+        assert glyphs.length >= count && glyphFlags.length >= count;
+        assert positions.length >= count << 1;
+        final int[] data = new int[getGlyphDataLength(count, fontIndices != null)];
+        System.arraycopy(glyphs, 0, data, 0, count);
+        System.arraycopy(glyphFlags, 0, data, count, count);
+        for (int i = 0, j = count << 1, e = count << 1; i < e; i++, j++) {
+            data[j] = Float.floatToRawIntBits(positions[i] / scale);
+        }
+        if (fontIndices != null) {
+            for (int i = 0, j = count << 2; i < count; i++) {
+                data[j + (i >> 2)] |= (fontIndices[i] & 0xFF) << ((i & 3) << 3);
+            }
+        }
+        return data;
+    }
+
+    static int getGlyphDataLength(int count, boolean hasFontIndices) {
+        return (count << 2) + (hasFontIndices ? (count + 3) >> 2 : 0);
+    }
 
     private TextLayout(@Nonnull TextLayout layout) {
         mTextBuf = layout.mTextBuf;
-        mGlyphs = layout.mGlyphs;
+        mGlyphData = layout.glyphData();
+        mGlyphCount = layout.mGlyphCount;
+        mHasFontIndices = layout.mHasFontIndices;
         mBakedGlyphs = layout.mBakedGlyphs;
         mFullyBaked = layout.mFullyBaked;
-        mPositions = layout.mPositions;
-        mFontIndices = layout.mFontIndices;
         mFonts = layout.mFonts;
         mAdvances = layout.mAdvances;
-        mGlyphFlags = layout.mGlyphFlags;
         mLineBoundaries = layout.mLineBoundaries;
         mTotalAdvance = layout.mTotalAdvance;
         mHasEffect = layout.mHasEffect;
@@ -182,15 +255,28 @@ public class TextLayout {
                @Nonnull int[] glyphFlags, @Nullable int[] lineBoundaries,
                float totalAdvance, boolean hasEffect, boolean hasColorEmoji,
                int createdResLevel, int computedFlags) {
+        this(textBuf, packGlyphData(glyphs.length, glyphs, glyphFlags, positions, 1, fontIndices),
+                glyphs.length, fontIndices != null, initialBakedGlyphs, fonts, advances,
+                lineBoundaries, totalAdvance, hasEffect, hasColorEmoji, createdResLevel, computedFlags);
+    }
+
+    /**
+     * @param glyphData the slab from {@link #packGlyphData}
+     */
+    TextLayout(@Nonnull char[] textBuf, @Nonnull int[] glyphData, int glyphCount,
+               boolean hasFontIndices, @Nonnull BakedGlyph[] initialBakedGlyphs,
+               @Nonnull Font[] fonts, @Nullable float[] advances,
+               @Nullable int[] lineBoundaries,
+               float totalAdvance, boolean hasEffect, boolean hasColorEmoji,
+               int createdResLevel, int computedFlags) {
         mTextBuf = textBuf;
-        mGlyphs = glyphs;
+        mGlyphData = glyphData;
+        mGlyphCount = glyphCount;
+        mHasFontIndices = hasFontIndices;
         mBakedGlyphs = initialBakedGlyphs;
         mFullyBaked = initialBakedGlyphs.length == 0;
-        mPositions = positions;
-        mFontIndices = fontIndices;
         mFonts = fonts;
         mAdvances = advances;
-        mGlyphFlags = glyphFlags;
         mLineBoundaries = lineBoundaries;
         mTotalAdvance = totalAdvance;
         mHasEffect = hasEffect;
@@ -199,9 +285,8 @@ public class TextLayout {
         mComputedFlags = computedFlags;
         assert mAdvances == null ||
                 mTextBuf.length == mAdvances.length;
-        assert mGlyphs.length * 2 == mPositions.length;
-        assert mGlyphs.length == mGlyphFlags.length;
-        assert mGlyphs.length == mBakedGlyphs.length;
+        assert glyphData.length == getGlyphDataLength(glyphCount, hasFontIndices);
+        assert glyphCount == mBakedGlyphs.length;
     }
 
     /**
@@ -215,48 +300,144 @@ public class TextLayout {
     }
 
     /**
-     * Cache access.
+     * Cache access. Record the engine clock as the last access time.
      *
-     * @return this with timer reset
+     * @param now the engine clock in seconds
      */
-    @Nonnull
-    TextLayout get() {
+    void touch(int now) {
         assert this != EMPTY;
-        mTimer = 0;
-        return this;
+        // racy but benign, any recent value keeps the entry alive
+        if (mLastAccessTime != now) {
+            mLastAccessTime = now;
+        }
     }
 
     /**
-     * Cache access. Increment internal timer by one (second).
+     * Cache eviction.
      *
      * @return true to recycle
      */
-    boolean tick(int lifespan) {
+    boolean isExpired(int now, int lifespan) {
         assert this != EMPTY;
         // Evict if not used in 'lifespan' seconds
-        return ++mTimer > lifespan;
+        return now - mLastAccessTime > lifespan;
+    }
+
+    /**
+     * Returns glyph data on heap, restore it from the off-heap copy if it was detached.
+     * The arrays stay valid even if the layout is detached again later.
+     */
+    @Nonnull
+    private int[] glyphData() {
+        int[] data = mGlyphData;
+        if (data == null) {
+            data = restoreGlyphData();
+        }
+        return data;
+    }
+
+    @Nonnull
+    private synchronized int[] restoreGlyphData() {
+        int[] data = mGlyphData;
+        if (data != null) {
+            return data;
+        }
+        data = new int[getGlyphDataLength(mGlyphCount, mHasFontIndices)];
+        MemoryUtil.memIntBuffer(mNativeGlyphData.address, data.length).get(0, data);
+        mGlyphData = data;
+        // there is never a copy on both sides
+        mNativeCleanable.clean();
+        mNativeCleanable = null;
+        mNativeGlyphData = null;
+        return data;
+    }
+
+    /**
+     * Move glyph data off-heap, it is moved back on next use. Called by the render thread
+     * on cold cache entries.
+     * <p>
+     * The off-heap copy is owned by this layout rather than the cache. If this layout is
+     * evicted while detached, callers of lookup methods may still hold it, so the copy is
+     * freed once this layout becomes unreachable, it is never restored just to be dropped.
+     *
+     * @see TextLayoutCache#sweep
+     */
+    synchronized void detachGlyphData() {
+        final int[] data = mGlyphData;
+        if (data == null || mGlyphCount == 0) {
+            return;
+        }
+        final long size = getNativeGlyphDataSize();
+        final long address = MemoryUtil.nmemAllocChecked(size);
+        MemoryUtil.memIntBuffer(address, data.length).put(0, data);
+        final var nativeData = new NativeGlyphData(address, size, getGlyphDataSize());
+        sNativeMemorySize.addAndGet(size);
+        sDetachedMemorySize.addAndGet(nativeData.heapSize);
+        mNativeGlyphData = nativeData;
+        mNativeCleanable = sNativeCleaner.register(this, nativeData);
+        mGlyphData = null;
+    }
+
+    /**
+     * An off-heap block of glyph data, this must not reference the layout.
+     */
+    private record NativeGlyphData(long address, long size, int heapSize) implements Runnable {
+
+        @Override
+        public void run() {
+            MemoryUtil.nmemFree(address);
+            sNativeMemorySize.addAndGet(-size);
+            sDetachedMemorySize.addAndGet(-heapSize);
+        }
+    }
+
+    private int getGlyphDataSize() {
+        return 16 + MathUtil.align8(getGlyphDataLength(mGlyphCount, mHasFontIndices) << 2);
+    }
+
+    private long getNativeGlyphDataSize() {
+        return (long) getGlyphDataLength(mGlyphCount, mHasFontIndices) << 2;
+    }
+
+    /**
+     * @return bytes of off-heap glyph data of all layouts
+     */
+    public static long getNativeMemorySize() {
+        return sNativeMemorySize.get();
+    }
+
+    /**
+     * @return bytes of glyph data of all layouts that currently only exist off-heap,
+     * these are not on heap even though they were measured when cached, evicted layouts
+     * are included until they are collected
+     */
+    public static long getDetachedMemorySize() {
+        return sDetachedMemorySize.get();
     }
 
     @Nonnull
     private BakedGlyph[] prepareGlyphs(int fontSize, BakedGlyph[] glyphs) {
         GlyphManager glyphManager = GlyphManager.getInstance();
+        final int[] data = glyphData();
+        final int count = mGlyphCount;
         for (int i = 0; i < glyphs.length; i++) {
             BakedGlyph initialGlyph = mBakedGlyphs[i];
             if (initialGlyph != null &&
                     !(initialGlyph instanceof ModernBakedGlyph)) {
                 // atlas sprite or player skin
                 glyphs[i] = initialGlyph;
-            } else if ((mGlyphFlags[i] & CharacterStyle.OBFUSCATED_MASK) != 0) {
+            } else if ((data[count + i] & CharacterStyle.OBFUSCATED_MASK) != 0) {
                 glyphs[i] = glyphManager.lookupFastChars(
-                        getFont(i),
+                        getFont(data, i),
                         fontSize,
-                        mGlyphs[i]
+                        data[i]
                 );
             } else {
-                glyphs[i] = glyphManager.lookupGlyph(
-                        getFont(i),
+                // outline glyphs may be not ready, see ModernBakedGlyph.x
+                glyphs[i] = glyphManager.lookupGlyphAsync(
+                        getFont(data, i),
                         fontSize,
-                        mGlyphs[i]
+                        data[i]
                 );
             }
         }
@@ -275,7 +456,7 @@ public class TextLayout {
         } else {
             if (mBakedGlyphsForSDF == null) {
                 int fontSize = TextLayoutProcessor.computeFontSize(resLevel);
-                mBakedGlyphsForSDF = prepareGlyphs(fontSize, new BakedGlyph[mGlyphs.length]);
+                mBakedGlyphsForSDF = prepareGlyphs(fontSize, new BakedGlyph[mGlyphCount]);
             }
             return mBakedGlyphsForSDF;
         }
@@ -289,7 +470,7 @@ public class TextLayout {
         int fontSize = TextLayoutProcessor.computeFontSize(density);
         BakedGlyph[] glyphs = mBakedGlyphsArray.get(fontSize);
         if (glyphs == null) {
-            glyphs = prepareGlyphs(fontSize, new BakedGlyph[mGlyphs.length]);
+            glyphs = prepareGlyphs(fontSize, new BakedGlyph[mGlyphCount]);
             mBakedGlyphsArray.put(fontSize, glyphs);
         }
         return glyphs;
@@ -354,8 +535,9 @@ public class TextLayout {
             top += shadowOffset;
         }
 
-        final var positions = mPositions;
-        final var flags = mGlyphFlags;
+        final int[] data = glyphData();
+        final int flagOffset = mGlyphCount;
+        final int posOffset = mGlyphCount << 1;
         //final boolean alignPixels = TextLayoutProcessor.sAlignPixels;
 
         final float baseline = top + sBaselineOffset;
@@ -379,13 +561,38 @@ public class TextLayout {
             renderable.render(matrix, buffer, packedLight, false);
         }
 
-        for (int i = 0, e = glyphs.length; i < e; i++) {
+        final int frameIndex = GlyphManager.sFrameIndex;
+        TextMesh mesh = null;
+        TextMesh.Builder recorder = null;
+        boolean meshDrawn = false;
+        if (sCacheTextMesh) {
+            final int slot = isShadow ? 1 : 0;
+            final int color = ARGB.color(a, startR, startG, startB);
+            if (mMeshes == null) {
+                mMeshes = new TextMesh[2];
+            }
+            mesh = mMeshes[slot];
+            if (mesh == null || !mesh.matches(preferredMode, color, polygonOffset)) {
+                // record if the same state is drawn again
+                mMeshes[slot] = new TextMesh(preferredMode, color, polygonOffset);
+                mesh = null;
+            } else if (mesh.isBaked()) {
+                mesh.draw(matrix, source, x, top, packedLight, frameIndex);
+                meshDrawn = true;
+            } else {
+                recorder = new TextMesh.Builder();
+            }
+        }
+
+        for (int i = 0, e = meshDrawn ? 0 : glyphs.length; i < e; i++) {
             var vglyph = glyphs[i];
             if (vglyph == null) {
                 continue;
             }
-            final int bits = flags[i];
+            final int bits = data[flagOffset + i];
             if (!(vglyph instanceof ModernBakedGlyph glyph)) {
+                // not cacheable
+                recorder = null;
                 // used in 3D world rendering, and it's atlas sprite or player skin
                 if (!isShadow) {
                     int glyphColor;
@@ -396,8 +603,8 @@ public class TextLayout {
                     }
                     // atlas sprite and player skin don't use style
                     var renderable = vglyph.createGlyph(
-                            x + positions[i << 1],
-                            top + positions[i << 1 | 1],
+                            x + Float.intBitsToFloat(data[posOffset + (i << 1)]),
+                            top + Float.intBitsToFloat(data[posOffset + (i << 1 | 1)]),
                             glyphColor, 0,
                             Style.EMPTY,
                             0, 0
@@ -427,7 +634,15 @@ public class TextLayout {
                 var chars = (GlyphManager.FastCharSet) glyph;
                 int fastIndex = RANDOM.nextInt(chars.glyphs.size());
                 glyph = chars.glyphs.get(fastIndex);
+                // changes every frame
+                recorder = null;
             }
+            if (glyph.x == Integer.MIN_VALUE) {
+                // being rasterized, skip for this frame
+                recorder = null;
+                continue;
+            }
+            glyph.lastUsedFrame = frameIndex;
             if ((bits & CharacterStyle.ANY_BITMAP_REPLACEMENT) != 0) {
                 final float scaleFactor;
                 if (getFont(i) instanceof BitmapFont bitmapFont) {
@@ -445,8 +660,8 @@ public class TextLayout {
                     isColorEmoji = true;
                 }
                 fakeItalic = (bits & CharacterStyle.ITALIC_MASK) != 0;
-                rx = x + positions[i << 1] + glyph.x * scaleFactor;
-                ry = baseline + positions[i << 1 | 1] + glyph.y * scaleFactor;
+                rx = x + Float.intBitsToFloat(data[posOffset + (i << 1)]) + glyph.x * scaleFactor;
+                ry = baseline + Float.intBitsToFloat(data[posOffset + (i << 1 | 1)]) + glyph.y * scaleFactor;
                 if (isShadow) {
                     // bitmap font shadow offset is always 1 pixel
                     rx += 1.0f - shadowOffset;
@@ -466,8 +681,8 @@ public class TextLayout {
                 }
             } else {
                 mode = preferredMode;
-                rx = x + positions[i << 1] + glyph.x * invDensity;
-                ry = baseline + positions[i << 1 | 1] + glyph.y * invDensity;
+                rx = x + Float.intBitsToFloat(data[posOffset + (i << 1)]) + glyph.x * invDensity;
+                ry = baseline + Float.intBitsToFloat(data[posOffset + (i << 1 | 1)]) + glyph.y * invDensity;
 
                 w = glyph.width * invDensity;
                 h = glyph.height * invDensity;
@@ -505,6 +720,9 @@ public class TextLayout {
                 builder = source.getBuffer(vanillaDisplayMode != null
                         ? TextRenderType.getOrCreate(texture, vanillaDisplayMode, isBitmapFont)
                         : TextRenderType.getOrCreate(texture, mode));
+                if (recorder != null) {
+                    recorder.setRenderType(texture, mode, vanillaDisplayMode, isBitmapFont);
+                }
             }
             float upSkew = 0;
             float downSkew = 0;
@@ -528,6 +746,16 @@ public class TextLayout {
                     .setColor(r, g, b, a)
                     .setUv(glyph.u2, glyph.v1)
                     .setLight(packedLight);
+            if (recorder != null) {
+                recorder.addQuad(rx + upSkew - x, ry - top,
+                        rx + downSkew - x, ry + h - top,
+                        rx + w + downSkew - x, ry + h - top,
+                        rx + w + upSkew - x, ry - top,
+                        glyph, ARGB.color(a, r, g, b));
+            }
+        }
+        if (recorder != null) {
+            mesh.bake(recorder);
         }
 
         if (mHasEffect) {
@@ -537,7 +765,7 @@ public class TextLayout {
             );
             builder = source.getBuffer(placeholder.renderType(compatDisplayMode));
             for (int i = 0, e = glyphs.length; i < e; i++) {
-                final int bits = flags[i];
+                final int bits = data[flagOffset + i];
                 if ((bits & CharacterStyle.EFFECT_MASK) == 0) {
                     continue;
                 }
@@ -555,8 +783,9 @@ public class TextLayout {
                         b >>= 2;
                     }
                 }
-                final float rx1 = x + positions[i << 1];
-                final float rx2 = x + ((i + 1 == e) ? mTotalAdvance : positions[(i + 1) << 1]);
+                final float rx1 = x + Float.intBitsToFloat(data[posOffset + (i << 1)]);
+                final float rx2 = x + ((i + 1 == e) ? mTotalAdvance
+                        : Float.intBitsToFloat(data[posOffset + ((i + 1) << 1)]));
                 if ((bits & CharacterStyle.STRIKETHROUGH_MASK) != 0) {
                     TextRenderEffect.drawStrikethrough(matrix, builder, rx1, rx2, baseline,
                             r, g, b, a, packedLight);
@@ -595,8 +824,10 @@ public class TextLayout {
         final float resLevel = TextLayoutEngine.adjustPixelDensityForSDF(mCreatedResLevel);
 
         final BakedGlyph[] glyphs = getGlyphs((int) resLevel);
-        final var positions = mPositions;
-        final var flags = mGlyphFlags;
+        final int[] data = glyphData();
+        final int flagOffset = mGlyphCount;
+        final int posOffset = mGlyphCount << 1;
+        final int frameIndex = GlyphManager.sFrameIndex;
         //final boolean alignPixels = TextLayoutProcessor.sAlignPixels;
 
         final float baseline = top + sBaselineOffset;
@@ -613,7 +844,7 @@ public class TextLayout {
             if (!(vglyph instanceof ModernBakedGlyph glyph)) {
                 continue;
             }
-            final int bits = flags[i];
+            final int bits = data[flagOffset + i];
             final float rx;
             final float ry;
             final float w;
@@ -626,8 +857,13 @@ public class TextLayout {
                     int fastIndex = RANDOM.nextInt(chars.glyphs.size());
                     glyph = chars.glyphs.get(fastIndex);
                 }
-                rx = x + positions[i << 1] + glyph.x / resLevel;
-                ry = baseline + positions[i << 1 | 1] + glyph.y / resLevel;
+                if (glyph.x == Integer.MIN_VALUE) {
+                    // being rasterized, skip for this frame
+                    continue;
+                }
+                glyph.lastUsedFrame = frameIndex;
+                rx = x + Float.intBitsToFloat(data[posOffset + (i << 1)]) + glyph.x / resLevel;
+                ry = baseline + Float.intBitsToFloat(data[posOffset + (i << 1 | 1)]) + glyph.y / resLevel;
 
                 w = glyph.width / resLevel;
                 h = glyph.height / resLevel;
@@ -699,14 +935,31 @@ public class TextLayout {
         return mTextBuf;
     }
 
+    /**
+     * Returns the number of glyphs, empty glyphs have been removed.
+     */
+    public int getGlyphCount() {
+        return mGlyphCount;
+    }
+
     /**
      * All baked glyphs for rendering, empty glyphs have been removed from this array.
      * The order is visually left-to-right (i.e. in visual order). Fast digit chars and
      * obfuscated chars are {@link icyllis.modernui.mc.text.GlyphManager.FastCharSet}.
+     * <p>
+     * This returns a copy, use {@link #getGlyph(int)} to avoid allocation.
      */
     @Nonnull
     public int[] getGlyphs() {
-        return mGlyphs;
+        return Arrays.copyOf(glyphData(), mGlyphCount);
+    }
+
+    /**
+     * Returns the i-th glyph, same as {@code getGlyphs()[i]}.
+     */
+    public int getGlyph(int i) {
+        Objects.checkIndex(i, mGlyphCount);
+        return glyphData()[i];
     }
 
     /**
@@ -715,10 +968,34 @@ public class TextLayout {
      * Same indexing with {@link #getGlyphs()}, align to left, in visual order.
      * <p>
      * Note the values are scaled to Minecraft GUI coordinates.
+     * <p>
+     * This returns a copy, use {@link #getPositionX(int)} and {@link #getPositionY(int)}
+     * to avoid allocation.
      */
     @Nonnull
     public float[] getPositions() {
-        return mPositions;
+        final int[] data = glyphData();
+        final float[] positions = new float[mGlyphCount << 1];
+        for (int i = 0, j = mGlyphCount << 1; i < positions.length; i++, j++) {
+            positions[i] = Float.intBitsToFloat(data[j]);
+        }
+        return positions;
+    }
+
+    /**
+     * Returns the x position of the i-th glyph, same as {@code getPositions()[i << 1]}.
+     */
+    public float getPositionX(int i) {
+        Objects.checkIndex(i, mGlyphCount);
+        return Float.intBitsToFloat(glyphData()[(mGlyphCount + i) << 1]);
+    }
+
+    /**
+     * Returns the y position of the i-th glyph, same as {@code getPositions()[i << 1 | 1]}.
+     */
+    public float getPositionY(int i) {
+        Objects.checkIndex(i, mGlyphCount);
+        return Float.intBitsToFloat(glyphData()[(mGlyphCount + i) << 1 | 1]);
     }
 
     /**
@@ -742,12 +1019,29 @@ public class TextLayout {
      * @return the font
      */
     public Font getFont(int i) {
-        if (mFontIndices != null) {
-            return mFonts[mFontIndices[i] & 0xFF];
+        return getFont(glyphData(), i);
+    }
+
+    /**
+     * Returns the glyph data array without copying, see {@link #packGlyphData}. Read it
+     * once per draw, the array stays valid even if the layout is detached later.
+     */
+    @Nonnull
+    int[] getGlyphData() {
+        return glyphData();
+    }
+
+    Font getFont(@Nonnull int[] data, int i) {
+        if (mHasFontIndices) {
+            return mFonts[getFontIndex(data, i)];
         }
         return mFonts[0];
     }
 
+    private int getFontIndex(@Nonnull int[] data, int i) {
+        return (data[(mGlyphCount << 2) + (i >> 2)] >>> ((i & 3) << 3)) & 0xFF;
+    }
+
     /**
      * Returns the number of chars (i.e. the length of char array) of the full stripped
      * string (without formatting codes).
@@ -760,17 +1054,39 @@ public class TextLayout {
 
     /**
      * Glyph rendering flags. Same indexing with {@link #getGlyphs()}, in visual order.
+     * <p>
+     * This returns a copy, use {@link #getGlyphFlag(int)} to avoid allocation.
      *
      * @see CharacterStyle
      */
     @Nonnull
     public int[] getGlyphFlags() {
-        return mGlyphFlags;
+        return Arrays.copyOfRange(glyphData(), mGlyphCount, mGlyphCount << 1);
+    }
+
+    /**
+     * Returns the rendering flags of the i-th glyph, same as {@code getGlyphFlags()[i]}.
+     */
+    public int getGlyphFlag(int i) {
+        Objects.checkIndex(i, mGlyphCount);
+        return glyphData()[mGlyphCount + i];
     }
 
+    /**
+     * Font index of each glyph into {@link #getFontVector()}, or null if there is
+     * only one font. This returns a copy.
+     */
     @Nullable
     public byte[] getFontIndices() {
-        return mFontIndices;
+        if (!mHasFontIndices) {
+            return null;
+        }
+        final int[] data = glyphData();
+        final byte[] fontIndices = new byte[mGlyphCount];
+        for (int i = 0; i < fontIndices.length; i++) {
+            fontIndices[i] = (byte) getFontIndex(data, i);
+        }
+        return fontIndices;
     }
 
     public Font[] getFontVector() {
@@ -825,22 +1141,30 @@ public class TextLayout {
         return mCreatedResLevel;
     }
 
+    /**
+     * @return true if any glyph is an atlas sprite or a player skin, which is not
+     * described by glyph ID and font
+     */
+    boolean hasCompatGlyphs() {
+        for (BakedGlyph glyph : mBakedGlyphs) {
+            if (glyph != null && !(glyph instanceof ModernBakedGlyph)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * @return measurable memory size in bytes of this object
      */
     public int getMemorySize() {
         int m = 0;
         m += 16 + MathUtil.align8(mTextBuf.length << 1);
-        m += 16 + MathUtil.align8(mGlyphs.length << 2); // glyphs
-        m += 16 + MathUtil.align8(mPositions.length << 2); // positions
-        if (mFontIndices != null) {
-            m += 16 + MathUtil.align8(mFontIndices.length);
-        }
+        m += getGlyphDataSize();
         m += 16 + MathUtil.align8(mFonts.length << 2);
         if (mAdvances != null) {
             m += 16 + MathUtil.align8(mAdvances.length << 2);
         }
-        m += 16 + MathUtil.align8(mGlyphFlags.length << 2); // flags
         if (mLineBoundaries != null) {
             m += 16 + MathUtil.align8(mLineBoundaries.length << 2);
         }
@@ -860,13 +1184,16 @@ public class TextLayout {
 
     @Override
     public String toString() {
+        // don't restore off-heap data
+        final int[] data = mGlyphData;
+        final int count = mGlyphCount;
         return "TextLayout{" +
                 "text=" + toEscapeChars(mTextBuf) +
-                ",glyphs=" + mGlyphs.length +
+                ",glyphs=" + mGlyphCount +
                 ",length=" + mTextBuf.length +
-                ",positions=" + toPositionString(mPositions) +
+                ",positions=" + (data != null ? toPositionString(data, count << 1, count << 2) : "off-heap") +
                 ",advances=" + Arrays.toString(mAdvances) +
-                ",charFlags=" + toFlagString(mGlyphFlags) +
+                ",charFlags=" + (data != null ? toFlagString(data, count, count << 1) : "off-heap") +
                 ",lineBoundaries=" + Arrays.toString(mLineBoundaries) +
                 ",totalAdvance=" + mTotalAdvance +
                 ",hasEffect=" + mHasEffect +
@@ -917,36 +1244,34 @@ public class TextLayout {
             i = lim;
         }
 
-        int[] glyphs = mGlyphs;
+        final int[] data = glyphData();
+        final int count = mGlyphCount;
         b.append("glyphs: ")
-                .append(glyphs.length)
+                .append(count)
                 .append('\n');
-        float[] positions = mPositions;
-        byte[] fontIndices = mFontIndices;
-        int[] glyphFlags = mGlyphFlags;
-        for (int i = 0; i < glyphs.length; ) {
+        for (int i = 0; i < count; ) {
             b.append(String.format(" %04X ", i));
-            int lim = Math.min(i + 4, glyphs.length);
+            int lim = Math.min(i + 4, count);
             for (int j = i; j < lim; j++) {
                 int idx;
-                if (fontIndices == null) {
+                if (!mHasFontIndices) {
                     idx = 0;
                 } else {
-                    idx = fontIndices[j] & 0xFF;
+                    idx = getFontIndex(data, j);
                 }
                 b.append(String.format(" %02X %02X %04X ",
-                        idx, glyphs[j] >>> 24, glyphs[j] & 0xFFFF));
+                        idx, data[j] >>> 24, data[j] & 0xFFFF));
             }
             b.append("\n      ");
             for (int j = i; j < lim; j++) {
                 b.append(String.format("%6.1f,%4.1f ",
-                        positions[j << 1],
-                        positions[j << 1 | 1]));
+                        Float.intBitsToFloat(data[(count + j) << 1]),
+                        Float.intBitsToFloat(data[(count + j) << 1 | 1])));
             }
             b.append("\n      ");
             for (int j = i; j < lim; j++) {
                 b.append(' ');
-                toFlagString(b, glyphFlags[j]);
+                toFlagString(b, data[count + j]);
                 b.append("    ");
             }
             b.append('\n');
@@ -981,17 +1306,17 @@ public class TextLayout {
     }
 
     @Nonnull
-    private static String toPositionString(@Nonnull float[] a) {
-        int iMax = a.length - 1;
-        if (iMax == -1)
+    private static String toPositionString(@Nonnull int[] a, int from, int to) {
+        int iMax = to - 1;
+        if (iMax < from)
             return "[]";
         StringBuilder b = new StringBuilder();
         b.append('[');
-        for (int i = 0; ; i++) {
+        for (int i = from; ; i++) {
             b.append('(');
-            b.append(a[i++]);
+            b.append(Float.intBitsToFloat(a[i++]));
             b.append(',');
-            b.append(a[i]);
+            b.append(Float.intBitsToFloat(a[i]));
             b.append(')');
             if (i == iMax)
                 return b.append(']').toString();
@@ -1000,13 +1325,13 @@ public class TextLayout {
     }
 
     @Nonnull
-    private static String toFlagString(@Nonnull int[] a) {
-        int iMax = a.length - 1;
-        if (iMax == -1)
+    private static String toFlagString(@Nonnull int[] a, int from, int to) {
+        int iMax = to - 1;
+        if (iMax < from)
             return "[]";
         StringBuilder b = new StringBuilder();
         b.append('[');
-        for (int i = 0; ; i++) {
+        for (int i = from; ; i++) {
             b.append("0x");
             b.append(Integer.toHexString(a[i]));
             if (i == iMax)
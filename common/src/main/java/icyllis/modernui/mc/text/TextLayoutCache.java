@@ -0,0 +1,271 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2026 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.mc.text;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * A layout cache that can be shared by the render thread and background threads.
+ * <p>
+ * Entries are not ordered, each {@link TextLayout} records the engine clock (in seconds)
+ * of its last access, so that lookups never contend on a shared access order.
+ * Eviction iterates the weakly consistent view of the map and can run concurrently
+ * with lookups and insertions from any thread.
+ * <p>
+ * Every entry is weighted by its measurable memory size when it is inserted. Eviction is
+ * a CLOCK-style sweep that visits a bounded number of entries per call, the cursor is kept
+ * across calls, so there is no stall over the whole map. Expired entries are always removed,
+ * and while the total weight exceeds the budget, entries older than an adaptive age threshold
+ * are removed as well, the threshold is lowered after every full pass that fails to release
+ * enough memory.
+ * <p>
+ * If off-heap storage is enabled, the sweep also detaches glyph data of entries that have
+ * not been used recently, moving it to native memory until it is used again. Native memory
+ * is owned by the layout, it is freed when the layout is used again, or once an evicted
+ * layout is no longer held by any caller of lookup methods, see
+ * {@link TextLayout#detachGlyphData()}.
+ * <p>
+ * A layout computed by a background thread is only inserted if the cache has not been
+ * cleared or invalidated since the lookup started, see {@link #getGeneration()}.
+ *
+ * @param <K> the key type, lookup keys must be compatible with stored keys
+ * @see TextLayoutEngine
+ */
+final class TextLayoutCache<K> {
+
+    private volatile ConcurrentHashMap<K, TextLayout> mMap = new ConcurrentHashMap<>();
+
+    private final ToIntFunction<? super K> mKeyWeigher;
+
+    /**
+     * Incremented by {@link #clear()} and {@link #invalidate()}.
+     */
+    private volatile int mGeneration;
+
+    /**
+     * Sum of entry weights in bytes.
+     */
+    private final AtomicLong mWeight = new AtomicLong();
+
+    private final LongAdder mHitCount = new LongAdder();
+    private final LongAdder mMissCount = new LongAdder();
+    private final LongAdder mEvictionCount = new LongAdder();
+
+    // sweeper state, render thread only
+    private Iterator<Map.Entry<K, TextLayout>> mCursor;
+    private int mAgeThreshold = Integer.MAX_VALUE;
+    private boolean mPassEvicted;
+
+    /**
+     * @param keyWeigher computes the memory size of a storage key, in bytes
+     */
+    TextLayoutCache(@Nonnull ToIntFunction<? super K> keyWeigher) {
+        mKeyWeigher = keyWeigher;
+    }
+
+    /**
+     * Find a layout and refresh its access stamp.
+     *
+     * @param key a lookup key, it is not retained
+     * @param now the engine clock in seconds
+     * @return the cached layout or null
+     */
+    @Nullable
+    TextLayout get(@Nonnull Object key, int now) {
+        TextLayout layout = mMap.get(key);
+        if (layout != null) {
+            layout.touch(now);
+            mHitCount.increment();
+        } else {
+            mMissCount.increment();
+        }
+        return layout;
+    }
+
+    /**
+     * Find a layout without any side effect, the access stamp and counters are not
+     * updated. If the layout is used, call {@link #recordHit(TextLayout, int)}, otherwise
+     * the lookup should be followed by {@link #get(Object, int)}.
+     *
+     * @param key a lookup key, it is not retained
+     * @return the cached layout or null
+     */
+    @Nullable
+    TextLayout peek(@Nonnull Object key) {
+        return mMap.get(key);
+    }
+
+    /**
+     * Refresh the access stamp of a layout returned by {@link #peek(Object)} and
+     * count a hit.
+     */
+    void recordHit(@Nonnull TextLayout layout, int now) {
+        layout.touch(now);
+        mHitCount.increment();
+    }
+
+    /**
+     * Returns the current generation, this must be called before the lookup starts,
+     * and be passed to {@link #put(Object, TextLayout, int, int)}.
+     */
+    int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Insert or replace a layout. The layout may have been computed by any thread.
+     * If the cache was cleared or invalidated since <code>generation</code> was obtained,
+     * the layout may be based on old fonts or resolution level, and it is not inserted.
+     *
+     * @param key        a storage key, must be immutable
+     * @param layout     the new layout
+     * @param now        the engine clock in seconds
+     * @param generation the generation when the lookup started
+     * @return true if the layout was inserted
+     */
+    boolean put(@Nonnull K key, @Nonnull TextLayout layout, int now, int generation) {
+        assert layout != TextLayout.EMPTY;
+        if (generation != mGeneration) {
+            return false;
+        }
+        final ConcurrentHashMap<K, TextLayout> map = mMap;
+        layout.touch(now);
+        layout.mCacheWeight = layout.getMemorySize() + mKeyWeigher.applyAsInt(key);
+        TextLayout old = map.put(key, layout);
+        long delta = layout.mCacheWeight;
+        if (old != null) {
+            delta -= old.mCacheWeight;
+        }
+        mWeight.addAndGet(delta);
+        // the generation is incremented before the map is swapped, if it's unchanged
+        // now, the layout was put into the old map that is being dropped, or it's valid
+        if (generation != mGeneration) {
+            if (map.remove(key, layout)) {
+                mWeight.addAndGet(-layout.mCacheWeight);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Visit at most <code>maxVisits</code> entries from where the last call stopped.
+     * Remove entries that have not been used in <code>lifespan</code> seconds, and
+     * if <code>overBudget</code>, also remove cold entries. If <code>offHeap</code>,
+     * detach glyph data of entries that have not been used in the last second.
+     *
+     * @param now        the engine clock in seconds
+     * @param lifespan   max idle time in seconds
+     * @param overBudget whether the engine is using more memory than the budget
+     * @param maxVisits  max number of entries to visit
+     * @param offHeap    whether to move glyph data of idle entries off-heap
+     */
+    void sweep(int now, int lifespan, boolean overBudget, int maxVisits, boolean offHeap) {
+        if (!overBudget) {
+            mAgeThreshold = Integer.MAX_VALUE;
+        } else if (mAgeThreshold > lifespan) {
+            mAgeThreshold = lifespan;
+        }
+        final ConcurrentHashMap<K, TextLayout> map = mMap;
+        for (int visits = 0; visits < maxVisits; visits++) {
+            if (mCursor == null || !mCursor.hasNext()) {
+                if (mCursor != null && overBudget && !mPassEvicted && mAgeThreshold > 0) {
+                    // a full pass is not enough, be more aggressive
+                    mAgeThreshold >>= 1;
+                }
+                mCursor = map.entrySet().iterator();
+                mPassEvicted = false;
+                if (!mCursor.hasNext()) {
+                    return;
+                }
+            }
+            var e = mCursor.next();
+            TextLayout layout = e.getValue();
+            if (layout.isExpired(now, lifespan) ||
+                    (overBudget && layout.isExpired(now, mAgeThreshold - 1))) {
+                if (map.remove(e.getKey(), layout)) {
+                    mWeight.addAndGet(-layout.mCacheWeight);
+                    mEvictionCount.increment();
+                    mPassEvicted = true;
+                }
+            } else if (offHeap && layout.isExpired(now, 1)) {
+                layout.detachGlyphData();
+            }
+        }
+    }
+
+    /**
+     * Drop all entries, and the internal hashtable is released as well.
+     */
+    void clear() {
+        mGeneration++;
+        mMap = new ConcurrentHashMap<>();
+        mWeight.set(0);
+        mCursor = null;
+        mAgeThreshold = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Reject layouts whose lookups started before this call, without dropping entries.
+     * Called when the state that layouts depend on has changed after {@link #clear()}.
+     */
+    void invalidate() {
+        mGeneration++;
+    }
+
+    int size() {
+        return mMap.size();
+    }
+
+    /**
+     * @return the sum of entry weights in bytes, when they were inserted
+     */
+    long getWeight() {
+        return mWeight.get();
+    }
+
+    long getHitCount() {
+        return mHitCount.sum();
+    }
+
+    long getMissCount() {
+        return mMissCount.sum();
+    }
+
+    long getEvictionCount() {
+        return mEvictionCount.sum();
+    }
+
+    void forEach(@Nonnull BiConsumer<? super K, ? super TextLayout> action) {
+        mMap.forEach(action);
+    }
+
+    @Nonnull
+    Iterable<Map.Entry<K, TextLayout>> entries() {
+        return mMap.entrySet();
+    }
+}
@@ -0,0 +1,639 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2026 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.mc.text;
+
+import icyllis.modernui.graphics.text.*;
+import icyllis.modernui.mc.FontResourceManager;
+import icyllis.modernui.mc.MuiPlatform;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import net.minecraft.client.gui.font.glyphs.BakedGlyph;
+import net.minecraft.network.chat.FontDescription;
+import net.minecraft.network.chat.Style;
+import net.minecraft.resources.Identifier;
+import net.minecraft.util.Util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import static icyllis.modernui.mc.ModernUIMod.LOGGER;
+
+/**
+ * Persistent shaping results of vanilla layouts ({@link VanillaLayoutKey}) across game restarts.
+ * <p>
+ * Each cache file is named by a fingerprint of everything that affects shaping: font collections
+ * and the identities of their files, resolution level, base font size, metrics and line breaking
+ * options. When {@link TextLayoutEngine} reloads with a different fingerprint, a different file
+ * is used, so stale files are never read. A few recent files are kept for switching back (e.g.
+ * GUI scale changes).
+ * <p>
+ * Files are append-only. An entry is: key hash, payload length, then the payload containing the key
+ * (text, font name, style code) and the {@link TextLayout} arrays. The index maps key hashes to
+ * entries, entries with the same hash are chained, and the full key in the payload is verified on
+ * read. Files are memory-mapped on the IO thread, only entry headers are scanned to build the
+ * index, and payloads are read on demand; lookups before the mapping is ready simply miss.
+ * New entries are kept in memory (bounded) until {@link #flush()} appends them on the IO thread
+ * and maps the file again. No file IO is performed by lookups.
+ * <p>
+ * Layouts that contain compatibility glyphs (atlas sprites, player skins) or fonts outside the
+ * font collection of the key are never persisted, and the fonts are stored as family indices in
+ * the collection plus font style.
+ *
+ * @see TextLayoutEngine#lookupVanillaLayout(String, Style, int)
+ */
+final class TextLayoutDiskCache {
+
+    private static final int MAGIC = 0x4D55544C; // MUTL
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private static final String FILE_PREFIX = "text_layout_";
+    private static final String FILE_SUFFIX = ".bin";
+
+    /**
+     * Max number of cache files to keep.
+     */
+    private static final int MAX_FILES = 4;
+
+    /**
+     * Max size of a single cache file.
+     */
+    private static final long MAX_FILE_SIZE = 32L << 20;
+
+    /**
+     * Max size of entries waiting for {@link #flush()}, new entries are dropped beyond this.
+     */
+    private static final long MAX_SESSION_SIZE = 2L << 20;
+
+    private static final int[] FONT_STYLES = {
+            FontPaint.NORMAL,
+            FontPaint.BOLD,
+            FontPaint.ITALIC,
+            FontPaint.BOLD | FontPaint.ITALIC
+    };
+
+    /**
+     * State for the current fingerprint, replaced atomically on reload.
+     */
+    private volatile Segment mSegment;
+
+    /**
+     * Switch to the cache file of the given fingerprint. Pending entries of the previous
+     * fingerprint are flushed on the IO thread. Cache files are next to the bootstrap config file.
+     */
+    void open(long fingerprint) {
+        Segment old = mSegment;
+        if (old != null && old.mFingerprint == fingerprint) {
+            return;
+        }
+        if (old != null && !old.mPending.isEmpty()) {
+            Util.ioPool().execute(old::flush);
+        }
+        mSegment = new Segment(fingerprint,
+                MuiPlatform.get().getBootstrapPath().resolveSibling(FILE_PREFIX + Long.toHexString(fingerprint) + FILE_SUFFIX));
+    }
+
+    /**
+     * Find a persisted layout that has at least the given compute flags.
+     *
+     * @return the layout or null
+     */
+    @Nullable
+    TextLayout load(@Nonnull String text, @Nonnull Style style, int computeFlags,
+                    @Nonnull FontCollection fontCollection) {
+        Segment segment = mSegment;
+        if (segment == null || !(style.getFont() instanceof FontDescription.Resource resource)) {
+            return null;
+        }
+        return segment.load(text, resource.id(), CharacterStyle.flatten(style),
+                computeFlags, fontCollection);
+    }
+
+    /**
+     * Queue a newly created layout to be persisted.
+     */
+    void store(@Nonnull String text, @Nonnull Style style, @Nonnull TextLayout layout,
+               @Nonnull FontCollection fontCollection) {
+        Segment segment = mSegment;
+        if (segment == null || !(style.getFont() instanceof FontDescription.Resource resource)) {
+            return;
+        }
+        if (layout.getGlyphCount() == 0 || layout.hasCompatGlyphs()) {
+            return;
+        }
+        segment.store(text, resource.id(), CharacterStyle.flatten(style), layout, fontCollection);
+    }
+
+    /**
+     * @return true if there are entries waiting for {@link #flush()}
+     */
+    boolean hasPendingEntries() {
+        Segment segment = mSegment;
+        return segment != null && !segment.mPending.isEmpty();
+    }
+
+    /**
+     * Append pending entries to the current cache file and remove old files.
+     * This performs blocking IO.
+     */
+    void flush() {
+        Segment segment = mSegment;
+        if (segment != null) {
+            segment.flush();
+            deleteOldFiles(segment.mFile.getParent());
+        }
+    }
+
+    long getFileSize() {
+        Segment segment = mSegment;
+        return segment != null ? segment.mFileSize.get() : 0;
+    }
+
+    long getHitCount() {
+        Segment segment = mSegment;
+        return segment != null ? segment.mHitCount.sum() : 0;
+    }
+
+    private static void deleteOldFiles(@Nonnull Path directory) {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> list = files
+                    .filter(p -> {
+                        String name = p.getFileName().toString();
+                        return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+                    })
+                    .sorted(Comparator.comparingLong(TextLayoutDiskCache::lastModified).reversed())
+                    .toList();
+            for (int i = MAX_FILES; i < list.size(); i++) {
+                try {
+                    Files.deleteIfExists(list.get(i));
+                } catch (IOException ignored) {
+                    // may be still mapped, try again next time
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn(TextLayoutEngine.MARKER, "Failed to list text layout cache files", e);
+        }
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Full key of an entry.
+     */
+    private record EntryKey(String text, Identifier font, int code) {
+    }
+
+    /**
+     * An entry waiting for {@link #flush()}.
+     */
+    private record PendingEntry(EntryKey key, ByteBuffer payload) {
+    }
+
+    /**
+     * Read-only view of the file and its index, replaced after each flush.
+     *
+     * @param buffer the mapped file
+     * @param index  key hash to the offset of the latest payload
+     * @param chain  payload offset to the offset of the previous payload with the same hash
+     */
+    private record Mapping(MappedByteBuffer buffer, Int2IntOpenHashMap index,
+                           Int2IntOpenHashMap chain) {
+    }
+
+    private static int hash(@Nonnull String text, @Nonnull Identifier font, int code) {
+        int h = text.hashCode();
+        h = 31 * h + font.hashCode();
+        h = 31 * h + code;
+        return h;
+    }
+
+    private static final class Segment {
+
+        final long mFingerprint;
+        final Path mFile;
+
+        /**
+         * Mapped view of the file, null until mapped on the IO thread.
+         */
+        private volatile Mapping mMapping;
+        private final AtomicBoolean mMapRequested = new AtomicBoolean();
+
+        /**
+         * Entries created in this session and not in the mapped view yet.
+         */
+        final ConcurrentHashMap<EntryKey, ByteBuffer> mSessionEntries = new ConcurrentHashMap<>();
+        final ConcurrentLinkedQueue<PendingEntry> mPending = new ConcurrentLinkedQueue<>();
+        final AtomicLong mSessionSize = new AtomicLong();
+        final AtomicLong mFileSize = new AtomicLong();
+
+        final LongAdder mHitCount = new LongAdder();
+
+        Segment(long fingerprint, Path file) {
+            mFingerprint = fingerprint;
+            mFile = file;
+        }
+
+        private void requestMap() {
+            if (mMapRequested.compareAndSet(false, true)) {
+                Util.ioPool().execute(() -> {
+                    synchronized (this) {
+                        map();
+                    }
+                });
+            }
+        }
+
+        // IO thread, the whole file is scanned, so that its pages are resident when
+        // the render thread reads payloads
+        private void map() {
+            if (!Files.isRegularFile(mFile)) {
+                return;
+            }
+            try (var channel = FileChannel.open(mFile, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < HEADER_SIZE || size > MAX_FILE_SIZE + (MAX_SESSION_SIZE << 1)) {
+                    return;
+                }
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION ||
+                        mapped.getLong(8) != mFingerprint) {
+                    return;
+                }
+                // scan entry headers only
+                var index = new Int2IntOpenHashMap();
+                index.defaultReturnValue(-1);
+                var chain = new Int2IntOpenHashMap();
+                chain.defaultReturnValue(-1);
+                int pos = HEADER_SIZE;
+                while (pos + 8 <= size) {
+                    int hash = mapped.getInt(pos);
+                    int length = mapped.getInt(pos + 4);
+                    if (length <= 0 || pos + 8L + length > size) {
+                        // truncated by a crash
+                        break;
+                    }
+                    // the latest entry is found first
+                    int prev = index.put(hash, pos + 8);
+                    if (prev >= 0) {
+                        chain.put(pos + 8, prev);
+                    }
+                    pos += 8 + length;
+                }
+                mMapping = new Mapping(mapped, index, chain);
+                mFileSize.set(size);
+                LOGGER.debug(TextLayoutEngine.MARKER, "Mapped text layout cache {}, {} entries",
+                        mFile.getFileName(), index.size() + chain.size());
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn(TextLayoutEngine.MARKER, "Failed to map text layout cache {}", mFile, e);
+            }
+        }
+
+        @Nullable
+        TextLayout load(String text, Identifier font, int code, int computeFlags,
+                        FontCollection fontCollection) {
+            ByteBuffer entry = mSessionEntries.get(new EntryKey(text, font, code));
+            if (entry != null) {
+                TextLayout layout = tryRead(entry.duplicate(), text, font, code,
+                        computeFlags, fontCollection);
+                if (layout != null) {
+                    mHitCount.increment();
+                }
+                return layout;
+            }
+            final Mapping mapping = mMapping;
+            if (mapping == null) {
+                requestMap();
+                return null;
+            }
+            int offset = mapping.index.get(hash(text, font, code));
+            while (offset >= 0) {
+                TextLayout layout = tryRead(mapping.buffer.duplicate().position(offset),
+                        text, font, code, computeFlags, fontCollection);
+                if (layout != null) {
+                    mHitCount.increment();
+                    return layout;
+                }
+                // hash collision, or computed flags are insufficient
+                offset = mapping.chain.get(offset);
+            }
+            return null;
+        }
+
+        @Nullable
+        private static TextLayout tryRead(ByteBuffer entry, String text, Identifier font, int code,
+                                          int computeFlags, FontCollection fontCollection) {
+            try {
+                return read(entry, text, font, code, computeFlags, fontCollection);
+            } catch (RuntimeException e) {
+                // corrupted
+                return null;
+            }
+        }
+
+        void store(String text, Identifier font, int code, TextLayout layout,
+                   FontCollection fontCollection) {
+            if (mFileSize.get() >= MAX_FILE_SIZE ||
+                    mSessionSize.get() >= MAX_SESSION_SIZE) {
+                return;
+            }
+            ByteBuffer payload = write(text, font, code, layout, fontCollection);
+            if (payload == null) {
+                return;
+            }
+            var key = new EntryKey(text, font, code);
+            mSessionEntries.put(key, payload);
+            mPending.add(new PendingEntry(key, payload));
+            mSessionSize.addAndGet(payload.remaining());
+            // estimated until next flush
+            mFileSize.addAndGet(8 + payload.remaining());
+        }
+
+        // IO thread
+        synchronized void flush() {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            final var flushed = new ArrayList<PendingEntry>();
+            try (var channel = FileChannel.open(mFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                if (channel.size() < HEADER_SIZE) {
+                    channel.truncate(0);
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putInt(MAGIC).putInt(VERSION).putLong(mFingerprint).flip();
+                    channel.write(header);
+                }
+                ByteBuffer entryHeader = ByteBuffer.allocate(8);
+                PendingEntry entry;
+                while ((entry = mPending.poll()) != null) {
+                    flushed.add(entry);
+                    ByteBuffer payload = entry.payload.duplicate();
+                    // hash is the first field of the payload
+                    entryHeader.clear();
+                    entryHeader.putInt(payload.getInt(0)).putInt(payload.remaining()).flip();
+                    channel.write(entryHeader);
+                    while (payload.hasRemaining()) {
+                        channel.write(payload);
+                    }
+                }
+                mFileSize.set(channel.size());
+            } catch (IOException e) {
+                LOGGER.warn(TextLayoutEngine.MARKER, "Failed to write text layout cache {}", mFile, e);
+                PendingEntry entry;
+                while ((entry = mPending.poll()) != null) {
+                    flushed.add(entry);
+                }
+            }
+            // the new view contains the flushed entries, then the heap copies can be dropped
+            mMapRequested.set(true);
+            map();
+            for (PendingEntry entry : flushed) {
+                if (mSessionEntries.remove(entry.key, entry.payload)) {
+                    mSessionSize.addAndGet(-entry.payload.remaining());
+                }
+            }
+        }
+    }
+
+    /**
+     * Serialize a layout, returns null if it's not persistable.
+     */
+    @Nullable
+    private static ByteBuffer write(String text, Identifier font, int code, TextLayout layout,
+                                    FontCollection fontCollection) {
+        final Font[] fonts = layout.getFontVector();
+        final FontFamily[] families = fontCollection.getFamilies().toArray(new FontFamily[0]);
+        final short[] fontRefs = new short[fonts.length];
+        for (int i = 0; i < fonts.length; i++) {
+            int ref = findFont(families, fonts[i]);
+            if (ref < 0) {
+                return null;
+            }
+            fontRefs[i] = (short) ref;
+        }
+        final String fontName = font.toString();
+        final char[] textBuf = layout.getTextBuf();
+        final int[] glyphs = layout.getGlyphs();
+        final float[] positions = layout.getPositions();
+        final int[] glyphFlags = layout.getGlyphFlags();
+        final byte[] fontIndices = layout.getFontIndices();
+        final float[] advances = layout.getAdvances();
+        final int[] lineBoundaries = layout.getLineBoundaries();
+
+        int size = 4 + // hash
+                4 + text.length() * 2 +
+                4 + fontName.length() * 2 +
+                4 + 4 + 4 + 1 + // code, computed flags, total advance, bits
+                4 + textBuf.length * 2 +
+                4 + glyphs.length * (4 + 8 + 4) +
+                4 + fonts.length * 2 +
+                (fontIndices != null ? glyphs.length : 0) +
+                (advances != null ? advances.length * 4 : 0) +
+                4 + (lineBoundaries != null ? lineBoundaries.length * 4 : 0);
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(hash(text, font, code));
+        putString(buf, text);
+        putString(buf, fontName);
+        buf.putInt(code);
+        buf.putInt(layout.mComputedFlags);
+        buf.putFloat(layout.getTotalAdvance());
+        buf.put((byte) ((layout.hasEffect() ? 1 : 0) |
+                (layout.hasColorEmoji() ? 2 : 0) |
+                (fontIndices != null ? 4 : 0) |
+                (advances != null ? 8 : 0)));
+        buf.putInt(textBuf.length);
+        buf.asCharBuffer().put(textBuf);
+        buf.position(buf.position() + textBuf.length * 2);
+        buf.putInt(glyphs.length);
+        buf.asIntBuffer().put(glyphs);
+        buf.position(buf.position() + glyphs.length * 4);
+        buf.asFloatBuffer().put(positions);
+        buf.position(buf.position() + positions.length * 4);
+        buf.asIntBuffer().put(glyphFlags);
+        buf.position(buf.position() + glyphFlags.length * 4);
+        buf.putInt(fonts.length);
+        buf.asShortBuffer().put(fontRefs);
+        buf.position(buf.position() + fontRefs.length * 2);
+        if (fontIndices != null) {
+            buf.put(fontIndices);
+        }
+        if (advances != null) {
+            buf.asFloatBuffer().put(advances);
+            buf.position(buf.position() + advances.length * 4);
+        }
+        if (lineBoundaries != null) {
+            buf.putInt(lineBoundaries.length);
+            buf.asIntBuffer().put(lineBoundaries);
+            buf.position(buf.position() + lineBoundaries.length * 4);
+        } else {
+            buf.putInt(-1);
+        }
+        assert !buf.hasRemaining();
+        return buf.flip();
+    }
+
+    /**
+     * Deserialize a layout, returns null if the key does not match.
+     */
+    @Nullable
+    private static TextLayout read(ByteBuffer buf, String text, Identifier font, int code,
+                                   int computeFlags, FontCollection fontCollection) {
+        buf.getInt(); // hash
+        if (!matchString(buf, text) || !matchString(buf, font.toString()) ||
+                buf.getInt() != code) {
+            return null;
+        }
+        final int computedFlags = buf.getInt();
+        if ((computedFlags & computeFlags) != computeFlags) {
+            return null;
+        }
+        final float totalAdvance = buf.getFloat();
+        final int bits = buf.get();
+
+        final char[] textBuf = new char[buf.getInt()];
+        buf.asCharBuffer().get(textBuf);
+        buf.position(buf.position() + textBuf.length * 2);
+        final int glyphCount = buf.getInt();
+        final boolean hasFontIndices = (bits & 4) != 0;
+        // read straight into the slab, see TextLayout.packGlyphData
+        final int[] glyphData = new int[TextLayout.getGlyphDataLength(glyphCount, hasFontIndices)];
+        buf.asIntBuffer().get(glyphData, 0, glyphCount);
+        buf.position(buf.position() + glyphCount * 4);
+        // float bits are the same as the slab
+        buf.asIntBuffer().get(glyphData, glyphCount * 2, glyphCount * 2);
+        buf.position(buf.position() + glyphCount * 8);
+        buf.asIntBuffer().get(glyphData, glyphCount, glyphCount);
+        buf.position(buf.position() + glyphCount * 4);
+
+        final FontFamily[] families = fontCollection.getFamilies().toArray(new FontFamily[0]);
+        final Font[] fonts = new Font[buf.getInt()];
+        for (int i = 0; i < fonts.length; i++) {
+            int ref = buf.getShort() & 0xFFFF;
+            int family = ref >> 2;
+            if (family >= families.length) {
+                return null;
+            }
+            fonts[i] = families[family].getClosestMatch(FONT_STYLES[ref & 3]);
+        }
+        if (hasFontIndices) {
+            for (int i = 0, j = glyphCount * 4; i < glyphCount; i++) {
+                glyphData[j + (i >> 2)] |= (buf.get() & 0xFF) << ((i & 3) << 3);
+            }
+        }
+        float[] advances = null;
+        if ((bits & 8) != 0) {
+            advances = new float[textBuf.length];
+            buf.asFloatBuffer().get(advances);
+            buf.position(buf.position() + advances.length * 4);
+        }
+        int[] lineBoundaries = null;
+        int lineBoundaryCount = buf.getInt();
+        if (lineBoundaryCount >= 0) {
+            lineBoundaries = new int[lineBoundaryCount];
+            buf.asIntBuffer().get(lineBoundaries);
+        }
+        return new TextLayout(textBuf, glyphData, glyphCount, hasFontIndices,
+                new BakedGlyph[glyphCount], fonts, advances, lineBoundaries,
+                totalAdvance, (bits & 1) != 0, (bits & 2) != 0,
+                TextLayoutEngine.getInstance().getResLevel(), computedFlags);
+    }
+
+    /**
+     * @return (family index << 2 | style index), or -1
+     */
+    private static int findFont(FontFamily[] families, Font font) {
+        for (int i = 0, e = Math.min(families.length, 0x3FFF); i < e; i++) {
+            for (int j = 0; j < FONT_STYLES.length; j++) {
+                if (families[i].getClosestMatch(FONT_STYLES[j]) == font) {
+                    return i << 2 | j;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static void putString(ByteBuffer buf, String s) {
+        buf.putInt(s.length());
+        for (int i = 0, e = s.length(); i < e; i++) {
+            buf.putChar(s.charAt(i));
+        }
+    }
+
+    private static boolean matchString(ByteBuffer buf, String s) {
+        int length = buf.getInt();
+        if (length != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buf.getChar() != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compute a fingerprint of everything that affects shaping results.
+     *
+     * @param fontCollections all the fonts to use
+     * @param resLevel        the resolution level
+     * @param extra           other options affecting layout
+     * @return the fingerprint
+     */
+    static long computeFingerprint(@Nonnull Map<Identifier, FontCollection> fontCollections,
+                                   int resLevel, @Nonnull Object... extra) {
+        long h = VERSION;
+        h = 31 * h + resLevel;
+        for (Object o : extra) {
+            h = 31 * h + Objects.hashCode(o);
+        }
+        var names = new ArrayList<>(fontCollections.keySet());
+        names.sort(Comparator.naturalOrder());
+        for (Identifier name : names) {
+            h = 31 * h + name.hashCode();
+            for (FontFamily family : fontCollections.get(name).getFamilies()) {
+                h = 31 * h + Objects.hashCode(family.getFamilyName());
+                // a file may be replaced under the same family name
+                h = 31 * h + FontResourceManager.getFontIdentity(family);
+            }
+        }
+        // finalize, see SplitMix64
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+}
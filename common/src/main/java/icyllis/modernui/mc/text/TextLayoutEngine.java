@@ -52,12 +52,14 @@ import org.apache.logging.log4j.MarkerManager;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.awt.font.GlyphVector;
+import java.io.ByteArrayInputStream;
 import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
-import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
@@ -94,6 +96,11 @@ public class TextLayoutEngine extends FontResourceManager
      * We have an internal layout cache, so entries in this cache can be evicted quickly.
      */
     public static volatile int sCacheLifespan = 6;
+    /**
+     * Max memory size in bytes of all {@link TextLayout} entries in the cache. Cold entries
+     * are evicted before their lifespan when this is exceeded.
+     */
+    public static volatile long sCacheMemoryBudget = 16L << 20;
     //public static volatile int sRehashThreshold = 100;
     /*
      * Config value to use distance field text in 3D world.
@@ -231,27 +238,47 @@ public class TextLayoutEngine extends FontResourceManager
      */
     public static volatile boolean sAllowAsyncLayout = true;
 
+    /**
+     * Whether to persist shaping results of vanilla layouts across game restarts.
+     *
+     * @see TextLayoutDiskCache
+     */
+    public static volatile boolean sPersistentLayoutCache = false;
+
+    /**
+     * Whether to move glyph data of cached layouts that are not drawn recently to native
+     * memory, and restore it on next use.
+     * <p>
+     * Only glyph IDs, flags, positions and font indices are moved. The text buffer,
+     * advances, line boundaries, fonts and baked glyphs of a layout always stay on heap,
+     * and getters return heap arrays, never views over native memory.
+     *
+     * @see TextLayoutCache#sweep
+     */
+    public static volatile boolean sOffHeapLayoutCache = false;
+
 
     /**
-     * Temporary Key object re-used for lookups with stringCache.get(). Using a temporary object like this avoids the
-     * overhead of allocating new objects in the critical rendering path. Of course, new Key objects are always created
-     * when adding a mapping to stringCache.
+     * Layout caches, shared by render thread and background threads. Lookup keys are
+     * owned by each {@link TextLayoutProcessor}, new Key objects are always created
+     * when adding a mapping to the cache.
      */
-    private final VanillaLayoutKey mVanillaLookupKey = new VanillaLayoutKey();
-    private Map<VanillaLayoutKey, TextLayout> mVanillaCache = new HashMap<>();
+    private final TextLayoutCache<VanillaLayoutKey> mVanillaCache =
+            new TextLayoutCache<>(key -> 0); // key is a view, memory-less
 
     /**
      * For styled texts.
      *
      * @see #sUseComponentCache
      */
-    private Map<MutableComponent, TextLayout> mComponentCache = new HashMap<>();
+    private final TextLayoutCache<MutableComponent> mComponentCache =
+            new TextLayoutCache<>(key -> 0); // key is a view, memory-less
 
     /**
      * For deeply-processed texts.
      */
-    private final FormattedLayoutKey.Lookup mFormattedLayoutKey = new FormattedLayoutKey.Lookup();
-    private Map<FormattedLayoutKey, TextLayout> mFormattedCache = new HashMap<>();
+    private final TextLayoutCache<FormattedLayoutKey> mFormattedCache =
+            new TextLayoutCache<>(FormattedLayoutKey::getMemorySize); // key is backed ourselves
 
     /**
      * Render thread layout proc.
@@ -259,11 +286,61 @@ public class TextLayoutEngine extends FontResourceManager
     private final TextLayoutProcessor mProcessor = new TextLayoutProcessor(this);
 
     /**
-     * Background thread layout procs.
+     * Number of worker threads for batch layout.
+     *
+     * @see #lookupLayouts(List, Style, int)
+     */
+    private static final int LAYOUT_PARALLELISM =
+            Math.clamp(Runtime.getRuntime().availableProcessors() / 2, 1, 4);
+
+    /**
+     * Texts per task when fanning out batch layout.
+     */
+    private static final int LAYOUT_BATCH_SIZE = 8;
+
+    /**
+     * Background thread layout procs, for both batch layout workers and other threads.
      *
      * @see #sAllowAsyncLayout
      */
-    private final Pools.Pool<TextLayoutProcessor> mProcessorPool = Pools.newSynchronizedPool(3);
+    private final Pools.Pool<TextLayoutProcessor> mProcessorPool =
+            Pools.newSynchronizedPool(LAYOUT_PARALLELISM + 3);
+    /**
+     * Number of background procs created, it keeps growing if the pool churns.
+     */
+    private final LongAdder mProcessorCreateCount = new LongAdder();
+
+    /**
+     * Work-stealing pool for batch layout, lazily created.
+     */
+    private volatile ForkJoinPool mLayoutPool;
+
+    /**
+     * Persistent vanilla layouts, opened on reload.
+     */
+    private final TextLayoutDiskCache mDiskCache = new TextLayoutDiskCache();
+
+    /**
+     * Shaping results of word segments, shared by all processors.
+     */
+    private final ShapedSegmentCache mSegmentCache = new ShapedSegmentCache();
+
+    /**
+     * Glyph tables of Latin-1 chars, for the fast layout path.
+     */
+    private final ConcurrentHashMap<AsciiLayoutTable.Key, AsciiLayoutTable> mAsciiTables =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Fallback family of each code point, per font collection.
+     */
+    private final ConcurrentHashMap<FontCollection, FontItemizationCache> mItemizationCaches =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Engine clock in seconds, used as the access stamp of cache entries.
+     */
+    private volatile int mClock;
 
     /**
      * All the fonts to use. Maps typeface name to FontCollection.
@@ -329,6 +406,8 @@ public class TextLayoutEngine extends FontResourceManager
         mGlyphManager = GlyphManager.getInstance();
 
         mGlyphManager.addAtlasInvalidationCallback(invalidationInfo -> {
+            // texture coords are baked into meshes, including layouts held by others
+            TextMesh.invalidateAll();
             if (invalidationInfo.resize()) {
                 // texture atlas is resized to a larger size, but no glyphs are evicted
                 //invalidateStrikeCache();
@@ -400,13 +479,10 @@ public class TextLayoutEngine extends FontResourceManager
      */
     public void clear() {
         int count = getCacheCount();
+        // the internal hashtable of old maps are released as well
         mVanillaCache.clear();
         mComponentCache.clear();
         mFormattedCache.clear();
-        // Create new HashMap so that the internal hashtable of old maps are released as well
-        mVanillaCache = new HashMap<>();
-        mComponentCache = new HashMap<>();
-        mFormattedCache = new HashMap<>();
         // Just clear TextRenderType instances, font textures are remained
         TextRenderType.clear(/*cleanup*/ false);
         if (count > 0) {
@@ -428,11 +504,14 @@ public class TextLayoutEngine extends FontResourceManager
         } else {
             scale = 2;
         }
+        // font collections may be replaced
+        mItemizationCaches.clear();
         internalReload(scale);
     }
 
     private void internalReload(int scale) {
         clear();
+        TextMesh.invalidateAll();
 
         final int oldLevel = mResLevel;
         if (sFixedResolution) {
@@ -516,6 +595,18 @@ public class TextLayoutEngine extends FontResourceManager
             }
         }
 
+        // lookups started by workers during the reload used the old state
+        mVanillaCache.invalidate();
+        mComponentCache.invalidate();
+        mFormattedCache.invalidate();
+
+        mDiskCache.open(TextLayoutDiskCache.computeFingerprint(mFontCollections, mResLevel,
+                mForceUnicodeFont, locale, sTextDirection,
+                TextLayoutProcessor.sBaseFontSize,
+                TextLayoutProcessor.sLbStyle, TextLayoutProcessor.sLbWordStyle,
+                GlyphManager.sAntiAliasing, GlyphManager.sFractionalMetrics,
+                BitmapFont.sBitmapOffset));
+
         LOGGER.info(MARKER, "Reloaded text layout engine, res level: {} to {}, locale: {}, layout RTL: {}",
                 oldLevel, mResLevel, locale, layoutRtl);
     }
@@ -527,6 +618,8 @@ public class TextLayoutEngine extends FontResourceManager
     @RenderThread
     public void reloadAll() {
         super.reloadAll();
+        mSegmentCache.clear();
+        mAsciiTables.clear();
         mGlyphManager.reload();
         LOGGER.info(GlyphManager.MARKER, "Reloaded glyph manager");
         reload();
@@ -552,7 +645,73 @@ public class TextLayoutEngine extends FontResourceManager
         pw.print("TextLayoutEngine: ");
         pw.print("CacheCount=" + getCacheCount());
         long memorySize = getCacheMemorySize();
-        pw.println(", CacheSize=" + TextUtils.binaryCompact(memorySize) + " (" + memorySize + " bytes)");
+        pw.print(", CacheSize=" + TextUtils.binaryCompact(memorySize) + " (" + memorySize + " bytes)");
+        pw.println(", CacheBudget=" + TextUtils.binaryCompact(sCacheMemoryBudget));
+        pw.print("  OffHeap: ");
+        pw.print("Enabled=" + sOffHeapLayoutCache);
+        pw.print(", HeapSize=" + TextUtils.binaryCompact(memorySize - TextLayout.getDetachedMemorySize()));
+        pw.println(", NativeSize=" + TextUtils.binaryCompact(TextLayout.getNativeMemorySize()));
+        dumpCacheStats(pw, "VanillaCache", mVanillaCache);
+        dumpCacheStats(pw, "ComponentCache", mComponentCache);
+        dumpCacheStats(pw, "FormattedCache", mFormattedCache);
+        pw.print("  DiskCache: ");
+        pw.print("Enabled=" + sPersistentLayoutCache);
+        pw.print(", FileSize=" + TextUtils.binaryCompact(mDiskCache.getFileSize()));
+        pw.println(", Hits=" + mDiskCache.getHitCount());
+        long segmentHits = mSegmentCache.getHitCount();
+        long segmentTotal = segmentHits + mSegmentCache.getMissCount();
+        pw.print("  SegmentCache: ");
+        pw.print("Count=" + mSegmentCache.size());
+        pw.print(", Size=" + TextUtils.binaryCompact(mSegmentCache.getMemorySize()));
+        pw.print(", Hits=" + segmentHits);
+        pw.print(", Misses=" + mSegmentCache.getMissCount());
+        pw.printf(", HitRate=%.2f%%%n", segmentTotal > 0 ? segmentHits * 100.0 / segmentTotal : 0.0);
+        long itemizationSize = 0;
+        for (var cache : mItemizationCaches.values()) {
+            itemizationSize += cache.getMemorySize();
+        }
+        pw.println("  Processors: Created=" + mProcessorCreateCount.sum());
+        pw.print("  ItemizationCache: ");
+        pw.print("Count=" + mItemizationCaches.size());
+        pw.println(", Size=" + TextUtils.binaryCompact(itemizationSize));
+    }
+
+    @Nonnull
+    ShapedSegmentCache getSegmentCache() {
+        return mSegmentCache;
+    }
+
+    @Nonnull
+    FontItemizationCache getItemizationCache(@Nonnull FontCollection collection) {
+        return mItemizationCaches.computeIfAbsent(collection, FontItemizationCache::new);
+    }
+
+    /**
+     * Get or build the glyph table for the font collection, style and size of the paint.
+     */
+    @Nonnull
+    AsciiLayoutTable getAsciiTable(@Nonnull FontPaint paint, int fontStyle, int fontSize, int flags) {
+        var key = new AsciiLayoutTable.Key(paint.getFont(), fontStyle, fontSize,
+                paint.getLocale(), flags);
+        AsciiLayoutTable table = mAsciiTables.get(key);
+        if (table == null) {
+            table = AsciiLayoutTable.build(paint, fontStyle);
+            mAsciiTables.putIfAbsent(key, table);
+        }
+        return table;
+    }
+
+    private static void dumpCacheStats(@Nonnull PrintWriter pw, String name, @Nonnull TextLayoutCache<?> cache) {
+        long hits = cache.getHitCount();
+        long misses = cache.getMissCount();
+        long total = hits + misses;
+        pw.print("  " + name + ": ");
+        pw.print("Count=" + cache.size());
+        pw.print(", Size=" + TextUtils.binaryCompact(cache.getWeight()));
+        pw.print(", Hits=" + hits);
+        pw.print(", Misses=" + misses);
+        pw.printf(", HitRate=%.2f%%", total > 0 ? hits * 100.0 / total : 0.0);
+        pw.println(", Evictions=" + cache.getEvictionCount());
     }
 
     //// START Resource Reloading
@@ -624,6 +783,7 @@ public class TextLayoutEngine extends FontResourceManager
                                           @Nonnull Executor preparationExecutor,
                                           @Nonnull PreparationBarrier preparationBarrier,
                                           @Nonnull Executor reloadExecutor) {
+        cancelEmojiLoading();
         return prepareResources(currentReload.resourceManager(), preparationExecutor)
                 .thenCompose(preparationBarrier::wait)
                 .thenAcceptAsync(results -> {
@@ -703,6 +863,9 @@ public class TextLayoutEngine extends FontResourceManager
 
     @Override
     public void close() {
+        if (mDiskCache.hasPendingEntries()) {
+            mDiskCache.flush();
+        }
         mGlyphManager.closeAtlases();
         closeFonts();
         // do final cleanup
@@ -875,9 +1038,9 @@ public class TextLayoutEngine extends FontResourceManager
         switch (definition.type()) {
             case BITMAP -> {
                 var bitmapFont = BitmapFont.create((BitmapProvider.Definition) definition, resources);
-                bundle.families.add(
-                        new FontFamily(bitmapFont)
-                );
+                var family = new FontFamily(bitmapFont);
+                putFontIdentity(family, bitmapFont.getIdentity());
+                bundle.families.add(family);
             }
             case TTF -> {
                 var ttf = (TrueTypeGlyphProviderDefinition) definition;
@@ -927,8 +1090,12 @@ public class TextLayoutEngine extends FontResourceManager
     @Nonnull
     private static FontFamily createTTF(@Nonnull Identifier file, ResourceManager resources) {
         var location = file.withPrefix("font/");
-        try (var stream = resources.open(location)) {
-            return FontFamily.createFamily(stream, /*register*/false);
+        try (var stream = checkContent(resources.open(location))) {
+            byte[] data = stream.readAllBytes();
+            FontFamily family = FontFamily.createFamily(new ByteArrayInputStream(data), /*register*/false);
+            putFontIdentity(family, getContentIdentity(stream));
+            putContextualGlyphs(family, scanContextualGlyphs(ByteBuffer.wrap(data)));
+            return family;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -989,32 +1156,54 @@ public class TextLayoutEngine extends FontResourceManager
         if (text.isEmpty()) {
             return TextLayout.EMPTY;
         }
-        if (!RenderSystem.isOnRenderThread()) {
-            if (sAllowAsyncLayout) {
-                TextLayoutProcessor proc = mProcessorPool.acquire();
-                if (proc == null) {
-                    proc = new TextLayoutProcessor(this);
-                }
-                TextLayout layout = proc.createVanillaLayout(text, style, mResLevel, computeFlags);
+        final boolean renderThread = RenderSystem.isOnRenderThread();
+        if (!renderThread && !sAllowAsyncLayout) {
+            return Minecraft.getInstance().submit(
+                            () -> lookupVanillaLayout(text, style, computeFlags)
+                    )
+                    .join();
+        }
+        final TextLayoutProcessor proc = renderThread ? mProcessor : acquireProcessor();
+        try {
+            return lookupVanillaLayout(proc, text, style, computeFlags);
+        } finally {
+            if (!renderThread) {
                 mProcessorPool.release(proc);
-                return layout;
-            } else {
-                return Minecraft.getInstance().submit(
-                                () -> lookupVanillaLayout(text, style, computeFlags)
-                        )
-                        .join();
             }
         }
-        TextLayout layout = mVanillaCache.get(mVanillaLookupKey.update(text, style));
+    }
+
+    @Nonnull
+    private TextLayout lookupVanillaLayout(@Nonnull TextLayoutProcessor proc,
+                                           @Nonnull String text, @Nonnull Style style,
+                                           int computeFlags) {
+        final int now = mClock;
+        // a worker may finish after the engine is reloaded
+        final int generation = mVanillaCache.getGeneration();
+        final VanillaLayoutKey key = proc.mVanillaLookupKey.update(text, style);
+        TextLayout layout = mVanillaCache.get(key, now);
         int nowFlags = 0;
+        if (layout == null && sPersistentLayoutCache &&
+                style.getFont() instanceof FontDescription.Resource resource) {
+            layout = mDiskCache.load(text, style, computeFlags,
+                    getFontCollection(resource.id()));
+            if (layout != null) {
+                mVanillaCache.put(key.copy(), layout, now, generation);
+                return layout;
+            }
+        }
         if (layout == null ||
                 ((nowFlags = layout.mComputedFlags) & computeFlags) != computeFlags) {
-            layout = mProcessor.createVanillaLayout(text, style, mResLevel,
+            layout = proc.createVanillaLayout(text, style, mResLevel,
                     nowFlags | computeFlags);
-            mVanillaCache.put(mVanillaLookupKey.copy(), layout);
-            return layout;
+            if (mVanillaCache.put(key.copy(), layout, now, generation) &&
+                    sPersistentLayoutCache &&
+                    style.getFont() instanceof FontDescription.Resource resource) {
+                mDiskCache.store(text, style, layout,
+                        getFontCollection(resource.id()));
+            }
         }
-        return layout.get();
+        return layout;
     }
 
     /**
@@ -1059,46 +1248,53 @@ public class TextLayoutEngine extends FontResourceManager
         if (text == CommonComponents.EMPTY || text == FormattedText.EMPTY) {
             return TextLayout.EMPTY;
         }
-        if (!RenderSystem.isOnRenderThread()) {
-            if (sAllowAsyncLayout) {
-                TextLayoutProcessor proc = mProcessorPool.acquire();
-                if (proc == null) {
-                    proc = new TextLayoutProcessor(this);
-                }
-                TextLayout layout = proc.createTextLayout(text, style, mResLevel, computeFlags);
+        final boolean renderThread = RenderSystem.isOnRenderThread();
+        if (!renderThread && !sAllowAsyncLayout) {
+            return Minecraft.getInstance().submit(
+                            () -> lookupFormattedLayout(text, style, computeFlags)
+                    )
+                    .join();
+        }
+        final TextLayoutProcessor proc = renderThread ? mProcessor : acquireProcessor();
+        try {
+            return lookupFormattedLayout(proc, text, style, computeFlags);
+        } finally {
+            if (!renderThread) {
                 mProcessorPool.release(proc);
-                return layout;
-            } else {
-                return Minecraft.getInstance().submit(
-                                () -> lookupFormattedLayout(text, style, computeFlags)
-                        )
-                        .join();
             }
         }
+    }
+
+    @Nonnull
+    private TextLayout lookupFormattedLayout(@Nonnull TextLayoutProcessor proc,
+                                             @Nonnull FormattedText text, @Nonnull Style style,
+                                             int computeFlags) {
+        final int now = mClock;
         TextLayout layout;
         int nowFlags = 0;
         if (style.isEmpty() && sUseComponentCache &&
                 text instanceof MutableComponent component) {
-            layout = mComponentCache.get(component);
+            final int generation = mComponentCache.getGeneration();
+            layout = mComponentCache.get(component, now);
             if (layout == null ||
                     ((nowFlags = layout.mComputedFlags) & computeFlags) != computeFlags) {
-                layout = mProcessor.createTextLayout(text, Style.EMPTY, mResLevel,
+                layout = proc.createTextLayout(text, Style.EMPTY, mResLevel,
                         nowFlags | computeFlags);
-                mComponentCache.put(component, layout);
-                return layout;
+                mComponentCache.put(component, layout, now, generation);
             }
         } else {
             // the more complex case (multi-component)
-            layout = mFormattedCache.get(mFormattedLayoutKey.update(text, style));
+            final int generation = mFormattedCache.getGeneration();
+            final FormattedLayoutKey.Lookup key = proc.mFormattedLookupKey;
+            layout = mFormattedCache.get(key.update(text, style), now);
             if (layout == null ||
                     ((nowFlags = layout.mComputedFlags) & computeFlags) != computeFlags) {
-                layout = mProcessor.createTextLayout(text, style, mResLevel,
+                layout = proc.createTextLayout(text, style, mResLevel,
                         nowFlags | computeFlags);
-                mFormattedCache.put(mFormattedLayoutKey.copy(), layout);
-                return layout;
+                mFormattedCache.put(key.copy(), layout, now, generation);
             }
         }
-        return layout.get();
+        return layout;
     }
 
     /**
@@ -1134,78 +1330,234 @@ public class TextLayoutEngine extends FontResourceManager
         if (sequence == FormattedCharSequence.EMPTY) {
             return TextLayout.EMPTY;
         }
-        if (!RenderSystem.isOnRenderThread()) {
-            if (sAllowAsyncLayout) {
-                TextLayoutProcessor proc = mProcessorPool.acquire();
-                if (proc == null) {
-                    proc = new TextLayoutProcessor(this);
-                }
-                TextLayout layout = proc.createSequenceLayout(sequence, mResLevel, computeFlags);
-                mProcessorPool.release(proc);
-                return layout;
-            } else {
-                return Minecraft.getInstance().submit(
-                                () -> lookupFormattedLayout(sequence, computeFlags)
-                        )
-                        .join();
-            }
+        final boolean renderThread = RenderSystem.isOnRenderThread();
+        if (!renderThread && !sAllowAsyncLayout) {
+            return Minecraft.getInstance().submit(
+                            () -> lookupFormattedLayout(sequence, computeFlags)
+                    )
+                    .join();
         }
-        int nowFlags = 0;
         // check if it's intercepted by Language.getVisualOrder()
         if (sequence instanceof FormattedTextWrapper) {
             FormattedText text = ((FormattedTextWrapper) sequence).mText;
             if (text == CommonComponents.EMPTY || text == FormattedText.EMPTY) {
                 return TextLayout.EMPTY;
             }
-            TextLayout layout;
-            if (sUseComponentCache &&
-                    text instanceof MutableComponent component) {
-                layout = mComponentCache.get(component);
-                if (layout == null ||
-                        ((nowFlags = layout.mComputedFlags) & computeFlags) != computeFlags) {
-                    layout = mProcessor.createTextLayout(text, Style.EMPTY, mResLevel,
-                            nowFlags | computeFlags);
-                    mComponentCache.put(component, layout);
-                    return layout;
-                }
+        }
+        final TextLayoutProcessor proc = renderThread ? mProcessor : acquireProcessor();
+        try {
+            // check if it's intercepted by Language.getVisualOrder()
+            if (sequence instanceof FormattedTextWrapper) {
+                return lookupFormattedLayout(proc, ((FormattedTextWrapper) sequence).mText,
+                        Style.EMPTY, computeFlags);
+            }
+            // check if it's intercepted by FormattedCharSequence.forward()
+            else if (sequence instanceof VanillaTextWrapper wrapper) {
+                return lookupVanillaLayout(proc, wrapper.mText, wrapper.mStyle, computeFlags);
             } else {
-                // the more complex case (multi-component)
-                layout = mFormattedCache.get(mFormattedLayoutKey.update(text, Style.EMPTY));
+                // the most complex case (multi-component)
+                final int now = mClock;
+                final int generation = mFormattedCache.getGeneration();
+                final FormattedLayoutKey.Lookup key = proc.mFormattedLookupKey;
+                TextLayout layout = mFormattedCache.get(key.update(sequence), now);
+                int nowFlags = 0;
                 if (layout == null ||
                         ((nowFlags = layout.mComputedFlags) & computeFlags) != computeFlags) {
-                    layout = mProcessor.createTextLayout(text, Style.EMPTY, mResLevel,
+                    layout = proc.createSequenceLayout(sequence, mResLevel,
                             nowFlags | computeFlags);
-                    mFormattedCache.put(mFormattedLayoutKey.copy(), layout);
-                    return layout;
+                    mFormattedCache.put(key.copy(), layout, now, generation);
                 }
+                return layout;
+            }
+        } finally {
+            if (!renderThread) {
+                mProcessorPool.release(proc);
             }
-            return layout.get();
         }
-        // check if it's intercepted by FormattedCharSequence.forward()
-        else if (sequence instanceof VanillaTextWrapper wrapper) {
-            String text = wrapper.mText;
-            Style style = wrapper.mStyle;
-            TextLayout layout = mVanillaCache.get(mVanillaLookupKey.update(text, style));
-            if (layout == null ||
-                    ((nowFlags = layout.mComputedFlags) & computeFlags) != computeFlags) {
-                layout = mProcessor.createVanillaLayout(text, style, mResLevel,
-                        nowFlags | computeFlags);
-                mVanillaCache.put(mVanillaLookupKey.copy(), layout);
-                return layout;
+    }
+
+    /**
+     * Find or create full text layouts for the given formatted texts, in parallel. Cache hits
+     * are resolved immediately, cache misses are fanned out to a work-stealing pool of layout
+     * procs, and the results are published into the layout cache as well.
+     * <p>
+     * If async layout is disabled, this performs layout on the render thread and blocks
+     * the current thread until completion.
+     *
+     * @param texts        the text ancestors
+     * @param style        the base style
+     * @param computeFlags additional layout info to compute
+     * @return a future of layouts, in the same order as the given texts
+     * @see #sAllowAsyncLayout
+     */
+    @Nonnull
+    public CompletableFuture<TextLayout[]> lookupLayouts(@Nonnull List<? extends FormattedText> texts,
+                                                         @Nonnull Style style, int computeFlags) {
+        final int count = texts.size();
+        final TextLayout[] layouts = new TextLayout[count];
+        if (count == 0) {
+            return CompletableFuture.completedFuture(layouts);
+        }
+        final boolean renderThread = RenderSystem.isOnRenderThread();
+        if (!sAllowAsyncLayout) {
+            if (renderThread) {
+                for (int i = 0; i < count; i++) {
+                    layouts[i] = lookupFormattedLayout(texts.get(i), style, computeFlags);
+                }
+                return CompletableFuture.completedFuture(layouts);
             }
-            return layout.get();
+            return Minecraft.getInstance().submit(
+                    () -> lookupLayouts(texts, style, computeFlags).join()
+            );
+        }
+        // resolve cache hits first, the remaining indices are cache misses
+        final int[] misses = new int[count];
+        int missCount = 0;
+        final TextLayoutProcessor proc = renderThread ? mProcessor : acquireProcessor();
+        try {
+            for (int i = 0; i < count; i++) {
+                FormattedText text = texts.get(i);
+                TextLayout layout;
+                if (text == CommonComponents.EMPTY || text == FormattedText.EMPTY) {
+                    layout = TextLayout.EMPTY;
+                } else {
+                    layout = peekFormattedLayout(proc, text, style, computeFlags);
+                }
+                if (layout != null) {
+                    layouts[i] = layout;
+                } else {
+                    misses[missCount++] = i;
+                }
+            }
+        } finally {
+            if (!renderThread) {
+                mProcessorPool.release(proc);
+            }
+        }
+        if (missCount == 0) {
+            return CompletableFuture.completedFuture(layouts);
+        }
+        final ForkJoinPool pool = getLayoutPool();
+        final var tasks = new CompletableFuture<?>[(missCount + LAYOUT_BATCH_SIZE - 1) / LAYOUT_BATCH_SIZE];
+        for (int t = 0; t < tasks.length; t++) {
+            final int from = t * LAYOUT_BATCH_SIZE;
+            final int to = Math.min(from + LAYOUT_BATCH_SIZE, missCount);
+            tasks[t] = CompletableFuture.runAsync(() -> {
+                // worker threads are never render thread, procs come from the pool
+                for (int j = from; j < to; j++) {
+                    int i = misses[j];
+                    layouts[i] = lookupFormattedLayout(texts.get(i), style, computeFlags);
+                }
+            }, pool);
+        }
+        return CompletableFuture.allOf(tasks)
+                .thenApply(__ -> layouts);
+    }
+
+    /**
+     * Find or create full text layouts for the given formatted texts, in parallel.
+     *
+     * @param texts the text ancestors
+     * @return a future of layouts, in the same order as the given texts
+     * @see #lookupLayouts(List, Style, int)
+     */
+    @Nonnull
+    public CompletableFuture<TextLayout[]> lookupLayouts(@Nonnull List<? extends FormattedText> texts) {
+        return lookupLayouts(texts, Style.EMPTY, 0);
+    }
+
+    /**
+     * Warm the layout cache for the given formatted texts without blocking, so that
+     * layouts can be looked up on the next frames without shaping. Results are only
+     * published into the layout cache.
+     *
+     * @param texts        the text ancestors
+     * @param style        the base style
+     * @param computeFlags additional layout info to compute
+     * @see #lookupLayouts(List, Style, int)
+     */
+    public void prefetchLayouts(@Nonnull List<? extends FormattedText> texts,
+                                @Nonnull Style style, int computeFlags) {
+        if (texts.isEmpty() || !sAllowAsyncLayout) {
+            // avoid blocking
+            return;
+        }
+        lookupLayouts(texts, style, computeFlags)
+                .exceptionally(e -> {
+                    LOGGER.warn(MARKER, "Failed to prefetch text layouts", e);
+                    return null;
+                });
+    }
+
+    /**
+     * Warm the layout cache for the given formatted texts without blocking.
+     *
+     * @param texts the text ancestors
+     * @see #prefetchLayouts(List, Style, int)
+     */
+    public void prefetchLayouts(@Nonnull List<? extends FormattedText> texts) {
+        prefetchLayouts(texts, Style.EMPTY, 0);
+    }
+
+    /**
+     * Find a cached layout that has at least the given compute flags,
+     * without performing any layout and counting any cache miss.
+     */
+    @Nullable
+    private TextLayout peekFormattedLayout(@Nonnull TextLayoutProcessor proc,
+                                           @Nonnull FormattedText text, @Nonnull Style style,
+                                           int computeFlags) {
+        final TextLayoutCache<?> cache;
+        final TextLayout layout;
+        if (style.isEmpty() && sUseComponentCache &&
+                text instanceof MutableComponent component) {
+            cache = mComponentCache;
+            layout = cache.peek(component);
         } else {
-            // the most complex case (multi-component)
-            TextLayout layout = mFormattedCache.get(mFormattedLayoutKey.update(sequence));
-            if (layout == null ||
-                    ((nowFlags = layout.mComputedFlags) & computeFlags) != computeFlags) {
-                layout = mProcessor.createSequenceLayout(sequence, mResLevel,
-                        nowFlags | computeFlags);
-                mFormattedCache.put(mFormattedLayoutKey.copy(), layout);
-                return layout;
+            cache = mFormattedCache;
+            layout = cache.peek(proc.mFormattedLookupKey.update(text, style));
+        }
+        if (layout != null && (layout.mComputedFlags & computeFlags) == computeFlags) {
+            // a miss is counted by the lookup performed later
+            cache.recordHit(layout, mClock);
+            return layout;
+        }
+        return null;
+    }
+
+    @Nonnull
+    private ForkJoinPool getLayoutPool() {
+        ForkJoinPool pool = mLayoutPool;
+        if (pool == null) {
+            synchronized (this) {
+                pool = mLayoutPool;
+                if (pool == null) {
+                    final ClassLoader contextClassLoader = TextLayoutEngine.class.getClassLoader();
+                    mLayoutPool = pool = new ForkJoinPool(LAYOUT_PARALLELISM, p -> {
+                        var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                        thread.setName("ModernUI-TextLayout-" + thread.getPoolIndex());
+                        thread.setDaemon(true);
+                        // mod classes are not visible to the system class loader
+                        thread.setContextClassLoader(contextClassLoader);
+                        return thread;
+                    }, (t, e) -> LOGGER.error(MARKER, "Uncaught exception in {}", t.getName(), e), true);
+                }
             }
-            return layout.get();
         }
+        return pool;
+    }
+
+    /**
+     * Obtain a layout proc for background threads, release it back to {@link #mProcessorPool}.
+     */
+    @Nonnull
+    private TextLayoutProcessor acquireProcessor() {
+        TextLayoutProcessor proc = mProcessorPool.acquire();
+        if (proc == null) {
+            proc = new TextLayoutProcessor(this);
+            mProcessorCreateCount.increment();
+        }
+        return proc;
     }
 
     ////// END Cache Retrieval
@@ -1245,6 +1597,17 @@ public class TextLayoutEngine extends FontResourceManager
                 : ModernUI.getSelectedTypeface();
     }
 
+    /**
+     * Use the given font collection for a font name until the next resource reloading,
+     * for benchmarks and tests that run without resource packs.
+     *
+     * @param fontName       a font name
+     * @param fontCollection the font collection
+     */
+    public void putFontCollection(@Nonnull Identifier fontName, @Nonnull FontCollection fontCollection) {
+        mFontCollections.put(fontName, fontCollection);
+    }
+
     /**
      * Given a special font name, returns a glyph source.
      * <p>
@@ -1320,28 +1683,29 @@ public class TextLayoutEngine extends FontResourceManager
      * Ticks the caches and clear unused entries.
      */
     public void onEndClientTick() {
+        final int now;
         if (mTimer == 0) {
-            //int oldCount = getCacheCount();
-            final int lifespan = sCacheLifespan;
-            final Predicate<TextLayout> ticker = layout -> layout.tick(lifespan);
-            mVanillaCache.values().removeIf(ticker);
-            mComponentCache.values().removeIf(ticker);
-            mFormattedCache.values().removeIf(ticker);
-            /*if (oldCount >= sRehashThreshold) {
-                int newCount = getCacheCount();
-                if (newCount < sRehashThreshold) {
-                    mVanillaCache = new HashMap<>(mVanillaCache);
-                    mComponentCache = new HashMap<>(mComponentCache);
-                    mFormattedCache = new HashMap<>(mFormattedCache);
-                }
-            }*/
+            now = ++mClock;
             boolean useTextShadersEffective = sRawUseTextShadersInWorld
                     && !ModernUIClient.areShadersEnabled();
             if (sUseTextShadersInWorld != useTextShadersEffective) {
                 reload();
                 sUseTextShadersInWorld = useTextShadersEffective;
             }
-        }
+            if (now % 30 == 0 && mDiskCache.hasPendingEntries()) {
+                Util.ioPool().execute(mDiskCache::flush);
+            }
+        } else {
+            now = mClock;
+        }
+        // incremental eviction, weakly consistent, layouts can be looked up and inserted concurrently
+        final int lifespan = sCacheLifespan;
+        final boolean overBudget = getCacheMemorySize() > sCacheMemoryBudget;
+        final int maxVisits = overBudget ? 1024 : 128;
+        final boolean offHeap = sOffHeapLayoutCache;
+        mVanillaCache.sweep(now, lifespan, overBudget, maxVisits, offHeap);
+        mComponentCache.sweep(now, lifespan, overBudget, maxVisits, offHeap);
+        mFormattedCache.sweep(now, lifespan, overBudget, maxVisits, offHeap);
         // convert ticks to seconds
         mTimer = (mTimer + 1) % 20;
     }
@@ -1354,37 +1718,23 @@ public class TextLayoutEngine extends FontResourceManager
     }
 
     /**
-     * @return measurable cache size in bytes
+     * @return measurable cache size in bytes, when entries were inserted
      */
-    public int getCacheMemorySize() {
-        int size = 0;
-        for (var n : mVanillaCache.values()) {
-            // key is a view, memory-less
-            size += n.getMemorySize();
-        }
-        for (var n : mComponentCache.values()) {
-            // key is a view, memory-less
-            size += n.getMemorySize();
-        }
-        for (var e : mFormattedCache.entrySet()) {
-            // key is backed ourselves
-            size += e.getKey().getMemorySize();
-            size += e.getValue().getMemorySize();
-        }
-        return size;
+    public long getCacheMemorySize() {
+        return mVanillaCache.getWeight() + mComponentCache.getWeight() + mFormattedCache.getWeight();
     }
 
     public void dumpLayoutCache() {
         int i = 0;
-        for (var e : mVanillaCache.entrySet()) {
+        for (var e : mVanillaCache.entries()) {
             LOGGER.info(MARKER, "VanillaCache {}\n{}\n{}", i, e.getKey(), e.getValue().toDetailedString());
             i++;
         }
-        for (var e : mComponentCache.entrySet()) {
+        for (var e : mComponentCache.entries()) {
             LOGGER.info(MARKER, "ComponentCache {}\n{}\n{}", i, e.getKey(), e.getValue().toDetailedString());
             i++;
         }
-        for (var e : mFormattedCache.entrySet()) {
+        for (var e : mFormattedCache.entries()) {
             LOGGER.info(MARKER, "FormattedCache {}\n{}\n{}", i, e.getKey(), e.getValue().toDetailedString());
             i++;
         }
@@ -94,9 +94,24 @@ public class TextLayoutProcessor {
     //public static volatile boolean sAlignPixels = false;
     public static volatile int sLbStyle = LineBreakConfig.LINE_BREAK_STYLE_NONE;
     public static volatile int sLbWordStyle = LineBreakConfig.LINE_BREAK_WORD_STYLE_NONE;
+    public static volatile boolean sAsciiFastPath = true;
 
     private final TextLayoutEngine mEngine;
 
+    /**
+     * Temporary key objects re-used for cache lookups by the thread owning this processor.
+     *
+     * @see TextLayoutEngine#lookupVanillaLayout(String, Style, int)
+     * @see TextLayoutEngine#lookupFormattedLayout(FormattedText, Style, int)
+     */
+    final VanillaLayoutKey mVanillaLookupKey = new VanillaLayoutKey();
+    final FormattedLayoutKey.Lookup mFormattedLookupKey = new FormattedLayoutKey.Lookup();
+
+    /**
+     * Number of style runs laid out by glyph tables, see {@link #getAsciiRunCount()}.
+     */
+    private int mAsciiRunCount;
+
     /**
      * Char array builder. Formatting codes will be stripped from this array.
      */
@@ -184,6 +199,17 @@ public class TextLayoutProcessor {
      */
     private final IntArrayList mLineBoundaries = new IntArrayList();
 
+    /**
+     * Reused for texts that contain RTL chars, it grows as needed.
+     */
+    private final Bidi mBidi = new Bidi();
+
+    /**
+     * Per-glyph and per-char buffers larger than this are trimmed on reset.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 4096;
+    private static final int INITIAL_CAPACITY = 256;
+
     /*
      * List of all processing glyphs
      */
@@ -213,6 +239,19 @@ public class TextLayoutProcessor {
 
     private final FontPaint mFontPaint = new FontPaint();
 
+    /**
+     * Lookup key into {@link ShapedSegmentCache}, and grapheme advances of a segment.
+     */
+    private final ShapedSegmentCache.Key mSegmentKey = new ShapedSegmentCache.Key();
+    private final float[] mSegmentAdvances = new float[ShapedSegmentCache.MAX_SEGMENT_LENGTH];
+    private int mFontSize;
+    private int mPaintFlags;
+
+    private BreakIterator mLineBreaker;
+    private Locale mLineBreakerLocale;
+    private int mLineBreakerStyle;
+    private int mLineBreakerWordStyle;
+
     /*
      * Needed in RTL layout
      */
@@ -369,6 +408,16 @@ public class TextLayoutProcessor {
         mEngine = engine;
     }
 
+    /**
+     * Returns the number of style runs that were laid out by glyph tables rather than
+     * text shaping, since this processor was created.
+     *
+     * @see #sAsciiFastPath
+     */
+    public int getAsciiRunCount() {
+        return mAsciiRunCount;
+    }
+
     public static int computeFontSize(float resLevel) {
         // Note max font size is 96, font size will be (8 * res) in Minecraft by default
         return Math.min((int) (sBaseFontSize * resLevel + 0.5), 96);
@@ -442,6 +491,18 @@ public class TextLayoutProcessor {
         //mHasFastDigit = false;
         mHasColorEmoji = false;
         mHasCompatGlyph = false;
+        // processors are pooled, don't keep buffers of a very long text alive
+        if (mAdvances.elements().length > MAX_RETAINED_CAPACITY ||
+                mGlyphs.elements().length > MAX_RETAINED_CAPACITY) {
+            mGlyphs.trim(INITIAL_CAPACITY);
+            mInitialBakedGlyphs.trim(INITIAL_CAPACITY);
+            mFontIndices.trim(INITIAL_CAPACITY);
+            mPositions.trim(INITIAL_CAPACITY << 1);
+            mAdvances.trim(INITIAL_CAPACITY);
+            mGlyphFlags.trim(INITIAL_CAPACITY);
+            mLineBoundaries.trim(INITIAL_CAPACITY);
+            mStyles.trim(INITIAL_CAPACITY);
+        }
     }
 
     @Nonnull
@@ -587,6 +648,9 @@ public class TextLayoutProcessor {
             mFontPaint.setAntiAlias(GlyphManager.sAntiAliasing);
             mFontPaint.setLinearMetrics(GlyphManager.sFractionalMetrics);
             mResLevel = resLevel;
+            mFontSize = fontSize;
+            mPaintFlags = (GlyphManager.sAntiAliasing ? 1 : 0) |
+                    (GlyphManager.sFractionalMetrics ? 2 : 0);
 
             // pre allocate memory
             if (mComputeAdvances) {
@@ -596,6 +660,9 @@ public class TextLayoutProcessor {
             final char[] textBuf = mBuilder.toCharArray();
             // steps 2-5
             analyzeBidi(textBuf);
+            if (mComputeLineBoundaries) {
+                computeLineBoundaries(textBuf);
+            }
             /*if (raw != null) {
                 adjustForFastDigit(raw);
             }*/
@@ -603,16 +670,12 @@ public class TextLayoutProcessor {
                 float guiScale = mEngine.getGuiScale();
                 mTotalAdvance = Math.round(mTotalAdvance * guiScale) / guiScale;
             }*/
-            float[] positions = mPositions.toFloatArray();
-            for (int i = 0; i < positions.length; i++) {
-                positions[i] /= resLevel;
-            }
-            byte[] fontIndices;
-            if (mFontVec.size() > 1) {
-                fontIndices = mFontIndices.toByteArray();
-            } else {
-                fontIndices = null;
-            }
+            // pack glyph data straight from the builders into one slab
+            final int glyphCount = mGlyphs.size();
+            final boolean hasFontIndices = mFontVec.size() > 1;
+            final int[] glyphData = TextLayout.packGlyphData(glyphCount,
+                    mGlyphs.elements(), mGlyphFlags.elements(), mPositions.elements(),
+                    resLevel, hasFontIndices ? mFontIndices.elements() : null);
             float[] advances;
             if (mComputeAdvances) {
                 advances = mAdvances.toFloatArray();
@@ -624,19 +687,26 @@ public class TextLayoutProcessor {
             }
             int[] lineBoundaries;
             if (mComputeLineBoundaries) {
-                lineBoundaries = mLineBoundaries.toIntArray();
-                // sort line boundaries to logical order, because runs are in visual order
-                Arrays.sort(lineBoundaries);
+                // merge boundaries of replacement runs, which are in visual order,
+                // in place, then copy once with the final size
+                final int[] elements = mLineBoundaries.elements();
+                final int size = mLineBoundaries.size();
+                Arrays.sort(elements, 0, size);
+                int count = size > 0 ? 1 : 0;
+                for (int i = 1; i < size; i++) {
+                    if (elements[i] != elements[count - 1]) {
+                        elements[count++] = elements[i];
+                    }
+                }
+                lineBoundaries = Arrays.copyOf(elements, count);
             } else {
                 lineBoundaries = null;
             }
             mTotalAdvance /= resLevel;
-            return new TextLayout(textBuf, mGlyphs.toIntArray(),
+            return new TextLayout(textBuf, glyphData, glyphCount, hasFontIndices,
                     mInitialBakedGlyphs.toArray(new BakedGlyph[0]),
-                    positions, fontIndices,
                     mFontVec.toArray(new Font[0]),
-                    advances, mGlyphFlags.toIntArray(),
-                    lineBoundaries, mTotalAdvance,
+                    advances, lineBoundaries, mTotalAdvance,
                     mHasEffect, mHasColorEmoji, resLevel, computeFlags);
         }
         return TextLayout.makeEmpty();
@@ -675,7 +745,7 @@ public class TextLayoutProcessor {
                 final boolean isRtl = dir.isRtl(text, 0, text.length);
                 paraLevel = isRtl ? Bidi.RTL : Bidi.LTR;
             }
-            Bidi bidi = new Bidi(text.length, 0);
+            final Bidi bidi = mBidi;
             bidi.setPara(text, paraLevel, null);
 
             /* If text is entirely right-to-left, then insert a node for the entire string */
@@ -881,12 +951,44 @@ public class TextLayoutProcessor {
         //if ((styleFlags & CharacterStyle.OBFUSCATED_MASK) == 0) {
         int glyphStart = mGlyphs.size();
 
-        float advance = ShapedText.doLayoutRun(
-                text, start, limit, start, limit,
-                isRtl, mFontPaint, 0, // <- text array starts at 0
-                mComputeAdvances ? mAdvances.elements() : null,
-                mTotalAdvance, null, mBuildLayout
-        );
+        AsciiLayoutTable asciiTable = null;
+        if (!isRtl && sAsciiFastPath && AsciiLayoutTable.isExact(mTotalAdvance)) {
+            asciiTable = mEngine.getAsciiTable(mFontPaint, fontStyle, mFontSize, mPaintFlags);
+            if (!asciiTable.isUsable() || !asciiTable.canLayout(text, start, limit)) {
+                asciiTable = null;
+            }
+        }
+
+        // split after spaces, segments are in visual order
+        float advance = 0;
+        if (asciiTable != null) {
+            mAsciiRunCount++;
+            advance = handleAsciiRun(asciiTable, text, start, limit, mTotalAdvance);
+        } else if (isRtl) {
+            int segEnd = limit;
+            while (segEnd > start) {
+                int segStart = segEnd - 1;
+                while (segStart > start &&
+                        !(text[segStart - 1] == ' ' && text[segStart] != ' ')) {
+                    segStart--;
+                }
+                advance += handleSegment(text, segStart, segEnd, true,
+                        fontStyle, mTotalAdvance + advance);
+                segEnd = segStart;
+            }
+        } else {
+            int segStart = start;
+            while (segStart < limit) {
+                int segEnd = segStart + 1;
+                while (segEnd < limit &&
+                        !(text[segEnd - 1] == ' ' && text[segEnd] != ' ')) {
+                    segEnd++;
+                }
+                advance += handleSegment(text, segStart, segEnd, false,
+                        fontStyle, mTotalAdvance + advance);
+                segStart = segEnd;
+            }
+        }
 
         for (int glyphIndex = glyphStart,
              glyphEnd = mGlyphs.size();
@@ -966,19 +1068,171 @@ public class TextLayoutProcessor {
                 }
             }
         }*/
+    }
 
-        if (mComputeLineBoundaries) {
-            // Compute line break boundaries, will be sorted into logical order.
-            BreakIterator breaker = BreakIterator.getLineInstance(
-                    LineBreaker.getLocaleWithLineBreakOption(mFontPaint.getLocale(), sLbStyle, sLbWordStyle)
+    /**
+     * Compute line break boundaries of the full text, once per paragraph, in logical order.
+     * Boundaries of replacement runs have been added.
+     *
+     * @param text the full plain text (without formatting codes) in logical order
+     */
+    private void computeLineBoundaries(@Nonnull char[] text) {
+        int paraStart = 0;
+        while (paraStart < text.length) {
+            int paraEnd = paraStart;
+            while (paraEnd < text.length && text[paraEnd++] != '\n') ;
+            // the line feed is a hard break, never break before it
+            int scanEnd = text[paraEnd - 1] == '\n' ? paraEnd - 1 : paraEnd;
+            if (sAsciiFastPath &&
+                    AsciiLayoutTable.computeLineBoundaries(text, paraStart, scanEnd, mLineBoundaries)) {
+                mLineBoundaries.set(mLineBoundaries.size() - 1, paraEnd);
+            } else {
+                final BreakIterator breaker = getLineBreaker();
+                breaker.setText(new CharArrayIterator(text, paraStart, paraEnd));
+                int prevPos = paraStart, currPos;
+                while ((currPos = breaker.following(prevPos)) != BreakIterator.DONE) {
+                    mLineBoundaries.add(currPos);
+                    prevPos = currPos;
+                }
+            }
+            paraStart = paraEnd;
+        }
+    }
+
+    /**
+     * Returns the reusable line break iterator, it is recreated when the locale or
+     * line break config changes.
+     */
+    @Nonnull
+    private BreakIterator getLineBreaker() {
+        final Locale locale = mFontPaint.getLocale();
+        final int lbStyle = sLbStyle;
+        final int lbWordStyle = sLbWordStyle;
+        if (mLineBreaker == null ||
+                !locale.equals(mLineBreakerLocale) ||
+                lbStyle != mLineBreakerStyle ||
+                lbWordStyle != mLineBreakerWordStyle) {
+            mLineBreaker = BreakIterator.getLineInstance(
+                    LineBreaker.getLocaleWithLineBreakOption(locale, lbStyle, lbWordStyle)
             );
-            final CharArrayIterator charIterator = new CharArrayIterator(text, start, limit);
-            breaker.setText(charIterator);
-            int prevPos = start, currPos;
-            while ((currPos = breaker.following(prevPos)) != BreakIterator.DONE) {
-                mLineBoundaries.add(currPos);
-                prevPos = currPos;
+            mLineBreakerLocale = locale;
+            mLineBreakerStyle = lbStyle;
+            mLineBreakerWordStyle = lbWordStyle;
+        }
+        return mLineBreaker;
+    }
+
+    /**
+     * Lay out a left-to-right run by table lookup, the result is the same as
+     * {@link ShapedText#doLayoutRun}.
+     *
+     * @param curAdvance the advance of the left of the run
+     * @return the advance of the run
+     */
+    private float handleAsciiRun(@Nonnull AsciiLayoutTable table, @Nonnull char[] text,
+                                 int start, int limit, float curAdvance) {
+        final float[] advances = mComputeAdvances ? mAdvances.elements() : null;
+        Font lastFont = null;
+        byte fontIdx = 0;
+        float advance = 0;
+        for (int i = start; i < limit; i++) {
+            final char c = text[i];
+            final Font font = table.getFont(c);
+            if (font != lastFont) {
+                fontIdx = mFontMap.computeIfAbsent(font, mNextID);
+                lastFont = font;
             }
+            mGlyphs.add(table.getGlyph(c));
+            mFontIndices.add(fontIdx);
+            mPositions.add(curAdvance + advance + table.getOffsetX(c));
+            mPositions.add(table.getOffsetY(c));
+            final float adv = table.getAdvance(c);
+            if (advances != null) {
+                advances[i] = adv;
+            }
+            advance += adv;
+        }
+        mInitialBakedGlyphs.size(mGlyphs.size());
+        return advance;
+    }
+
+    /**
+     * Shape a word segment with itself as context, or splice the cached result.
+     *
+     * @param curAdvance the advance of the left of the segment
+     * @return the advance of the segment
+     */
+    private float handleSegment(@Nonnull char[] text, int start, int limit, boolean isRtl,
+                                int fontStyle, float curAdvance) {
+        final int length = limit - start;
+        final FontCollection font = mFontPaint.getFont();
+        // positions are laid out relative to the segment, then offset by curAdvance,
+        // the same way as cached segments, so the result does not depend on cache state
+        if (length > ShapedSegmentCache.MAX_SEGMENT_LENGTH) {
+            final int posStart = mPositions.size();
+            float advance = ShapedText.doLayoutRun(
+                    text, start, limit, start, limit,
+                    isRtl, mFontPaint, 0, // <- text array starts at 0
+                    mComputeAdvances ? mAdvances.elements() : null,
+                    0, null, mBuildLayout
+            );
+            offsetPositions(posStart, curAdvance);
+            return advance;
+        }
+        final ShapedSegmentCache cache = mEngine.getSegmentCache();
+        final ShapedSegmentCache.Key key = mSegmentKey.update(text, start, limit,
+                font, fontStyle, mFontSize,
+                mFontPaint.getLocale(), isRtl, mPaintFlags);
+        ShapedSegmentCache.Segment segment = cache.get(key);
+        if (segment != null) {
+            final int glyphStart = mGlyphs.size();
+            mGlyphs.addElements(glyphStart, segment.glyphs());
+            mInitialBakedGlyphs.size(mGlyphs.size());
+            for (Font font : segment.fonts()) {
+                mFontIndices.add(mFontMap.computeIfAbsent(font, mNextID));
+            }
+            final int posStart = mPositions.size();
+            mPositions.addElements(posStart, segment.positions());
+            offsetPositions(posStart, curAdvance);
+            if (mComputeAdvances) {
+                System.arraycopy(segment.advances(), 0, mAdvances.elements(), start, length);
+            }
+            return segment.advance();
+        }
+        final float[] advances = mSegmentAdvances;
+        Arrays.fill(advances, 0, length, 0);
+        final int glyphStart = mGlyphs.size();
+        final int posStart = mPositions.size();
+        float advance = ShapedText.doLayoutRun(
+                text, start, limit, start, limit,
+                isRtl, mFontPaint, start, // <- advances start at 'start'
+                advances, 0, null, mBuildLayout
+        );
+        if (mComputeAdvances) {
+            System.arraycopy(advances, 0, mAdvances.elements(), start, length);
+        }
+        final int glyphEnd = mGlyphs.size();
+        int[] glyphs = Arrays.copyOfRange(mGlyphs.elements(), glyphStart, glyphEnd);
+        Font[] fonts = new Font[glyphEnd - glyphStart];
+        for (int i = 0; i < fonts.length; i++) {
+            fonts[i] = mFontVec.get(mFontIndices.getByte(glyphStart + i) & 0xFF);
+        }
+        float[] positions = Arrays.copyOfRange(mPositions.elements(), posStart, mPositions.size());
+        cache.put(key, new ShapedSegmentCache.Segment(glyphs, positions, fonts,
+                Arrays.copyOf(advances, length), advance));
+        offsetPositions(posStart, curAdvance);
+        return advance;
+    }
+
+    /**
+     * Offset x positions from posStart to the end by the given advance.
+     */
+    private void offsetPositions(int posStart, float offset) {
+        final float[] positions = mPositions.elements();
+        for (int posIndex = posStart, posEnd = mPositions.size();
+             posIndex < posEnd;
+             posIndex += 2) {
+            positions[posIndex] += offset;
         }
     }
 
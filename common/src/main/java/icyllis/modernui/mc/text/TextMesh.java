@@ -0,0 +1,218 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2026 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.mc.text;
+
+import com.mojang.blaze3d.vertex.VertexConsumer;
+import icyllis.modernui.annotation.RenderThread;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import net.minecraft.client.gui.Font;
+import net.minecraft.client.renderer.MultiBufferSource;
+import net.minecraft.resources.Identifier;
+import org.joml.Matrix4fc;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+
+/**
+ * Pre-baked glyph quads of a {@link TextLayout} for a specific draw state (render mode,
+ * color and shadow). Positions are relative to the text origin and not transformed, so
+ * a repeated draw of the same text only transforms and emits vertices, without resolving
+ * glyphs, colors and render types again.
+ * <p>
+ * A mesh is created when a draw state is seen for the first time, and its quads are
+ * recorded when the same state is drawn again. Meshes of all layouts are invalidated
+ * when any atlas is resized or compacted, since texture coordinates are baked.
+ *
+ * @see TextLayout#drawText
+ */
+@RenderThread
+final class TextMesh {
+
+    /**
+     * Bumped by atlas invalidation and engine reload.
+     */
+    private static int sGeneration;
+
+    private final int mGeneration;
+    private final int mMode;
+    private final int mColor;
+    private final boolean mPolygonOffset;
+    // config values that are baked into positions
+    private final float mBaselineOffset;
+    private final float mShadowOffset;
+
+    // render type params of each segment, quads in [segmentEnds[i-1], segmentEnds[i])
+    private Identifier[] mTextures;
+    private int[] mModes;
+    private Font.DisplayMode[] mDisplayModes;
+    private boolean[] mBitmapFonts;
+    private int[] mSegmentEnds;
+
+    // 4 vertices (x, y) per quad
+    private float[] mPositions;
+    // (u1, v1, u2, v2) per quad
+    private float[] mTexCoords;
+    private int[] mColors;
+    // to keep glyphs hot in the atlas
+    private ModernBakedGlyph[] mGlyphs;
+
+    TextMesh(int mode, int color, boolean polygonOffset) {
+        mGeneration = sGeneration;
+        mMode = mode;
+        mColor = color;
+        mPolygonOffset = polygonOffset;
+        mBaselineOffset = TextLayout.sBaselineOffset;
+        mShadowOffset = ModernTextRenderer.sShadowOffset;
+    }
+
+    static void invalidateAll() {
+        sGeneration++;
+    }
+
+    boolean matches(int mode, int color, boolean polygonOffset) {
+        return mGeneration == sGeneration &&
+                mMode == mode &&
+                mColor == color &&
+                mPolygonOffset == polygonOffset &&
+                mBaselineOffset == TextLayout.sBaselineOffset &&
+                mShadowOffset == ModernTextRenderer.sShadowOffset;
+    }
+
+    boolean isBaked() {
+        return mPositions != null;
+    }
+
+    void bake(@Nonnull Builder builder) {
+        int segments = builder.mTextures.size();
+        mTextures = builder.mTextures.toArray(new Identifier[0]);
+        mModes = builder.mModes.toIntArray();
+        mDisplayModes = builder.mDisplayModes.toArray(new Font.DisplayMode[0]);
+        mBitmapFonts = new boolean[segments];
+        for (int i = 0; i < segments; i++) {
+            mBitmapFonts[i] = builder.mBitmapFonts.getInt(i) != 0;
+        }
+        mSegmentEnds = builder.mSegmentEnds.toIntArray();
+        mPositions = builder.mPositions.toFloatArray();
+        mTexCoords = builder.mTexCoords.toFloatArray();
+        mColors = builder.mColors.toIntArray();
+        mGlyphs = builder.mGlyphs.toArray(new ModernBakedGlyph[0]);
+    }
+
+    /**
+     * Emit baked quads.
+     *
+     * @param x the left pos of the text line, shadow offset applied
+     * @param y the top of the text line, shadow offset applied
+     */
+    void draw(@Nonnull Matrix4fc matrix, @Nonnull MultiBufferSource source,
+              float x, float y, int packedLight, int frameIndex) {
+        for (ModernBakedGlyph glyph : mGlyphs) {
+            glyph.lastUsedFrame = frameIndex;
+        }
+        final float[] positions = mPositions;
+        final float[] texCoords = mTexCoords;
+        final int[] colors = mColors;
+        int quad = 0;
+        for (int s = 0; s < mSegmentEnds.length; s++) {
+            VertexConsumer builder = source.getBuffer(mDisplayModes[s] != null
+                    ? TextRenderType.getOrCreate(mTextures[s], mDisplayModes[s], mBitmapFonts[s])
+                    : TextRenderType.getOrCreate(mTextures[s], mModes[s]));
+            for (int end = mSegmentEnds[s]; quad < end; quad++) {
+                final int p = quad << 3;
+                final int t = quad << 2;
+                final int color = colors[quad];
+                final float u1 = texCoords[t];
+                final float v1 = texCoords[t + 1];
+                final float u2 = texCoords[t + 2];
+                final float v2 = texCoords[t + 3];
+                builder.addVertex(matrix, x + positions[p], y + positions[p + 1], 0)
+                        .setColor(color)
+                        .setUv(u1, v1)
+                        .setLight(packedLight);
+                builder.addVertex(matrix, x + positions[p + 2], y + positions[p + 3], 0)
+                        .setColor(color)
+                        .setUv(u1, v2)
+                        .setLight(packedLight);
+                builder.addVertex(matrix, x + positions[p + 4], y + positions[p + 5], 0)
+                        .setColor(color)
+                        .setUv(u2, v2)
+                        .setLight(packedLight);
+                builder.addVertex(matrix, x + positions[p + 6], y + positions[p + 7], 0)
+                        .setColor(color)
+                        .setUv(u2, v1)
+                        .setLight(packedLight);
+            }
+        }
+    }
+
+    /**
+     * Records quads in the same order as they are emitted.
+     */
+    static final class Builder {
+
+        private final ArrayList<Identifier> mTextures = new ArrayList<>();
+        private final IntArrayList mModes = new IntArrayList();
+        private final ArrayList<Font.DisplayMode> mDisplayModes = new ArrayList<>();
+        private final IntArrayList mBitmapFonts = new IntArrayList();
+        private final IntArrayList mSegmentEnds = new IntArrayList();
+
+        private final FloatArrayList mPositions = new FloatArrayList();
+        private final FloatArrayList mTexCoords = new FloatArrayList();
+        private final IntArrayList mColors = new IntArrayList();
+        private final ArrayList<ModernBakedGlyph> mGlyphs = new ArrayList<>();
+
+        /**
+         * Start a new segment, must be called when render type changes.
+         */
+        void setRenderType(Identifier texture, int mode,
+                           @Nullable Font.DisplayMode displayMode, boolean isBitmapFont) {
+            mTextures.add(texture);
+            mModes.add(mode);
+            mDisplayModes.add(displayMode);
+            mBitmapFonts.add(isBitmapFont ? 1 : 0);
+            mSegmentEnds.add(mColors.size());
+        }
+
+        /**
+         * Add a quad to the current segment, positions are relative to the text origin.
+         */
+        void addQuad(float x1, float y1, float x2, float y2,
+                     float x3, float y3, float x4, float y4,
+                     @Nonnull ModernBakedGlyph glyph, int color) {
+            assert !mSegmentEnds.isEmpty();
+            mPositions.add(x1);
+            mPositions.add(y1);
+            mPositions.add(x2);
+            mPositions.add(y2);
+            mPositions.add(x3);
+            mPositions.add(y3);
+            mPositions.add(x4);
+            mPositions.add(y4);
+            mTexCoords.add(glyph.u1);
+            mTexCoords.add(glyph.v1);
+            mTexCoords.add(glyph.u2);
+            mTexCoords.add(glyph.v2);
+            mColors.add(color);
+            mGlyphs.add(glyph);
+            mSegmentEnds.set(mSegmentEnds.size() - 1, mColors.size());
+        }
+    }
+}
@@ -33,6 +33,8 @@ import javax.annotation.Nullable;
 /**
  * Similar to {@link net.minecraft.client.renderer.state.gui.GlyphRenderState}.
  *
+ * @param glyphData    glyph data of the layout, see {@link TextLayout#getGlyphData()}
+ * @param glyphCount   glyph count of the layout
  * @param isColorEmoji whether the run is color emoji
  * @param isDirectMask whether the whole text uses normal or uniform scale
  */
@@ -43,7 +45,7 @@ public record TextRunRenderState(
         @Nullable ScreenRectangle scissorArea,
         float x, float top, int color, boolean dropShadow,
         BakedGlyph[] glyphs,
-        float[] positions, int[] flags,
+        int[] glyphData, int glyphCount,
         int glyphStart, int glyphEnd, boolean isColorEmoji,
         boolean isDirectMask, float density, float shadowOffset
 ) implements GuiElementRenderState {
@@ -68,8 +70,9 @@ public record TextRunRenderState(
         int g;
         int b;
         var glyphs = this.glyphs;
-        var positions = this.positions;
-        var flags = this.flags;
+        final int[] data = this.glyphData;
+        final int flagOffset = this.glyphCount;
+        final int posOffset = flagOffset << 1;
         var pose = this.pose;
         float x = this.x;
         if (isShadow) {
@@ -84,7 +87,7 @@ public record TextRunRenderState(
             if (!(vglyph instanceof ModernBakedGlyph glyph)) {
                 continue;
             }
-            final int bits = flags[i];
+            final int bits = data[flagOffset + i];
             float rx;
             float ry;
             final float w;
@@ -105,8 +108,8 @@ public record TextRunRenderState(
                     scaleFactor = TextLayoutProcessor.sBaseFontSize / GlyphManager.EMOJI_BASE;
                 }
                 fakeItalic = (bits & CharacterStyle.ITALIC_MASK) != 0;
-                rx = x + positions[i << 1] + glyph.x * scaleFactor;
-                ry = baseline + positions[i << 1 | 1] + glyph.y * scaleFactor;
+                rx = x + Float.intBitsToFloat(data[posOffset + (i << 1)]) + glyph.x * scaleFactor;
+                ry = baseline + Float.intBitsToFloat(data[posOffset + (i << 1 | 1)]) + glyph.y * scaleFactor;
                 if (isShadow) {
                     // bitmap font shadow offset is always 1 pixel
                     rx += 1.0f - shadowOffset;
@@ -116,8 +119,8 @@ public record TextRunRenderState(
                 w = glyph.width * scaleFactor;
                 h = glyph.height * scaleFactor;
             } else {
-                rx = x + positions[i << 1] + glyph.x * invDensity;
-                ry = baseline + positions[i << 1 | 1] + glyph.y * invDensity;
+                rx = x + Float.intBitsToFloat(data[posOffset + (i << 1)]) + glyph.x * invDensity;
+                ry = baseline + Float.intBitsToFloat(data[posOffset + (i << 1 | 1)]) + glyph.y * invDensity;
 
                 w = glyph.width * invDensity;
                 h = glyph.height * invDensity;
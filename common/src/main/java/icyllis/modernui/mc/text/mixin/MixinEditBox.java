@@ -56,7 +56,8 @@ import java.util.function.BiFunction;
  * <li>Fixes some bidirectional text rendering bugs (not editing).</li>
  * <li>Fixes possible IndexOutOfBoundsException crash.</li>
  * <li>Use floating-point text advance precision.</li>
- * <li>Increases dynamic layout performance.</li>
+ * <li>Increases dynamic layout performance, the visible text and the cursor are measured by
+ * the same layout.</li>
  * <li>Adjust text highlight style.</li>
  * <li>Adjust text cursor rendering position.</li>
  * </ul>
@@ -153,8 +154,9 @@ public abstract class MixinEditBox extends AbstractWidget {
 
         final int color = isEditable ? textColor : textColorUneditable;
 
+        final String tailText = value.substring(displayPos);
         final String viewText =
-                engine.getStringSplitter().headByWidth(value.substring(displayPos), getInnerWidth(), Style.EMPTY);
+                engine.getStringSplitter().headByWidth(tailText, getInnerWidth(), Style.EMPTY);
         final int viewCursorPos = cursorPos - displayPos;
         final int clampedViewHighlightPos = Mth.clamp(highlightPos - displayPos, 0, viewText.length());
 
@@ -189,7 +191,9 @@ public abstract class MixinEditBox extends AbstractWidget {
         final float cursorX;
         if (cursorInRange) {
             if (!separate && !viewText.isEmpty()) {
-                TextLayout layout = engine.lookupVanillaLayout(viewText,
+                // view text is a prefix of tail text, reuse the layout measured by headByWidth,
+                // rather than laying out the view text again with advances on every edit
+                TextLayout layout = engine.lookupVanillaLayout(tailText,
                         Style.EMPTY, TextLayoutEngine.COMPUTE_ADVANCES);
                 float curAdv = 0;
                 int stripIndex = 0;
@@ -229,7 +233,7 @@ public abstract class MixinEditBox extends AbstractWidget {
         }
 
         if (viewCursorPos != clampedViewHighlightPos) {
-            TextLayout layout = engine.lookupVanillaLayout(viewText,
+            TextLayout layout = engine.lookupVanillaLayout(tailText,
                     Style.EMPTY, TextLayoutEngine.COMPUTE_ADVANCES);
             float startX = baseX;
             float endX = cursorX;
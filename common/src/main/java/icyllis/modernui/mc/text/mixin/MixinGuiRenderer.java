@@ -18,6 +18,7 @@
 
 package icyllis.modernui.mc.text.mixin;
 
+import icyllis.modernui.mc.text.GlyphManager;
 import icyllis.modernui.mc.text.ModernPreparedText;
 import net.minecraft.client.gui.Font;
 import net.minecraft.client.gui.font.TextRenderable;
@@ -30,6 +31,7 @@ import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Overwrite;
 import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.Unique;
 
 @Mixin(GuiRenderer.class)
 public class MixinGuiRenderer {
@@ -44,6 +46,17 @@ public class MixinGuiRenderer {
      */
     @Overwrite
     private void prepareText() {
+        // glyphs are drawn after preparation, so upload them at once
+        GlyphManager.getInstance().beginUploadBatch();
+        try {
+            prepareText0();
+        } finally {
+            GlyphManager.getInstance().endUploadBatch();
+        }
+    }
+
+    @Unique
+    private void prepareText0() {
         renderState.forEachText(guiTextRenderState -> {
             Matrix3x2fc pose = guiTextRenderState.pose;
             ScreenRectangle scissor = guiTextRenderState.scissor;
@@ -111,8 +111,12 @@ public class PreferredFontAccordion implements View.OnClickListener,
                         .stream()
                         .map(family -> new FontFamilyItem(family.getFamilyName(),
                                 family.getFamilyName(ModernUI.getSelectedLocale())))
-                        .sorted()
                         .collect(Collectors.toList());
+                // not registered until selected
+                for (String name : FontIndex.getInstance().getDeferredFamilies()) {
+                    values.add(new FontFamilyItem(name, name));
+                }
+                values.sort(null);
                 values.add(0, new FontFamilyItem("\u2026", "\u2026"));
                 return values;
             }).thenAcceptAsync(values -> {
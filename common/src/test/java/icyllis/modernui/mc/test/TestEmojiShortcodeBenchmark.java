@@ -0,0 +1,158 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2026 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.mc.test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import icyllis.modernui.mc.EmojiShortcodes;
+import icyllis.modernui.mc.MuiModApi;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+
+/**
+ * Compares the regex emoji shortcode path with {@link EmojiShortcodes}, for replacement
+ * while typing a chat message and for completion of the word at the cursor.
+ * <p>
+ * The regex path rescans the whole message on every keystroke, the trie path only scans
+ * around the edited position, as done in the chat screen.
+ */
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class TestEmojiShortcodeBenchmark {
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TestEmojiShortcodeBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .shouldFailOnError(true).shouldDoGC(true)
+                .build())
+                .run();
+    }
+
+    /**
+     * Chat message typed char by char, shortcodes are not replaced.
+     */
+    public static final String MESSAGE = "hey :wave: did you see the :fire: build at 12:30 " +
+            "lol :joy::joy: gg :thumbsup: wp :not_a_real_one: see you :wave:";
+
+    /**
+     * Words at the cursor to complete.
+     */
+    public static final String[] PREFIXES = {":s", ":sm", ":smi", ":fire", ":thu", ":x", ":zzz"};
+
+    private HashMap<String, String> mMap;
+    private HashMap<Character, List<String>> mPrefixedMap;
+    private EmojiShortcodes mShortcodes;
+
+    @Setup
+    public void setup() throws Exception {
+        mMap = new HashMap<>();
+        var prefixedMap = new HashMap<Character, TreeSet<String>>();
+        try (var reader = new InputStreamReader(Objects.requireNonNull(
+                TestEmojiShortcodeBenchmark.class.getResourceAsStream("/assets/modernui/emoji_data.json")),
+                StandardCharsets.UTF_8)) {
+            for (var entry : new Gson().fromJson(reader, JsonArray.class)) {
+                var row = entry.getAsJsonArray();
+                var sequence = row.get(0).getAsString();
+                for (var sc : row.get(2).getAsJsonArray()) {
+                    String key = ":" + sc.getAsString() + ":";
+                    mMap.putIfAbsent(key, sequence);
+                    prefixedMap.computeIfAbsent(Character.toLowerCase(key.charAt(1)),
+                            $ -> new TreeSet<>()).add(key);
+                }
+            }
+        }
+        mPrefixedMap = new HashMap<>();
+        prefixedMap.forEach((c, set) -> mPrefixedMap.put(c, List.copyOf(set)));
+        mShortcodes = EmojiShortcodes.create(mMap);
+
+        // both paths must find the same shortcodes
+        var expected = new ArrayList<String>();
+        final Matcher matcher = MuiModApi.EMOJI_SHORTCODE_PATTERN.matcher(MESSAGE);
+        while (matcher.find()) {
+            String sc = matcher.group();
+            if (mMap.containsKey(sc)) {
+                expected.add(sc);
+            }
+        }
+        var actual = new ArrayList<String>();
+        long range;
+        for (int from = 0; (range = mShortcodes.find(MESSAGE, from, MESSAGE.length())) != -1; ) {
+            from = (int) range;
+            actual.add(MESSAGE.substring((int) (range >>> 32), from));
+        }
+        if (!expected.equals(actual)) {
+            throw new IllegalStateException(expected + " != " + actual);
+        }
+    }
+
+    @Benchmark
+    public void replaceRegex(Blackhole bh) {
+        for (int k = 1; k <= MESSAGE.length(); k++) {
+            String value = MESSAGE.substring(0, k);
+            final Matcher matcher = MuiModApi.EMOJI_SHORTCODE_PATTERN.matcher(value);
+            while (matcher.find()) {
+                bh.consume(mMap.get(value.substring(matcher.start(), matcher.end())));
+            }
+        }
+    }
+
+    @Benchmark
+    public void replaceTrie(Blackhole bh) {
+        final int maxLength = mShortcodes.getMaxLength();
+        for (int k = 1; k <= MESSAGE.length(); k++) {
+            bh.consume(mShortcodes.find(MESSAGE, Math.max(0, k - 1 - maxLength), k));
+        }
+    }
+
+    @Benchmark
+    public void completeBucket(Blackhole bh) {
+        for (String prefix : PREFIXES) {
+            for (String sc : mPrefixedMap.getOrDefault(Character.toLowerCase(prefix.charAt(1)),
+                    Collections.emptyList())) {
+                if (sc.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                    bh.consume(sc);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void completeTrie(Blackhole bh) {
+        for (String prefix : PREFIXES) {
+            for (String sc : mShortcodes.complete(prefix)) {
+                bh.consume(sc);
+            }
+        }
+    }
+}
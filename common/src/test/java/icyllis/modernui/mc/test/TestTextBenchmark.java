@@ -0,0 +1,319 @@
+/*
+ * Modern UI.
+ * Copyright (C) 2026 BloCamLimb. All rights reserved.
+ *
+ * Modern UI is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Modern UI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Modern UI. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package icyllis.modernui.mc.test;
+
+import icyllis.modernui.graphics.text.FontCollection;
+import icyllis.modernui.graphics.text.FontFamily;
+import icyllis.modernui.mc.ModernUIMod;
+import icyllis.modernui.mc.text.*;
+import net.minecraft.ChatFormatting;
+import net.minecraft.client.gui.font.providers.BitmapProvider;
+import net.minecraft.network.chat.*;
+import net.minecraft.resources.Identifier;
+import net.minecraft.server.packs.resources.Resource;
+import net.minecraft.server.packs.resources.ResourceProvider;
+import net.minecraft.util.FormattedCharSequence;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.annotation.Nonnull;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the text pipeline, no GL context or game instance is required.
+ * Layouts are created directly by {@link TextLayoutProcessor}, so the layout cache
+ * is bypassed, except for {@link ModernStringSplitter} benchmarks.
+ * <p>
+ * Run {@link #main(String[])} or <code>gradlew :common:jmh</code>, allocation rates are
+ * reported by the GC profiler, compare <code>gc.alloc.rate.norm</code> between releases.
+ */
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class TestTextBenchmark {
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TestTextBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .shouldFailOnError(true).shouldDoGC(true)
+                .build())
+                .run();
+    }
+
+    /**
+     * Realistic strings: chat, item names, tooltips and sign/book contents.
+     */
+    public static final String[] CORPUS = {
+            "Hello world",
+            "<Steve> anyone has spare iron? I need 3 more for a bucket",
+            "§eSteve joined the game",
+            "§6§lDiamond Sword §r§7(§a+7 Attack Damage§7)",
+            "§cYou can't sleep now, there are monsters nearby",
+            "Durability: 1561 / 1561",
+            "我的世界是一款沙盒游戏，玩家可以在"
+                    + "一个三维世界里建造各种东西。",
+            "クリーパーに気をつけて！",
+            "마인크래프트에 오신 것을 환영합니다",
+            "مرحبا بالعالم Minecraft 1.21",
+            "שלום עולם, this line mixes RTL and LTR text",
+            "GG 😀👍🏽 👨‍👩‍👧 nice build",
+            "§b§oété naïve façade §kobfuscated§r done",
+            "The quick brown fox jumps over the lazy dog. 0123456789 !@#$%^&*()_+-=[]{}",
+    };
+
+    /**
+     * HUD and debug overlay lines, pure ASCII.
+     */
+    public static final String[] HUD = {
+            "Minecraft 1.21.11 (1.21.11/vanilla)",
+            "XYZ: -123.456 / 64.00000 / 789.012",
+            "Block: -124 64 789 [4 0 5]",
+            "Facing: north (Towards negative Z) (-179.9 / 12.3)",
+            "Biome: minecraft:plains",
+            "C: 1234/15000 (s) D: 12, pC: 000, pU: 00, aB: 12",
+            "Score: 42", "Deaths: 7", "well-known Team-Red vs Team-Blue 3-2",
+    };
+
+    /**
+     * Multi-paragraph book page.
+     */
+    public static final String BOOK;
+
+    static {
+        var b = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            b.append(CORPUS[i % CORPUS.length]).append(' ')
+                    .append(CORPUS[(i * 5 + 3) % CORPUS.length]).append('\n');
+        }
+        BOOK = b.toString();
+    }
+
+    /**
+     * A bitmap font of vanilla ASCII glyphs, glyph tables of bitmap fonts are always usable,
+     * while system fonts are never scanned for contextual glyphs.
+     */
+    public static final FontDescription ASCII_FONT =
+            new FontDescription.Resource(ModernUIMod.location("benchmark_ascii"));
+
+    private TextLayoutEngine mEngine;
+    private TextLayoutProcessor mProcessor;
+    private FormattedLayoutKey.Lookup mLookupKey;
+
+    private Style[] mStyles;
+    private List<FormattedText> mComponents;
+    private List<FormattedCharSequence> mSequences;
+    private TextLayout[] mLayouts;
+
+    @Setup
+    public void setup() {
+        mEngine = new TextLayoutEngine();
+        mProcessor = new TextLayoutProcessor(mEngine);
+        mLookupKey = new FormattedLayoutKey.Lookup();
+
+        mStyles = new Style[]{
+                Style.EMPTY,
+                Style.EMPTY.withBold(true),
+                Style.EMPTY.withColor(ChatFormatting.GOLD).withItalic(true),
+                Style.EMPTY.withColor(0x33B5E5).withUnderlined(true).withStrikethrough(true),
+                Style.EMPTY.withObfuscated(true).withShadowColor(0xFF202020),
+        };
+
+        mComponents = new ArrayList<>();
+        mSequences = new ArrayList<>();
+        for (int i = 0; i < CORPUS.length; i++) {
+            String s = CORPUS[i];
+            int mid = s.length() / 2;
+            // keep surrogate pairs
+            if (Character.isLowSurrogate(s.charAt(mid))) {
+                mid++;
+            }
+            Style style = mStyles[i % mStyles.length];
+            mComponents.add(Component.literal(s.substring(0, mid)).withStyle(style)
+                    .append(Component.literal(s.substring(mid)).withStyle(ChatFormatting.GRAY)));
+            mSequences.add(FormattedCharSequence.composite(
+                    FormattedCharSequence.forward(s.substring(0, mid), style),
+                    FormattedCharSequence.forward(s.substring(mid), Style.EMPTY)));
+        }
+
+        verifyAsciiFastPath();
+
+        mLayouts = new TextLayout[CORPUS.length];
+        for (int i = 0; i < CORPUS.length; i++) {
+            mLayouts[i] = mProcessor.createVanillaLayout(CORPUS[i], Style.EMPTY, 2,
+                    TextLayoutEngine.COMPUTE_ADVANCES);
+        }
+    }
+
+    @Benchmark
+    public void createVanillaLayout(Blackhole bh) {
+        for (String s : CORPUS) {
+            bh.consume(mProcessor.createVanillaLayout(s, Style.EMPTY, 2, 0));
+        }
+    }
+
+    @Benchmark
+    public void createVanillaLayoutFull(Blackhole bh) {
+        for (String s : CORPUS) {
+            bh.consume(mProcessor.createVanillaLayout(s, Style.EMPTY, 2,
+                    TextLayoutEngine.COMPUTE_ADVANCES | TextLayoutEngine.COMPUTE_LINE_BOUNDARIES));
+        }
+    }
+
+    @Benchmark
+    public void createHudLayout(Blackhole bh) {
+        for (String s : HUD) {
+            bh.consume(mProcessor.createVanillaLayout(s, Style.EMPTY, 2,
+                    TextLayoutEngine.COMPUTE_ADVANCES | TextLayoutEngine.COMPUTE_LINE_BOUNDARIES));
+        }
+    }
+
+    /**
+     * Differential check, the fast path must produce the same layouts as the full path.
+     * Texts are laid out by {@link #ASCII_FONT}, and the fast path must be taken for
+     * every text.
+     */
+    private void verifyAsciiFastPath() {
+        // vanilla glyph sheet, rows 2 to 7 are U+0020 to U+007E
+        final int[][] grid = new int[16][16];
+        for (int c = 0x20; c < 0x7F; c++) {
+            grid[c >> 4][c & 15] = c;
+        }
+        final BitmapFont font = BitmapFont.create(new BitmapProvider.Definition(
+                Identifier.withDefaultNamespace("font/ascii.png"), 8, 7, grid), new ResourceProvider() {
+            @Nonnull
+            @Override
+            public Optional<Resource> getResource(@Nonnull Identifier location) {
+                return Optional.empty();
+            }
+
+            @Nonnull
+            @Override
+            public InputStream open(@Nonnull Identifier location) throws IOException {
+                // vanilla assets are on the classpath
+                InputStream stream = TestTextBenchmark.class.getResourceAsStream(
+                        "/assets/" + location.getNamespace() + "/" + location.getPath());
+                if (stream == null) {
+                    throw new FileNotFoundException(location.toString());
+                }
+                return stream;
+            }
+        });
+        mEngine.putFontCollection(((FontDescription.Resource) ASCII_FONT).id(),
+                new FontCollection(new FontFamily(font)));
+
+        final int flags = TextLayoutEngine.COMPUTE_ADVANCES | TextLayoutEngine.COMPUTE_LINE_BOUNDARIES;
+        for (String s : HUD) {
+            for (Style baseStyle : mStyles) {
+                Style style = baseStyle.withFont(ASCII_FONT);
+                TextLayoutProcessor.sAsciiFastPath = false;
+                TextLayout expected = mProcessor.createVanillaLayout(s, style, 2, flags);
+                TextLayoutProcessor.sAsciiFastPath = true;
+                int asciiRuns = mProcessor.getAsciiRunCount();
+                TextLayout actual = mProcessor.createVanillaLayout(s, style, 2, flags);
+                if (mProcessor.getAsciiRunCount() == asciiRuns) {
+                    throw new IllegalStateException("ASCII fast path is not taken: \"" + s + "\" " + style);
+                }
+                if (!Arrays.equals(expected.getGlyphs(), actual.getGlyphs()) ||
+                        !Arrays.equals(expected.getPositions(), actual.getPositions()) ||
+                        !Arrays.equals(expected.getAdvances(), actual.getAdvances()) ||
+                        !Arrays.equals(expected.getGlyphFlags(), actual.getGlyphFlags()) ||
+                        !Arrays.equals(expected.getFontIndices(), actual.getFontIndices()) ||
+                        !Arrays.equals(expected.getFontVector(), actual.getFontVector()) ||
+                        !Arrays.equals(expected.getLineBoundaries(), actual.getLineBoundaries()) ||
+                        expected.getTotalAdvance() != actual.getTotalAdvance()) {
+                    throw new IllegalStateException("ASCII fast path differs: \"" + s + "\" " + style);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void createTextLayout(Blackhole bh) {
+        for (FormattedText text : mComponents) {
+            bh.consume(mProcessor.createTextLayout(text, Style.EMPTY, 2, 0));
+        }
+    }
+
+    @Benchmark
+    public void createSequenceLayout(Blackhole bh) {
+        for (FormattedCharSequence sequence : mSequences) {
+            bh.consume(mProcessor.createSequenceLayout(sequence, 2, 0));
+        }
+    }
+
+    @Benchmark
+    public void createBookLayout(Blackhole bh) {
+        bh.consume(mProcessor.createVanillaLayout(BOOK, Style.EMPTY, 2,
+                TextLayoutEngine.COMPUTE_ADVANCES | TextLayoutEngine.COMPUTE_LINE_BOUNDARIES));
+    }
+
+    @Benchmark
+    public void lookupKeyText(Blackhole bh) {
+        for (FormattedText text : mComponents) {
+            bh.consume(mLookupKey.update(text, Style.EMPTY).hashCode());
+        }
+    }
+
+    @Benchmark
+    public void lookupKeySequence(Blackhole bh) {
+        for (FormattedCharSequence sequence : mSequences) {
+            bh.consume(mLookupKey.update(sequence).hashCode());
+        }
+    }
+
+    /**
+     * Layouts are cached after the first invocation, this measures the steady state
+     * line breaking cost of a book page.
+     */
+    @Benchmark
+    public void computeLineBreaks(Blackhole bh) {
+        mEngine.getStringSplitter().computeLineBreaks(BOOK, 114, Style.EMPTY,
+                (style, start, end) -> bh.consume(end));
+    }
+
+    @Benchmark
+    public void breakText(Blackhole bh) {
+        for (TextLayout layout : mLayouts) {
+            bh.consume(ModernStringSplitter.breakText(layout, true, 60));
+            bh.consume(ModernStringSplitter.breakText(layout, false, 60));
+        }
+    }
+
+    @Benchmark
+    public void flattenStyle(Blackhole bh) {
+        for (Style style : mStyles) {
+            bh.consume(CharacterStyle.flatten(style));
+        }
+    }
+}
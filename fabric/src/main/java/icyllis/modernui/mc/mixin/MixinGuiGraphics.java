@@ -54,6 +54,23 @@ public abstract class MixinGuiGraphics implements IModernGuiGraphics {
     @Unique
     private ItemStack modernUI_MC$deferredTooltipStack = ItemStack.EMPTY;
 
+    // the last wrapped tooltip, reused while the same tooltip is hovered, so that lines
+    // are not measured and split again every frame, render thread only
+    @Unique
+    private static List<Component> modernUI_MC$lastComponents;
+    @Unique
+    private static Optional<TooltipComponent> modernUI_MC$lastTooltipComponent;
+    @Unique
+    private static Font modernUI_MC$lastFont;
+    @Unique
+    private static int modernUI_MC$lastX;
+    @Unique
+    private static int modernUI_MC$lastScreenWidth;
+    @Unique
+    private static int modernUI_MC$lastGeneration;
+    @Unique
+    private static List<ClientTooltipComponent> modernUI_MC$lastResult;
+
     @Shadow
     public abstract int guiWidth();
 
@@ -99,9 +116,20 @@ public abstract class MixinGuiGraphics implements IModernGuiGraphics {
     private List<ClientTooltipComponent> modernUI_MC$transformComponents(
             Font font, List<Component> components, Optional<TooltipComponent> tooltipComponent,
             int x) {
+        int screenWidth = guiWidth();
+        int generation = TooltipRenderer.sLayoutGeneration;
+        if (modernUI_MC$lastResult != null &&
+                modernUI_MC$lastFont == font &&
+                modernUI_MC$lastX == x &&
+                modernUI_MC$lastScreenWidth == screenWidth &&
+                modernUI_MC$lastGeneration == generation &&
+                components.equals(modernUI_MC$lastComponents) &&
+                tooltipComponent.equals(modernUI_MC$lastTooltipComponent)) {
+            return modernUI_MC$lastResult;
+        }
+
         List<ClientTooltipComponent> result = new ArrayList<>(components.size() + 1);
 
-        int screenWidth = guiWidth();
         int tooltipWidth = 0;
         int[] widths = new int[components.size()];
         for (int i = 0; i < components.size(); i++) {
@@ -134,6 +162,13 @@ public abstract class MixinGuiGraphics implements IModernGuiGraphics {
             }
         }
 
+        modernUI_MC$lastComponents = List.copyOf(components);
+        modernUI_MC$lastTooltipComponent = tooltipComponent;
+        modernUI_MC$lastFont = font;
+        modernUI_MC$lastX = x;
+        modernUI_MC$lastScreenWidth = screenWidth;
+        modernUI_MC$lastGeneration = generation;
+        modernUI_MC$lastResult = result;
         return result;
     }
 
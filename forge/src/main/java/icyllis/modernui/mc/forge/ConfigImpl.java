@@ -664,6 +664,8 @@ public final class ConfigImpl {
         public static final float OUTLINE_OFFSET_MAX = 2;
         public static final int LIFESPAN_MIN = 2;
         public static final int LIFESPAN_MAX = 15;
+        public static final int CACHE_BUDGET_MIN = 2;
+        public static final int CACHE_BUDGET_MAX = 256;
         /*public static final int REHASH_MIN = 0;
         public static final int REHASH_MAX = 2000;*/
 
@@ -678,6 +680,7 @@ public final class ConfigImpl {
         //public final ForgeConfigSpec.BooleanValue mSuperSampling;
         //public final ForgeConfigSpec.BooleanValue mAlignPixels;
         public final ForgeConfigSpec.IntValue mCacheLifespan;
+        public final ForgeConfigSpec.IntValue mCacheMemoryBudget;
         //public final ForgeConfigSpec.IntValue mRehashThreshold;
         public final ForgeConfigSpec.EnumValue<Config.Text.TextDirection> mTextDirection;
         //public final ForgeConfigSpec.BooleanValue mBitmapReplacement;
@@ -688,14 +691,19 @@ public final class ConfigImpl {
         public final ForgeConfigSpec.ConfigValue<List<? extends String>> mDefaultFontRuleSet;
         public final ForgeConfigSpec.BooleanValue mUseComponentCache;
         public final ForgeConfigSpec.BooleanValue mAllowAsyncLayout;
+        public final ForgeConfigSpec.BooleanValue mPersistentLayoutCache;
+        public final ForgeConfigSpec.BooleanValue mOffHeapLayoutCache;
         public final ForgeConfigSpec.EnumValue<Config.Text.LineBreakStyle> mLineBreakStyle;
         public final ForgeConfigSpec.EnumValue<Config.Text.LineBreakWordStyle> mLineBreakWordStyle;
         //public final ForgeConfigSpec.BooleanValue mSmartSDFShaders;
         public final ForgeConfigSpec.BooleanValue mComputeDeviceFontSize;
         public final ForgeConfigSpec.BooleanValue mAllowSDFTextIn2D;
         public final ForgeConfigSpec.BooleanValue mTweakExperienceText;
+        public final ForgeConfigSpec.BooleanValue mCacheTextMesh;
+        public final ForgeConfigSpec.BooleanValue mAsciiFastPath;
 
         public final ForgeConfigSpec.BooleanValue mAntiAliasing;
+        public final ForgeConfigSpec.BooleanValue mAsyncRasterization;
         public final ForgeConfigSpec.BooleanValue mLinearMetrics;
         public final ForgeConfigSpec.IntValue mMinPixelDensityForSDF;
         public final ForgeConfigSpec.BooleanValue mLinearSamplingA8Atlas;
@@ -755,6 +763,10 @@ public final class ConfigImpl {
             mCacheLifespan = builder.comment(
                             "Set the recycle time of layout cache in seconds, using least recently used algorithm.")
                     .defineInRange("cacheLifespan", 6, LIFESPAN_MIN, LIFESPAN_MAX);
+            mCacheMemoryBudget = builder.comment(
+                            "Set the memory budget of layout cache in megabytes, cold entries are evicted",
+                            "before their lifespan when the cache grows beyond this size.")
+                    .defineInRange("cacheMemoryBudget", 16, CACHE_BUDGET_MIN, CACHE_BUDGET_MAX);
             /*mRehashThreshold = builder.comment("Set the rehash threshold of layout cache")
                     .defineInRange("rehashThreshold", 100, REHASH_MIN, REHASH_MAX);*/
             mTextDirection = builder.comment(
@@ -814,9 +826,17 @@ public final class ConfigImpl {
                             "Modern UI will use another cache strategy if this is disabled.")
                     .define("useComponentCache", !ModernUIMod.isUntranslatedItemsLoaded());
             mAllowAsyncLayout = builder.comment(
-                            "Allow text layout to be computed from background threads (not cached).",
+                            "Allow text layout to be computed from background threads, sharing the layout cache.",
                             "Otherwise, block the current thread and wait for main thread.")
                     .define("allowAsyncLayout", true);
+            mPersistentLayoutCache = builder.comment(
+                            "Persist text shaping results on disk, to speed up text layout after game restarts.",
+                            "Cache files are stored next to this config file and invalidated when fonts change.")
+                    .define("persistentLayoutCache", false);
+            mOffHeapLayoutCache = builder.comment(
+                            "Move glyph data of cached text layouts that are not drawn recently to native memory,",
+                            "and restore it on next use. This reduces heap usage when many texts are cached.")
+                    .define("offHeapLayoutCache", false);
             mLineBreakStyle = builder.comment(
                             "See CSS line-break property, https://developer.mozilla.org/en-US/docs/Web/CSS/line-break")
                     .defineEnum("lineBreakStyle", Config.Text.LineBreakStyle.AUTO);
@@ -845,9 +865,22 @@ public final class ConfigImpl {
             mTweakExperienceText = builder.comment(
                             "When enabled, the outline of the experience level text will be tweaked.")
                     .define("tweakExperienceText", true);
+            mCacheTextMesh = builder.comment(
+                            "Cache glyph quads of texts that are drawn repeatedly with the same color and mode,",
+                            "such as HUD overlays and signs. This uses more memory.")
+                    .define("cacheTextMesh", false);
+            mAsciiFastPath = builder.comment(
+                            "Lay out Latin-1 texts by per-font glyph tables, bypassing text shaping.",
+                            "Tables are only used for fonts whose layout tables show no kerning, ligatures or",
+                            "contextual lookups for these glyphs, e.g. bitmap fonts and scanned font files.")
+                    .define("asciiFastPath", true);
             mAntiAliasing = builder.comment(
                             "Control the anti-aliasing of raw glyph rasterization.")
                     .define("antiAliasing", true);
+            mAsyncRasterization = builder.comment(
+                            "Rasterize glyph images on worker threads, glyphs are uploaded at the end of frame.",
+                            "New glyphs may be invisible for one frame.")
+                    .define("asyncRasterization", true);
             mLinearMetrics = builder.comment(
                             "When enabled, text layout uses fractional metrics with no font hinting.",
                             "When disabled, text layout uses integer metrics with full font hinting.",